@@ -0,0 +1,53 @@
+package com.kt.codegen;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks the removal of the code generator imports and annotations from templates of
+ * different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnnotationRemovalBenchmark {
+    private static final Set<String> ANNOTATIONS = Set.of("Instantiate", "Instantiations", "SourceDirectory");
+    private static final Set<String> IMPORTS = Set.of("com.kt.codegen.Instantiate", "com.kt.codegen.Replace");
+
+    @Param({ "100", "1000", "10000", "50000" })
+    private int lines;
+
+    private EditBuffer source;
+
+    @Setup
+    public void setUp() {
+        source = EditBuffer.of(SyntheticTemplates.source(lines, 1));
+    }
+
+    @Benchmark
+    public String removeAnnotations() {
+        return CodegenStripper.strip(source, Set.of(), ANNOTATIONS).toString();
+    }
+
+    @Benchmark
+    public String removeImportsAndAnnotations() {
+        return CodegenStripper.strip(source, IMPORTS, ANNOTATIONS).toString();
+    }
+}
@@ -0,0 +1,112 @@
+package com.kt.codegen;
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Compares two JMH result files in CSV format ({@code -rf csv}), e.g. the baseline of one branch
+ * with the results of another one, and prints the relative change of each score. Changes that
+ * are within the combined error margins of both measurements are marked as insignificant.
+ *
+ * <p>Usage: {@code java -cp target/benchmarks.jar com.kt.codegen.BenchmarkComparison baseline.csv results.csv}
+ */
+public final class BenchmarkComparison {
+    private BenchmarkComparison() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BenchmarkComparison <baseline.csv> <results.csv>");
+            System.exit(1);
+        }
+
+        Map<String, Score> baseline = read(Path.of(args[0]));
+        Map<String, Score> results = read(Path.of(args[1]));
+        System.out.printf(Locale.ROOT, "%-80s %14s %14s %9s%n", "Benchmark", "Baseline", "Result", "Change");
+        for (Map.Entry<String, Score> result : results.entrySet()) {
+            Score before = baseline.get(result.getKey());
+            Score after = result.getValue();
+            if (before == null) {
+                System.out.printf(Locale.ROOT, "%-80s %14s %14.3f %9s%n", result.getKey(), "-", after.score(), "new");
+                continue;
+            }
+            double change = (after.score() - before.score()) / before.score() * 100;
+            boolean significant = Math.abs(after.score() - before.score()) > before.error() + after.error();
+            System.out.printf(Locale.ROOT, "%-80s %14.3f %14.3f %+8.1f%%%s%n",
+                    result.getKey(), before.score(), after.score(), change, significant ? "" : " (insignificant)");
+        }
+    }
+
+    private static Map<String, Score> read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            throw new IOException("Empty result file: " + file);
+        }
+
+        List<String> header = parseLine(lines.get(0));
+        int benchmarkColumn = column(header, "Benchmark", file);
+        int scoreColumn = column(header, "Score", file);
+        int errorColumn = column(header, "Score Error (99.9%)", file);
+        int unitColumn = column(header, "Unit", file);
+
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> values = parseLine(line);
+            if (values.size() != header.size()) {
+                continue;
+            }
+            StringBuilder key = new StringBuilder(values.get(benchmarkColumn).replace("com.kt.codegen.", ""));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && !values.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).substring("Param: ".length())).append('=').append(values.get(i));
+                }
+            }
+            key.append(" [").append(values.get(unitColumn)).append(']');
+            scores.put(key.toString(), new Score(parseDouble(values.get(scoreColumn)), parseDouble(values.get(errorColumn))));
+        }
+        return scores;
+    }
+
+    private static int column(List<String> header, String name, Path file) throws IOException {
+        int index = header.indexOf(name);
+        if (index < 0) {
+            throw new IOException("Column '" + name + "' not found in " + file + ", expected a JMH CSV result file");
+        }
+        return index;
+    }
+
+    private static List<String> parseLine(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    private static double parseDouble(String value) {
+        return value.isEmpty() || value.equals("NaN") ? 0 : Double.parseDouble(value);
+    }
+
+    private record Score(double score, double error) {
+    }
+}
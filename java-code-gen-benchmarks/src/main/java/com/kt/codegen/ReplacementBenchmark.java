@@ -0,0 +1,85 @@
+package com.kt.codegen;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks the complete generation of one target class as well as the replacement variants,
+ * over templates of different sizes and with different numbers of plain or regex rules. Each
+ * benchmark includes materializing the resulting text once, as writing the file would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplacementBenchmark {
+    @Param({ "100", "1000", "10000", "50000" })
+    private int lines;
+
+    @Param({ "1", "10", "50", "200" })
+    private int rules;
+
+    @Param({ "false", "true" })
+    private boolean regex;
+
+    private EditBuffer source;
+    private Template template;
+    private Replace[] replacements;
+    private TargetClass target;
+    private GenerationMetrics.Output metrics;
+
+    @Setup
+    public void setUp() {
+        String text = SyntheticTemplates.source(lines, rules);
+        source = EditBuffer.of(text);
+        template = Template.parse(SyntheticTemplates.SOURCE_CLASS_NAME_FQ, text);
+        replacements = SyntheticTemplates.replacements(rules, regex);
+        target = TargetClass.of(SyntheticTemplates.SOURCE_CLASS_NAME_FQ, SyntheticTemplates.TARGET_CLASS_NAME_FQ, TargetClass.Declaration.GENERIC_CLASS, template)
+                .withAnnotationTypesToRemove(SyntheticTemplates.ANNOTATION_TYPES_TO_REMOVE)
+                .withReplacements(replacements, ReplacementMode.SEQUENTIAL)
+                .withTypeParameterReplacements(SyntheticTemplates.TYPE_PARAMETER_REPLACEMENTS);
+        metrics = GenerationMetrics.Output.discarding(SyntheticTemplates.SOURCE_CLASS_NAME_FQ, SyntheticTemplates.TARGET_CLASS_NAME_FQ);
+    }
+
+    @Benchmark
+    public String generateTargetCode() {
+        return CodeGeneratorProcessor.generateTargetCode(target, metrics).toString();
+    }
+
+    @Benchmark
+    public String replaceSequential() {
+        return CodeGeneratorProcessor.replace(replacements, source, SyntheticTemplates.SOURCE_CLASS_NAME_FQ, metrics).toString();
+    }
+
+    @Benchmark
+    public String replaceSimultaneous() {
+        // falls back to sequential replacement for regex rules
+        return CodeGeneratorProcessor.replaceSimultaneously(replacements, source, SyntheticTemplates.SOURCE_CLASS_NAME_FQ, metrics).toString();
+    }
+
+    @Benchmark
+    public String replaceSingleRule() {
+        return CodeGeneratorProcessor.replace(
+                source,
+                replacements[0].from(),
+                replacements[0].to(),
+                regex ? CodeGeneratorProcessor.ReplacementMethod.REGEX_ALL : CodeGeneratorProcessor.ReplacementMethod.PLAIN_ALL,
+                true,
+                SyntheticTemplates.SOURCE_CLASS_NAME_FQ).toString();
+    }
+}
@@ -0,0 +1,118 @@
+package com.kt.codegen;
+
+
+import java.lang.annotation.Annotation;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Creates synthetic templates of a given size, together with replacement rules that all match
+ * the template, for benchmarking the code generation pipeline.
+ */
+final class SyntheticTemplates {
+    static final String PACKAGE = "bench";
+    static final String CLASS_NAME = "Synthetic";
+    static final String SOURCE_CLASS_NAME_FQ = PACKAGE + "." + CLASS_NAME;
+    static final String TARGET_CLASS_NAME_FQ = SOURCE_CLASS_NAME_FQ + "Double";
+    static final Map<String, String> TYPE_PARAMETER_REPLACEMENTS = Map.of("T", "Double");
+
+    static final List<Class<? extends Annotation>> ANNOTATION_TYPES_TO_REMOVE = List.of(
+            Instantiate.class, Instantiations.class, SourceDirectory.class);
+
+    private SyntheticTemplates() {
+    }
+
+    /**
+     * Creates the source code of a generic template class.
+     *
+     * @param lines The approximate number of lines.
+     * @param rules The number of distinct identifiers that {@link #replacements(int, boolean)}
+     *              refers to; all of them occur in the template.
+     * @return The template source code.
+     */
+    static String source(int lines, int rules) {
+        StringBuilder code = new StringBuilder(lines * 48);
+        code.append("package ").append(PACKAGE).append(";\n\n");
+        code.append("import com.kt.codegen.Instantiate;\n");
+        code.append("import com.kt.codegen.Replace;\n");
+        code.append("import java.util.List;\n\n");
+        code.append("@Instantiate(Double.class)\n");
+        code.append("@Instantiate(value = Integer.class, replace = @Replace(from = \"(x)\", to = \"(y)\"))\n");
+        code.append("@Instantiate(value = Long.class, replace = { @Replace(from = \"a\", to = \"b\"), @Replace(from = \"c\", to = \"d\") })\n");
+        code.append("@Instantiate(value = String.class, append = false)\n");
+        code.append("public class ").append(CLASS_NAME).append("<T> {\n");
+
+        // make sure every rule matches at least once
+        code.append("    int ");
+        for (int rule = 0; rule < rules; rule++) {
+            code.append(rule == 0 ? "" : ", ").append(identifier(rule));
+        }
+        code.append(";\n\n");
+
+        int line = 12;
+        int method = 0;
+        while (line < lines) {
+            String id = identifier(method % rules);
+            code.append("    /**\n");
+            code.append("     * Returns the value of ").append(id).append(" (see {@link List}).\n");
+            code.append("     */\n");
+            code.append("    public T method").append(method).append("(T value, int ").append(id).append(") {\n");
+            code.append("        // T is replaced, but not in this comment (nor in \"T\" literals)\n");
+            code.append("        String s = \"literal (with \\\"brackets\\\") ").append(id).append("\";\n");
+            code.append("        T[] array = (T[]) new Object[").append(method).append(" + ").append(id).append("];\n");
+            code.append("        List<T> list = List.of(value, array[0]);\n");
+            code.append("        return list.get(s.length() % 2);\n");
+            code.append("    }\n\n");
+            line += 11;
+            method++;
+        }
+        code.append("}\n");
+        return code.toString();
+    }
+
+    /**
+     * Creates replacement rules for a template created by {@link #source(int, int)}.
+     *
+     * @param rules The number of rules.
+     * @param regex Whether the rules are regex or plain string rules.
+     * @return The replacement rules.
+     */
+    static Replace[] replacements(int rules, boolean regex) {
+        Replace[] replacements = new Replace[rules];
+        for (int rule = 0; rule < rules; rule++) {
+            String from = regex ? "\\b" + identifier(rule) + "\\b" : identifier(rule);
+            replacements[rule] = replace(from, "renamed_" + rule + "_", regex);
+        }
+        return replacements;
+    }
+
+    private static String identifier(int rule) {
+        // delimited, so that no identifier is a substring of another one
+        return "ident_" + rule + "_";
+    }
+
+    private static Replace replace(String from, String to, boolean regex) {
+        return new Replace() {
+            @Override
+            public String from() {
+                return from;
+            }
+
+            @Override
+            public String to() {
+                return to;
+            }
+
+            @Override
+            public boolean regex() {
+                return regex;
+            }
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return Replace.class;
+            }
+        };
+    }
+}
@@ -0,0 +1,20 @@
+package com.kt.codegen.demo.companion;
+
+import com.kt.codegen.Companion;
+import com.kt.codegen.Instantiate;
+
+@Companion                     // <-- generates MyLists
+@Instantiate(String.class)
+@Instantiate(double.class)
+public class MyList<T> {
+    private T[] array = (T[]) new Object[16];
+    private int size;
+
+    public T get(int index) {
+        return array[index];
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -4,7 +4,7 @@ import com.kt.codegen.Instantiate;
 import com.kt.codegen.Replace;
 
 @Instantiate(value = String.class,
-             replace = @Replace(from = "(T[]) new Object[size]", to = "new String[size]"))
+             replace = @Replace(from = "return null;", to = "return \"\";"))
 class MyList<T> {
     private T[] array;
 
@@ -12,7 +12,10 @@ class MyList<T> {
         this.array = (T[]) new Object[size];
     }
 
-    T get(int index) {
-        return array[index];
+    T getOrDefault(int index) {
+        if (index < array.length) {
+            return array[index];
+        }
+        return null;
     }
 }
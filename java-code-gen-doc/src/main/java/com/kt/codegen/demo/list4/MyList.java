@@ -1,12 +1,9 @@
 package com.kt.codegen.demo.list4;
 
 import com.kt.codegen.Instantiate;
-import com.kt.codegen.Replace;
 
-@Instantiate(value = String.class,
-             replace = @Replace(from = "(T[]) new Object[size]", to = "new String[size]"))
-@Instantiate(value = double.class,
-             replace = @Replace(from = "(T[]) new Object[size]", to = "new double[size]"))
+@Instantiate(String.class)
+@Instantiate(double.class)
 class MyList<T> {
     private T[] array;
 
@@ -0,0 +1,19 @@
+package com.kt.codegen.demo.map2;
+
+import com.kt.codegen.InstantiateAll;
+import com.kt.codegen.TypeFamily;
+import com.kt.codegen.TypeSet;
+
+@InstantiateAll(
+    value = {
+        @TypeSet({int.class, long.class}),               // <-- types for K
+        @TypeSet(family = TypeFamily.PRIMITIVE_NUMERIC)  // <-- types for V
+    },
+    exclude = {long.class, byte.class}                  // <-- but not MyMapLongByte
+)
+class MyMap<K, V> {
+    private K[] keys;
+    private V[] values;
+
+    // ...
+}
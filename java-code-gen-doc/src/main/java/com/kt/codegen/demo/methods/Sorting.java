@@ -0,0 +1,40 @@
+package com.kt.codegen.demo.methods;
+
+import com.kt.codegen.Instantiate;
+
+import java.util.Comparator;
+
+public final class Sorting {
+    private Sorting() {
+    }
+
+    @Instantiate(double.class)
+    @Instantiate(long.class)
+    public static <T> void sort(T[] a, Comparator<? super T> c) {
+        for (int i = 1; i < a.length; i++) {
+            T key = a[i];
+            int j = i - 1;
+            while (j >= 0 && c.compare(a[j], key) > 0) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = key;
+        }
+    }
+
+    @Instantiate(double.class)
+    @Instantiate(long.class)
+    public static <T> int binarySearch(T[] a, int from, int to, T key, Comparator<? super T> c) {
+        if (from >= to) {
+            return -(from + 1);
+        }
+        int mid = (from + to) >>> 1;
+        int cmp = c.compare(a[mid], key);
+        if (cmp < 0) {
+            return binarySearch(a, mid + 1, to, key, c);
+        } else if (cmp > 0) {
+            return binarySearch(a, from, mid, key, c);
+        }
+        return mid;
+    }
+}
@@ -0,0 +1,22 @@
+package com.kt.codegen.demo.offheap;
+
+import com.kt.codegen.Derive;
+
+import java.util.Arrays;
+
+@Derive(name = "MyOffHeapDoubleList", replace = {}, offHeap = true)
+public class MyDoubleList {
+    private double[] array = new double[16];
+    private int size;
+
+    void add(double value) {
+        if (size == array.length) {
+            array = Arrays.copyOf(array, 2 * size);
+        }
+        array[size++] = value;
+    }
+
+    double get(int index) {
+        return array[index];
+    }
+}
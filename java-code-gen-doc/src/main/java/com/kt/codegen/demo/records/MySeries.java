@@ -0,0 +1,21 @@
+package com.kt.codegen.demo.records;
+
+import com.kt.codegen.Instantiate;
+
+@Instantiate(value = Tick.class, flatten = true)
+public class MySeries<T extends Tick> {
+    private T[] ticks = (T[]) new Object[1024];
+    private int size;
+
+    public void add(T tick) {
+        ticks[size++] = tick;
+    }
+
+    public T get(int i) {
+        return ticks[i];
+    }
+
+    public double price(int i) {
+        return ticks[i].price();
+    }
+}
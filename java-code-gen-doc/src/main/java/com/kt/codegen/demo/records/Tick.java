@@ -0,0 +1,4 @@
+package com.kt.codegen.demo.records;
+
+public record Tick(long time, double price) {
+}
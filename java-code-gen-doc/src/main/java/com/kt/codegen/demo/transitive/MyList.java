@@ -0,0 +1,26 @@
+package com.kt.codegen.demo.transitive;
+
+import com.kt.codegen.Instantiate;
+
+@Instantiate(double.class)
+public class MyList<T> {
+    private T[] elements = (T[]) new Object[16];
+    private int size;
+
+    public void add(T element) {
+        if (size == elements.length) {
+            T[] newElements = (T[]) new Object[2 * size];
+            System.arraycopy(elements, 0, newElements, 0, size);
+            elements = newElements;
+        }
+        elements[size++] = element;
+    }
+
+    public T get(int index) {
+        return elements[index];
+    }
+
+    public int size() {
+        return size;
+    }
+}
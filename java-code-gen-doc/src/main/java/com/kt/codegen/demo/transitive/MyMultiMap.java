@@ -0,0 +1,24 @@
+package com.kt.codegen.demo.transitive;
+
+import com.kt.codegen.Instantiate;
+
+@Instantiate({ long.class, double.class })
+public class MyMultiMap<K, V> {
+    private final MyList<K> keys = new MyList<>();
+    private final MyList<V> values = new MyList<>();
+
+    public void put(K key, V value) {
+        keys.add(key);
+        values.add(value);
+    }
+
+    public MyList<V> valuesOf(K key) {
+        MyList<V> result = new MyList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i) == key) {
+                result.add(values.get(i));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,107 @@
+package com.kt.codegen.maven;
+
+
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+
+/**
+ * Generates code from all {@code @Derive} and {@code @Instantiate} templates in the source
+ * directory and adds the output directory as a compile source root. Templates whose generated
+ * code is up to date are skipped, and generated files are only rewritten if their content
+ * changed.
+ *
+ * <p>When using this goal, annotation processing of the code generator should be disabled in
+ * the compiler plugin (e.g. with {@code <proc>none</proc>}) to avoid generating everything twice.
+ * The {@code codegen.classList} option of the annotation processor isn't supported, i.e., no class
+ * list for CDS archives is written.
+ */
+@Mojo(
+        name = "generate",
+        defaultPhase = LifecyclePhase.GENERATE_SOURCES,
+        requiresDependencyResolution = ResolutionScope.COMPILE,
+        threadSafe = true)
+public class GenerateMojo extends AbstractMojo {
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    /**
+     * The source directory to scan for templates.
+     */
+    @Parameter(defaultValue = "${project.build.sourceDirectory}", required = true)
+    private File sourceDirectory;
+
+    /**
+     * The directory to write the generated source files to.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/generated-sources/java-code-gen", required = true)
+    private File outputDirectory;
+
+    /**
+     * The manifest used to determine which templates are up to date.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/java-code-gen/manifest.properties", required = true)
+    private File manifestFile;
+
+    /**
+     * The number of templates to process in parallel; 0 means one per available processor.
+     */
+    @Parameter(property = "codegen.threads", defaultValue = "0")
+    private int threads;
+
+    /**
+     * Skips code generation.
+     */
+    @Parameter(property = "codegen.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (skip) {
+            getLog().info("Skipping code generation");
+            return;
+        }
+        if (threads < 0) {
+            throw new MojoExecutionException("threads must not be negative but was " + threads);
+        }
+
+        List<Path> classpath;
+        try {
+            classpath = project.getCompileClasspathElements().stream()
+                    .map(Path::of)
+                    .collect(Collectors.toList());
+        } catch (DependencyResolutionRequiredException ex) {
+            throw new MojoExecutionException("Could not resolve the compile classpath", ex);
+        }
+
+        SourceGenerator generator = new SourceGenerator(
+                sourceDirectory.toPath(),
+                outputDirectory.toPath(),
+                manifestFile.toPath(),
+                classpath,
+                threads == 0 ? Runtime.getRuntime().availableProcessors() : threads,
+                message -> getLog().info(message));
+        try {
+            generator.generate();
+        } catch (IOException ex) {
+            throw new MojoExecutionException("Code generation failed: " + ex.getMessage(), ex);
+        } catch (SourceGenerator.GenerationException ex) {
+            throw new MojoFailureException(ex.getMessage(), ex);
+        }
+
+        project.addCompileSourceRoot(outputDirectory.getPath());
+    }
+}
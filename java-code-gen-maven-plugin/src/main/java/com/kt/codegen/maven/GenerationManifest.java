@@ -0,0 +1,153 @@
+package com.kt.codegen.maven;
+
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+
+/**
+ * Records, for each template, its modification time and content hash at the time code was
+ * generated from it, together with the (relative) paths of the generated files and the (relative)
+ * paths and content hashes of the other source files it depends on. The manifest is stored as a
+ * properties file with one line per template:
+ *
+ * <pre>
+ * com/acme/MyList.java=1624523450000|3f2a...|com/acme/MyListDouble.java,com/acme/MyListInt.java|com/acme/Tick.java=9c1e...
+ * </pre>
+ */
+final class GenerationManifest {
+    private static final String PROCESSOR_KEY = "#processor";
+
+    private final String processorFingerprint;
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param processorFingerprint The version of the code generator the entries are valid for.
+     */
+    GenerationManifest(String processorFingerprint) {
+        this.processorFingerprint = processorFingerprint;
+    }
+
+    /**
+     * Reads a manifest. A missing or unreadable manifest, or one written by a different version of
+     * the code generator, yields an empty manifest so that all templates are processed again.
+     *
+     * @param file The manifest file.
+     * @param processorFingerprint The current version of the code generator.
+     * @return The manifest.
+     */
+    static GenerationManifest read(Path file, String processorFingerprint) {
+        GenerationManifest manifest = new GenerationManifest(processorFingerprint);
+        if (!Files.isRegularFile(file)) {
+            return manifest;
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException | IllegalArgumentException ex) {
+            return manifest;
+        }
+        if (!processorFingerprint.equals(properties.getProperty(PROCESSOR_KEY))) {
+            return manifest;
+        }
+
+        for (String template : properties.stringPropertyNames()) {
+            if (!template.equals(PROCESSOR_KEY)) {
+                Entry entry = Entry.parse(properties.getProperty(template));
+                if (entry != null) {
+                    manifest.put(template, entry);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes this manifest.
+     *
+     * @param file The manifest file.
+     * @throws IOException If writing failed.
+     */
+    void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Properties properties = new Properties();
+        properties.setProperty(PROCESSOR_KEY, processorFingerprint);
+        entries.forEach((template, entry) -> properties.setProperty(template, entry.format()));
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            properties.store(writer, "java-code-gen manifest, do not edit");
+        }
+    }
+
+    Entry entry(String template) {
+        return entries.get(template);
+    }
+
+    void put(String template, Entry entry) {
+        entries.put(template, entry);
+    }
+
+    /**
+     * @return The generated files of all templates.
+     */
+    Set<String> allOutputs() {
+        Set<String> outputs = new TreeSet<>();
+        entries.values().forEach(entry -> outputs.addAll(entry.outputs()));
+        return outputs;
+    }
+
+    /**
+     * The manifest entry of a template.
+     *
+     * @param lastModified The modification time of the template in milliseconds.
+     * @param hash The content hash of the template.
+     * @param outputs The paths of the generated files relative to the output directory.
+     * @param dependencies The content hashes of the other source files the generated files depend
+     *                     on, e.g. flattened records and referenced templates, by path relative to
+     *                     the source root.
+     */
+    record Entry(long lastModified, String hash, List<String> outputs, Map<String, String> dependencies) {
+        private static Entry parse(String value) {
+            String[] parts = value.split("\\|", -1);
+            if (parts.length != 4) {
+                return null;
+            }
+            try {
+                List<String> outputs = parts[2].isEmpty() ? List.of() : Arrays.asList(parts[2].split(","));
+                Map<String, String> dependencies = new TreeMap<>();
+                if (!parts[3].isEmpty()) {
+                    for (String dependency : parts[3].split(",")) {
+                        int separator = dependency.lastIndexOf('=');
+                        if (separator < 0) {
+                            return null;
+                        }
+                        dependencies.put(dependency.substring(0, separator), dependency.substring(separator + 1));
+                    }
+                }
+                return new Entry(Long.parseLong(parts[0]), parts[1], List.copyOf(outputs), dependencies);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        private String format() {
+            StringJoiner formattedDependencies = new StringJoiner(",");
+            new TreeMap<>(dependencies).forEach((file, hash) -> formattedDependencies.add(file + "=" + hash));
+            return lastModified + "|" + hash + "|" + String.join(",", outputs) + "|" + formattedDependencies;
+        }
+    }
+}
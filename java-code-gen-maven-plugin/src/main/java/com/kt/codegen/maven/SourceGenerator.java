@@ -0,0 +1,414 @@
+package com.kt.codegen.maven;
+
+
+import com.kt.codegen.CodeGeneratorException;
+import com.kt.codegen.CodeGeneratorProcessor;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Generates code from all templates (i.e., classes annotated with {@code @Derive},
+ * {@code @Instantiate}, {@code @InstantiateAll} or their containers) below a source root, outside of the regular
+ * compilation. Each template is run through {@link CodeGeneratorProcessor} in a separate
+ * {@code -proc:only} compilation, and templates are processed in parallel.
+ *
+ * <p>A {@link GenerationManifest} records the modification time and content hash of each template
+ * together with the files generated from it and the content hashes of the other source files the
+ * compiler parsed for it, e.g. flattened records and referenced templates. A template is only
+ * processed again if its modification time and content hash changed, if any of these source files
+ * changed or if any of its generated files is missing.
+ * Generated files whose content didn't change are not rewritten, so their modification time is
+ * kept and downstream incremental compilation doesn't see them as changed.
+ */
+public final class SourceGenerator {
+    private static final String SOURCE_ROOT_OPTION = "codegen.sourceRoot";
+    private static final Pattern TEMPLATE_ANNOTATION = Pattern.compile(
+            "@\\s*(?:com\\.kt\\.codegen\\.)?(Derive|Derivatives|Instantiate|Instantiations|InstantiateAll)\\s*\\(");
+
+    private final Path sourceRoot;
+    private final Path outputDirectory;
+    private final Path manifestFile;
+    private final Path workDirectory;
+    private final List<Path> classpath;
+    private final int threads;
+    private final Consumer<String> log;
+
+    /**
+     * Constructor.
+     *
+     * @param sourceRoot The source root to scan for templates.
+     * @param outputDirectory The directory to write the generated source files to.
+     * @param manifestFile The manifest file used for up-to-date checks.
+     * @param classpath The compile classpath the templates depend on.
+     * @param threads The number of templates to process in parallel.
+     * @param log Receives progress messages.
+     */
+    public SourceGenerator(Path sourceRoot, Path outputDirectory, Path manifestFile, List<Path> classpath, int threads, Consumer<String> log) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive but was " + threads);
+        }
+        this.sourceRoot = sourceRoot.toAbsolutePath().normalize();
+        this.outputDirectory = outputDirectory.toAbsolutePath().normalize();
+        this.manifestFile = manifestFile.toAbsolutePath().normalize();
+        this.workDirectory = this.manifestFile.resolveSibling(this.manifestFile.getFileName() + ".work");
+        this.classpath = List.copyOf(classpath);
+        this.threads = threads;
+        this.log = log;
+    }
+
+    /**
+     * Generates the code of all templates that are not up to date.
+     *
+     * @return Statistics of what was done.
+     * @throws IOException If reading or writing files failed.
+     * @throws GenerationException If code generation failed for any template.
+     */
+    public Result generate() throws IOException, GenerationException {
+        String processorFingerprint;
+        try {
+            processorFingerprint = CodeGeneratorProcessor.fingerprint();
+        } catch (CodeGeneratorException ex) {
+            throw new GenerationException(ex.getMessage());
+        }
+        GenerationManifest previous = GenerationManifest.read(manifestFile, processorFingerprint);
+        GenerationManifest next = new GenerationManifest(processorFingerprint);
+
+        List<Path> templates = findTemplates(previous);
+        List<TemplateInput> stale = new ArrayList<>();
+        Map<String, String> dependencyHashes = new HashMap<>();
+        for (Path template : templates) {
+            TemplateInput input = TemplateInput.of(sourceRoot, template);
+            GenerationManifest.Entry entry = previous.entry(input.relativePath());
+            if (entry != null && isUpToDate(input, entry, dependencyHashes)) {
+                next.put(input.relativePath(), new GenerationManifest.Entry(
+                        input.lastModified(), entry.hash(), entry.outputs(), entry.dependencies()));
+            } else {
+                stale.add(input);
+            }
+        }
+
+        List<TemplateOutput> outputs = generate(stale);
+
+        int written = 0;
+        int unchanged = 0;
+        for (TemplateOutput output : outputs) {
+            next.put(output.input().relativePath(), new GenerationManifest.Entry(
+                    output.input().lastModified(), output.hash(), output.outputs(), output.dependencies()));
+            written += output.written();
+            unchanged += output.unchanged();
+        }
+
+        // remove outputs of deleted templates and outputs a template no longer generates
+        Set<String> stillGenerated = next.allOutputs();
+        int deleted = 0;
+        for (String output : previous.allOutputs()) {
+            if (!stillGenerated.contains(output) && Files.deleteIfExists(outputDirectory.resolve(output))) {
+                deleted++;
+            }
+        }
+
+        next.write(manifestFile);
+        Result result = new Result(templates.size(), stale.size(), written, unchanged, deleted);
+        log.accept(result.toString());
+        return result;
+    }
+
+    private List<Path> findTemplates(GenerationManifest previous) throws IOException {
+        if (!Files.isDirectory(sourceRoot)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.walk(sourceRoot)) {
+            List<Path> javaFiles = files
+                    .filter(file -> file.getFileName().toString().endsWith(".java"))
+                    .filter(Files::isRegularFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+            List<Path> templates = new ArrayList<>();
+            for (Path file : javaFiles) {
+                GenerationManifest.Entry entry = previous.entry(toManifestPath(sourceRoot.relativize(file)));
+                if (entry != null && entry.lastModified() == Files.getLastModifiedTime(file).toMillis()) {
+                    // known template, unchanged
+                    templates.add(file);
+                } else if (TEMPLATE_ANNOTATION.matcher(Files.readString(file, StandardCharsets.UTF_8)).find()) {
+                    templates.add(file);
+                }
+            }
+            return templates;
+        }
+    }
+
+    /**
+     * @param dependencyHashes The content hashes of the dependencies checked so far, by relative
+     *                         path, so that dependencies shared by templates are only hashed once.
+     */
+    private boolean isUpToDate(TemplateInput input, GenerationManifest.Entry entry, Map<String, String> dependencyHashes)
+            throws IOException {
+        for (String output : entry.outputs()) {
+            if (!Files.isRegularFile(outputDirectory.resolve(output))) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, String> dependency : entry.dependencies().entrySet()) {
+            String relativePath = dependency.getKey();
+            if (!dependencyHashes.containsKey(relativePath)) {
+                Path file = sourceRoot.resolve(relativePath);
+                dependencyHashes.put(relativePath, Files.isRegularFile(file) ? hash(Files.readAllBytes(file)) : null);
+            }
+            if (!dependency.getValue().equals(dependencyHashes.get(relativePath))) {
+                return false;
+            }
+        }
+        // the content hash is only computed if the modification time changed: a touched but
+        // otherwise unchanged template is up to date as well
+        return entry.lastModified() == input.lastModified() || entry.hash().equals(input.hash());
+    }
+
+    private List<TemplateOutput> generate(List<TemplateInput> inputs) throws IOException, GenerationException {
+        if (inputs.isEmpty()) {
+            return List.of();
+        }
+
+        deleteRecursively(workDirectory);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, inputs.size()), runnable -> {
+            Thread thread = new Thread(runnable, "java-code-gen");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Path> scratchDirectories = new ArrayList<>();
+            List<Future<Map<String, String>>> futures = new ArrayList<>();
+            for (int i = 0; i < inputs.size(); i++) {
+                TemplateInput input = inputs.get(i);
+                Path scratchDirectory = workDirectory.resolve(Integer.toString(i));
+                scratchDirectories.add(scratchDirectory);
+                futures.add(executor.submit(() -> generate(input, scratchDirectory)));
+            }
+
+            // generated files are copied on this thread, since templates referring to the same
+            // template may generate the same instantiations
+            List<TemplateOutput> outputs = new ArrayList<>();
+            List<String> errors = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    outputs.add(copyOutputs(inputs.get(i), scratchDirectories.get(i), futures.get(i).get()));
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof GenerationException) {
+                        errors.add(cause.getMessage());
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else {
+                        throw new IllegalStateException(cause);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new GenerationException("Interrupted while generating code");
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw new GenerationException(String.join("\n", errors));
+            }
+            return outputs;
+        } finally {
+            executor.shutdownNow();
+            deleteRecursively(workDirectory);
+        }
+    }
+
+    /**
+     * Runs the code generator on a template.
+     *
+     * @return The content hashes of the other files below the source root that the compiler parsed,
+     * i.e., that the generated code may depend on, by relative path.
+     */
+    private Map<String, String> generate(TemplateInput input, Path scratchDirectory) throws IOException, GenerationException {
+        log.accept("Generating code from " + input.relativePath());
+        Files.createDirectories(scratchDirectory);
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new GenerationException("No Java compiler available, make sure to run Maven with a JDK");
+        }
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, Locale.ROOT, StandardCharsets.UTF_8)) {
+            fileManager.setLocationFromPaths(StandardLocation.SOURCE_PATH, List.of(sourceRoot));
+            fileManager.setLocationFromPaths(StandardLocation.CLASS_PATH, classpath);
+            fileManager.setLocationFromPaths(StandardLocation.SOURCE_OUTPUT, List.of(scratchDirectory));
+            fileManager.setLocationFromPaths(StandardLocation.CLASS_OUTPUT, List.of(scratchDirectory));
+
+            List<String> options = List.of(
+                    "-proc:only",
+                    "-implicit:none",
+                    "-A" + SOURCE_ROOT_OPTION + "=" + sourceRoot);
+            JavaCompiler.CompilationTask task = compiler.getTask(
+                    null, fileManager, diagnostics, options, null, fileManager.getJavaFileObjects(input.file()));
+            task.setProcessors(List.of(new CodeGeneratorProcessor()));
+            Set<Path> parsedFiles = new TreeSet<>();
+            if (task instanceof JavacTask) {
+                ((JavacTask) task).addTaskListener(new TaskListener() {
+                    @Override
+                    public void finished(TaskEvent event) {
+                        if (event.getKind() == TaskEvent.Kind.PARSE && event.getSourceFile() != null
+                                && "file".equals(event.getSourceFile().toUri().getScheme())) {
+                            parsedFiles.add(Path.of(event.getSourceFile().toUri()).toAbsolutePath().normalize());
+                        }
+                    }
+                });
+            }
+            if (!task.call()) {
+                String errors = diagnostics.getDiagnostics().stream()
+                        .filter(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                        .map(diagnostic -> diagnostic.getMessage(Locale.ROOT))
+                        .collect(Collectors.joining("\n  "));
+                throw new GenerationException("Failed to generate code from " + input.relativePath() + ":\n  " + errors);
+            }
+
+            Map<String, String> dependencies = new TreeMap<>();
+            for (Path file : parsedFiles) {
+                // generated files are parsed in later rounds, but they are below the scratch directory
+                if (file.startsWith(sourceRoot) && !file.equals(input.file()) && Files.isRegularFile(file)) {
+                    dependencies.put(toManifestPath(sourceRoot.relativize(file)), hash(Files.readAllBytes(file)));
+                }
+            }
+            return dependencies;
+        }
+    }
+
+    private TemplateOutput copyOutputs(TemplateInput input, Path scratchDirectory, Map<String, String> dependencies)
+            throws IOException {
+        List<String> outputs = new ArrayList<>();
+        int written = 0;
+        int unchanged = 0;
+        try (Stream<Path> files = Files.walk(scratchDirectory)) {
+            for (Path generated : (Iterable<Path>) files.filter(Files::isRegularFile).sorted()::iterator) {
+                String relativePath = toManifestPath(scratchDirectory.relativize(generated));
+                Path target = outputDirectory.resolve(relativePath);
+                if (Files.isRegularFile(target) && Arrays.equals(Files.readAllBytes(target), Files.readAllBytes(generated))) {
+                    unchanged++;
+                } else {
+                    Files.createDirectories(target.getParent());
+                    Files.copy(generated, target, StandardCopyOption.REPLACE_EXISTING);
+                    written++;
+                }
+                outputs.add(relativePath);
+            }
+        }
+        return new TemplateOutput(input, input.hash(), outputs, dependencies, written, unchanged);
+    }
+
+    static String toManifestPath(Path relativePath) {
+        return relativePath.toString().replace('\\', '/');
+    }
+
+    static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * A template to generate code from.
+     */
+    private record TemplateInput(Path file, String relativePath, long lastModified) {
+        static TemplateInput of(Path sourceRoot, Path file) throws IOException {
+            return new TemplateInput(file, toManifestPath(sourceRoot.relativize(file)), Files.getLastModifiedTime(file).toMillis());
+        }
+
+        String hash() throws IOException {
+            return SourceGenerator.hash(Files.readAllBytes(file));
+        }
+    }
+
+    /**
+     * The files generated from a template.
+     */
+    private record TemplateOutput(
+            TemplateInput input, String hash, List<String> outputs, Map<String, String> dependencies, int written, int unchanged) {
+    }
+
+    /**
+     * Statistics of a {@link #generate()} run.
+     *
+     * @param templates The number of templates found.
+     * @param processed The number of templates that were not up to date and therefore processed.
+     * @param written The number of generated files that were new or changed and thus written.
+     * @param unchanged The number of generated files that were identical to the existing ones.
+     * @param deleted The number of stale generated files that were deleted.
+     */
+    public record Result(int templates, int processed, int written, int unchanged, int deleted) {
+        @Override
+        public String toString() {
+            return templates + " templates, " + (templates - processed) + " up to date, " + processed + " processed: "
+                    + written + " files written, " + unchanged + " unchanged, " + deleted + " deleted";
+        }
+    }
+
+    /**
+     * Thrown if code generation failed.
+     */
+    public static final class GenerationException extends Exception {
+        GenerationException(String message) {
+            super(message);
+        }
+    }
+}
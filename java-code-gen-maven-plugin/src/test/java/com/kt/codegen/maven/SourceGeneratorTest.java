@@ -0,0 +1,186 @@
+package com.kt.codegen.maven;
+
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class SourceGeneratorTest {
+    private static final String TEMPLATE = """
+            package a.b.c;
+
+            import com.kt.codegen.Instantiate;
+
+            @Instantiate(Double.class)
+            @Instantiate(Integer.class)
+            public class Box<T> {
+                T value;
+            }
+            """;
+
+    @Test
+    public void generatesOnlyWhatChanged(@TempDir Path tempDir) throws Exception {
+        Path sourceRoot = tempDir.resolve("src");
+        Path outputDirectory = tempDir.resolve("generated");
+        Path template = sourceRoot.resolve("a/b/c/Box.java");
+        Files.createDirectories(template.getParent());
+        Files.writeString(template, TEMPLATE);
+        Files.writeString(sourceRoot.resolve("a/b/c/Plain.java"), "package a.b.c;\npublic class Plain {}\n");
+        List<String> log = new ArrayList<>();
+        SourceGenerator generator = new SourceGenerator(
+                sourceRoot, outputDirectory, tempDir.resolve("manifest.properties"), classpath(), 2, log::add);
+
+        // initial generation
+        assertEquals(new SourceGenerator.Result(1, 1, 2, 0, 0), generator.generate());
+        Path boxDouble = outputDirectory.resolve("a/b/c/BoxDouble.java");
+        assertTrue(Files.readString(boxDouble).contains("public class BoxDouble {"));
+        assertTrue(Files.isRegularFile(outputDirectory.resolve("a/b/c/BoxInteger.java")));
+
+        // up to date
+        FileTime generated = FileTime.fromMillis(1_000_000_000_000L);
+        Files.setLastModifiedTime(boxDouble, generated);
+        assertEquals(new SourceGenerator.Result(1, 0, 0, 0, 0), generator.generate());
+
+        // touched but unchanged
+        Files.setLastModifiedTime(template, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        assertEquals(new SourceGenerator.Result(1, 0, 0, 0, 0), generator.generate());
+
+        // changed: only changed outputs are written, outputs no longer generated are deleted
+        Files.writeString(template, TEMPLATE.replace("@Instantiate(Integer.class)\n", "@Instantiate(Long.class)\n"));
+        assertEquals(new SourceGenerator.Result(1, 1, 1, 1, 1), generator.generate());
+        assertEquals(generated, Files.getLastModifiedTime(boxDouble));
+        assertTrue(Files.isRegularFile(outputDirectory.resolve("a/b/c/BoxLong.java")));
+        assertFalse(Files.exists(outputDirectory.resolve("a/b/c/BoxInteger.java")));
+
+        // missing output
+        Files.delete(boxDouble);
+        assertEquals(new SourceGenerator.Result(1, 1, 1, 1, 0), generator.generate());
+        assertTrue(Files.isRegularFile(boxDouble));
+    }
+
+    @Test
+    public void instantiatesTemplatesReferencedFromOtherTemplates(@TempDir Path tempDir) throws Exception {
+        Path sourceRoot = tempDir.resolve("src");
+        Path outputDirectory = tempDir.resolve("generated");
+        Files.createDirectories(sourceRoot.resolve("a/b/c"));
+        Files.writeString(sourceRoot.resolve("a/b/c/Bag.java"), """
+                package a.b.c;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate(double.class)
+                public class Bag<T> {
+                    T[] values;
+                }
+                """);
+        Files.writeString(sourceRoot.resolve("a/b/c/Table.java"), """
+                package a.b.c;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate(double.class)
+                @Instantiate(int.class)
+                public class Table<K> {
+                    Bag<K> keys = new Bag<>();
+                }
+                """);
+        SourceGenerator generator = new SourceGenerator(
+                sourceRoot, outputDirectory, tempDir.resolve("manifest.properties"), classpath(), 2, message -> { });
+
+        // each template is processed on its own: Table generates the instantiations of Bag it
+        // refers to as well, the same BagDouble as Bag and BagInt, which Bag doesn't
+        assertEquals(new SourceGenerator.Result(2, 2, 4, 1, 0), generator.generate());
+        assertTrue(Files.readString(outputDirectory.resolve("a/b/c/TableDouble.java")).contains("BagDouble keys = new BagDouble();"));
+        assertTrue(Files.readString(outputDirectory.resolve("a/b/c/TableInt.java")).contains("BagInt keys = new BagInt();"));
+        assertTrue(Files.readString(outputDirectory.resolve("a/b/c/BagInt.java")).contains("int[] values;"));
+        assertTrue(Files.isRegularFile(outputDirectory.resolve("a/b/c/BagDouble.java")));
+    }
+
+    @Test
+    public void regeneratesTemplatesWhoseDependenciesChanged(@TempDir Path tempDir) throws Exception {
+        Path sourceRoot = tempDir.resolve("src");
+        Path outputDirectory = tempDir.resolve("generated");
+        Files.createDirectories(sourceRoot.resolve("a/b/c"));
+        Path tick = sourceRoot.resolve("a/b/c/Tick.java");
+        Files.writeString(tick, "package a.b.c;\npublic record Tick(long time, double price) {}\n");
+        Files.writeString(sourceRoot.resolve("a/b/c/Series.java"), """
+                package a.b.c;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate(value = Tick.class, flatten = true)
+                public class Series<T extends Tick> {
+                    T[] ticks = (T[]) new Object[16];
+                }
+                """);
+        SourceGenerator generator = new SourceGenerator(
+                sourceRoot, outputDirectory, tempDir.resolve("manifest.properties"), classpath(), 2, message -> { });
+
+        assertEquals(new SourceGenerator.Result(1, 1, 1, 0, 0), generator.generate());
+        Path seriesTick = outputDirectory.resolve("a/b/c/SeriesTick.java");
+        assertTrue(Files.readString(seriesTick).contains("double[] ticksPrice"));
+
+        // touched but unchanged record
+        Files.setLastModifiedTime(tick, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        assertEquals(new SourceGenerator.Result(1, 0, 0, 0, 0), generator.generate());
+
+        // the record's components changed, so the flattened arrays do
+        Files.writeString(tick, "package a.b.c;\npublic record Tick(long time, double price, int size) {}\n");
+        assertEquals(new SourceGenerator.Result(1, 1, 1, 0, 0), generator.generate());
+        assertTrue(Files.readString(seriesTick).contains("int[] ticksSize"));
+    }
+
+    @Test
+    public void regeneratesTemplatesReferringToChangedTemplates(@TempDir Path tempDir) throws Exception {
+        Path sourceRoot = tempDir.resolve("src");
+        Path outputDirectory = tempDir.resolve("generated");
+        Files.createDirectories(sourceRoot.resolve("a/b/c"));
+        Path bag = sourceRoot.resolve("a/b/c/Bag.java");
+        Files.writeString(bag, """
+                package a.b.c;
+
+                public class Bag<T> {
+                    T[] values;
+                }
+                """);
+        Files.writeString(sourceRoot.resolve("a/b/c/Table.java"), """
+                package a.b.c;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate(int.class)
+                public class Table<K> {
+                    Bag<K> keys = new Bag<>();
+                }
+                """);
+        SourceGenerator generator = new SourceGenerator(
+                sourceRoot, outputDirectory, tempDir.resolve("manifest.properties"), classpath(), 2, message -> { });
+
+        assertEquals(new SourceGenerator.Result(1, 1, 2, 0, 0), generator.generate());
+        assertEquals(new SourceGenerator.Result(1, 0, 0, 0, 0), generator.generate());
+
+        // Bag isn't a template itself, but the BagInt generated for Table changes
+        Files.writeString(bag, Files.readString(bag).replace("T[] values;", "T[] values;\n    int size;"));
+        assertEquals(new SourceGenerator.Result(1, 1, 1, 1, 0), generator.generate());
+        assertTrue(Files.readString(outputDirectory.resolve("a/b/c/BagInt.java")).contains("int size;"));
+    }
+
+    private static List<Path> classpath() {
+        return Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(Path::of)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,158 @@
+package com.kt.codegen;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+
+/**
+ * Replaces a set of plain search terms simultaneously in a single linear scan, using an
+ * Aho-Corasick automaton. Matches are selected with leftmost-longest semantics: scanning from
+ * left to right, the longest search term starting at the current position is replaced and
+ * scanning resumes after it. If several identical search terms are given, the first one wins.
+ */
+final class AhoCorasickReplacer {
+    private final String[] from;
+    private final String[] to;
+    private final int[] firstEqualTerm;
+
+    // trie, indexed by node
+    private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+    private final List<Integer> failures = new ArrayList<>();
+    private final List<Integer> terms = new ArrayList<>();  // index of term ending at node, or -1
+    private final List<Integer> outputLinks = new ArrayList<>();  // next node on failure chain with a term, or -1
+
+    /**
+     * Constructor.
+     *
+     * @param from The search terms, must not be empty.
+     * @param to The replacements, one for each search term.
+     */
+    AhoCorasickReplacer(String[] from, String[] to) {
+        if (from.length != to.length) {
+            throw new IllegalArgumentException("Expected as many replacements as search terms");
+        }
+        this.from = from;
+        this.to = to;
+        this.firstEqualTerm = new int[from.length];
+
+        newNode();
+        for (int i = 0; i < from.length; i++) {
+            if (from[i].isEmpty()) {
+                throw new IllegalArgumentException("Search terms must not be empty");
+            }
+            addTerm(from[i], i);
+        }
+        buildFailureLinks();
+    }
+
+    /**
+     * Replaces all search terms in the given text.
+     *
+     * @param text The text to replace the search terms in.
+     * @return The replacement result.
+     */
+    Result replace(EditBuffer text) {
+        int length = text.length();
+        boolean[] found = new boolean[from.length];
+
+        // longest[s] = 1 + index of the longest term starting at s, or 0 if none
+        int[] longest = new int[length];
+        int node = 0;
+        for (int i = 0; i < length; i++) {
+            node = next(node, text.charAt(i));
+            for (int n = terms.get(node) >= 0 ? node : outputLinks.get(node); n >= 0; n = outputLinks.get(n)) {
+                int term = terms.get(n);
+                found[term] = true;
+                int start = i - from[term].length() + 1;
+                int current = longest[start] - 1;
+                if (current < 0 || from[term].length() > from[current].length()) {
+                    longest[start] = term + 1;
+                }
+            }
+        }
+
+        EditBuffer.Editor editor = text.edit();
+        int i = 0;
+        while (i < length) {
+            int term = longest[i] - 1;
+            if (term >= 0) {
+                editor.replace(i, i + from[term].length(), to[term]);
+                i += from[term].length();
+            } else {
+                i++;
+            }
+        }
+
+        for (int term = 0; term < from.length; term++) {
+            found[term] = found[firstEqualTerm[term]];
+        }
+        return new Result(editor.apply(), found);
+    }
+
+    private int next(int node, char c) {
+        while (true) {
+            Integer next = transitions.get(node).get(c);
+            if (next != null) {
+                return next;
+            }
+            if (node == 0) {
+                return 0;
+            }
+            node = failures.get(node);
+        }
+    }
+
+    private int newNode() {
+        transitions.add(new HashMap<>());
+        failures.add(0);
+        terms.add(-1);
+        outputLinks.add(-1);
+        return transitions.size() - 1;
+    }
+
+    private void addTerm(String term, int index) {
+        int node = 0;
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            Integer next = transitions.get(node).get(c);
+            if (next == null) {
+                next = newNode();
+                transitions.get(node).put(c, next);
+            }
+            node = next;
+        }
+        if (terms.get(node) < 0) {
+            terms.set(node, index);
+        }
+        firstEqualTerm[index] = terms.get(node);
+    }
+
+    private void buildFailureLinks() {
+        Queue<Integer> queue = new ArrayDeque<>(transitions.get(0).values());
+        while (!queue.isEmpty()) {
+            int node = queue.remove();
+            for (Map.Entry<Character, Integer> transition : transitions.get(node).entrySet()) {
+                int child = transition.getValue();
+                int failure = next(failures.get(node), transition.getKey());
+                failures.set(child, failure);
+                outputLinks.set(child, terms.get(failure) >= 0 ? failure : outputLinks.get(failure));
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * The result of a replacement.
+     *
+     * @param text The text with all search terms replaced.
+     * @param found For each search term, whether it occurred in the original text at least once
+     *              (even if it was not replaced because a longer overlapping term took precedence).
+     */
+    record Result(EditBuffer text, boolean[] found) {
+    }
+}
@@ -0,0 +1,144 @@
+package com.kt.codegen;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+
+/**
+ * Builds a CDS (class data sharing) archive of the classes generated by the code generator, so
+ * that applications loading many instantiations start and warm up faster. The classes are taken
+ * from the class list resources that {@link CodeGeneratorProcessor} writes if its
+ * {@code codegen.classList} option is {@code true}, in all JARs of the class path:
+ * <pre>{@code
+ * java -cp java-code-gen.jar com.kt.codegen.CdsArchive app.jsa app.jar:lib/dependency.jar
+ * java -XX:SharedArchiveFile=app.jsa -cp app.jar:lib/dependency.jar ...
+ * }</pre>
+ * The archive also contains the JDK's default classes, and it has to be used with the same JVM
+ * and the same class path (or one that starts with it). Note that the JVM only archives classes
+ * loaded from JARs, not from directories.
+ */
+public final class CdsArchive {
+    private CdsArchive() {
+    }
+
+    /**
+     * Dumps a CDS archive, see {@link #dump(List, Path)}.
+     *
+     * @param args The archive file and the class path, e.g. {@code app.jsa app.jar:lib/dependency.jar}.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java " + CdsArchive.class.getName() + " <archive file> <class path>");
+            System.exit(1);
+        }
+        List<Path> classPath = new ArrayList<>();
+        for (String entry : args[1].split(File.pathSeparator)) {
+            classPath.add(Path.of(entry));
+        }
+        dump(classPath, Path.of(args[0]));
+    }
+
+    /**
+     * Reads the class lists of a class path.
+     *
+     * @param classLoader The class loader to read the class list resources from.
+     * @return The binary names with slashes of the generated classes, in dependency order per
+     * class list, without duplicates.
+     * @throws CodeGeneratorException If a class list can't be read.
+     */
+    public static List<String> classList(ClassLoader classLoader) {
+        Set<String> classNames = new LinkedHashSet<>();
+        try {
+            Enumeration<URL> resources = classLoader.getResources(ClassList.RESOURCE);
+            while (resources.hasMoreElements()) {
+                try (InputStream in = resources.nextElement().openStream()) {
+                    new String(in.readAllBytes(), StandardCharsets.UTF_8).lines()
+                            .map(String::strip)
+                            .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                            .forEach(classNames::add);
+                }
+            }
+        } catch (IOException ex) {
+            throw new CodeGeneratorException("Could not read " + ClassList.RESOURCE + ": " + ex.getMessage());
+        }
+        return new ArrayList<>(classNames);
+    }
+
+    /**
+     * Dumps a CDS archive of the JDK's default classes and the generated classes listed by the
+     * class lists of the given class path, with the JVM this method runs on.
+     *
+     * @param classPath The class path of the application, JARs only.
+     * @param archiveFile The archive file to write, e.g. {@code app.jsa}.
+     * @throws CodeGeneratorException If dumping fails.
+     */
+    public static void dump(List<Path> classPath, Path archiveFile) {
+        List<String> classNames;
+        try (URLClassLoader classLoader = new URLClassLoader(urls(classPath), ClassLoader.getPlatformClassLoader())) {
+            classNames = classList(classLoader);
+        } catch (IOException ex) {
+            throw new CodeGeneratorException("Could not read the class path: " + ex.getMessage());
+        }
+
+        Path classListFile = null;
+        try {
+            // the given class list replaces the JDK's default one, which is why the latter is included
+            List<String> lines = new ArrayList<>();
+            Path defaultClassList = Path.of(System.getProperty("java.home"), "lib", "classlist");
+            if (Files.isRegularFile(defaultClassList)) {
+                lines.addAll(Files.readAllLines(defaultClassList, StandardCharsets.UTF_8));
+            }
+            lines.addAll(classNames);
+            classListFile = Files.createTempFile("codegen", ".classlist");
+            Files.write(classListFile, lines, StandardCharsets.UTF_8);
+
+            Process process = new ProcessBuilder(
+                    Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-Xshare:dump",
+                    "-XX:SharedClassListFile=" + classListFile,
+                    "-XX:SharedArchiveFile=" + archiveFile,
+                    "-cp", classPath.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator)))
+                    .redirectErrorStream(true)
+                    .start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                throw new CodeGeneratorException("Could not dump CDS archive " + archiveFile + ":\n" + output);
+            }
+        } catch (IOException ex) {
+            throw new CodeGeneratorException("Could not dump CDS archive " + archiveFile + ": " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CodeGeneratorException("Interrupted while dumping CDS archive " + archiveFile);
+        } finally {
+            if (classListFile != null) {
+                try {
+                    Files.deleteIfExists(classListFile);
+                } catch (IOException ex) {
+                    // a temporary file only
+                }
+            }
+        }
+    }
+
+    private static URL[] urls(List<Path> classPath) throws MalformedURLException {
+        URL[] urls = new URL[classPath.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = classPath.get(i).toUri().toURL();
+        }
+        return urls;
+    }
+}
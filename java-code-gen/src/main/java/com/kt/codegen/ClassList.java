@@ -0,0 +1,79 @@
+package com.kt.codegen;
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Collects the classes generated by a compilation for the class list resource
+ * {@value #RESOURCE}, see {@link CodeGeneratorProcessor}'s {@code codegen.classList} option and
+ * {@link CdsArchive}. The resource has the format of the JDK's class lists, i.e., one binary class
+ * name with slashes per line (e.g. {@code x/y/MyListDouble$Node}) and comment lines starting with
+ * {@code #}. The classes are listed in dependency order: generated types a class extends,
+ * implements or refers to (e.g. companion interfaces and instantiations of other templates) come
+ * before the class, and classes come before their member types.
+ */
+final class ClassList {
+    static final String RESOURCE = "META-INF/codegen/classlist";
+
+    // the generated classes, in the order generated, with the generated classes they depend on
+    private final Map<String, Set<String>> classes = new LinkedHashMap<>();
+
+    /**
+     * Adds a generated class.
+     *
+     * @param className The binary name of the class, with slashes.
+     * @param dependencies The binary names of the generated classes that the class depends on.
+     */
+    void add(String className, List<String> dependencies) {
+        classes.computeIfAbsent(className, c -> new LinkedHashSet<>()).addAll(dependencies);
+    }
+
+    boolean isEmpty() {
+        return classes.isEmpty();
+    }
+
+    /**
+     * @return The classes in dependency order, otherwise in the order added. Cyclic dependencies
+     * (e.g. of templates referring to each other) are broken at the class added first.
+     */
+    List<String> classNames() {
+        Set<String> sorted = new LinkedHashSet<>();
+        Set<String> visiting = new LinkedHashSet<>();
+        for (String className : classes.keySet()) {
+            visit(className, sorted, visiting);
+        }
+        return new ArrayList<>(sorted);
+    }
+
+    private void visit(String className, Set<String> sorted, Set<String> visiting) {
+        if (sorted.contains(className) || !visiting.add(className)) {
+            return;
+        }
+        for (String dependency : classes.getOrDefault(className, Set.of())) {
+            // dependencies that weren't generated (by this compilation) aren't listed
+            if (classes.containsKey(dependency)) {
+                visit(dependency, sorted, visiting);
+            }
+        }
+        visiting.remove(className);
+        sorted.add(className);
+    }
+
+    /**
+     * @return The content of the class list resource.
+     */
+    String toResource() {
+        StringBuilder s = new StringBuilder();
+        s.append("# generated by ").append(CodeGeneratorProcessor.class.getName()).append("\n");
+        for (String className : classNames()) {
+            s.append(className).append("\n");
+        }
+        return s.toString();
+    }
+}
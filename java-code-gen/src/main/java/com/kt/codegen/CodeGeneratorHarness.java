@@ -0,0 +1,38 @@
+package com.kt.codegen;
+
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Runs the code generator on templates held in memory, e.g. for golden tests of templates. The
+ * templates and the generated classes are compiled, but nothing is read from or written to disk
+ * other than the class path, so that any number of generations can run concurrently.
+ *
+ * <p>Example:
+ * <pre>{@code
+ * Map<String, String> generated = CodeGeneratorHarness.generate(
+ *         Map.of("com.acme.Box", "package com.acme; ... @Instantiate(Integer.class) public class Box<T> { ... }"),
+ *         List.of());
+ * assertEquals(expectedSource, generated.get("com.acme.BoxInteger"));
+ * }</pre>
+ */
+public final class CodeGeneratorHarness {
+    private CodeGeneratorHarness() {
+    }
+
+    /**
+     * Generates code from the given templates.
+     *
+     * @param templates The source code of the templates by fully qualified class name. Other
+     *                  classes may be given as well, e.g. types that templates refer to.
+     * @param options The compiler options, e.g. {@code -Acodegen.threads=4} or {@code -classpath}.
+     * @return The generated source code by fully qualified class name, sorted by name.
+     * @throws CodeGeneratorException If the generation or the compilation fails.
+     */
+    public static Map<String, String> generate(Map<String, String> templates, List<String> options) {
+        return new TreeMap<>(InMemoryCompilation.compile(templates, options, TemplateSource.of(templates)).generatedSources());
+    }
+}
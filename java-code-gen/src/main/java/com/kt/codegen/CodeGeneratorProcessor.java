@@ -2,6 +2,13 @@ package com.kt.codegen;
 
 
 import com.google.auto.service.AutoService;
+import com.kt.codegen.TargetClass.Declaration;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.ImportTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.Trees;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Messager;
@@ -9,31 +16,55 @@ import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.annotation.processing.SupportedSourceVersion;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
 import javax.lang.model.element.Name;
+import javax.lang.model.element.RecordComponentElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.TypeParameterElement;
 import javax.lang.model.type.MirroredTypesException;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.FileObject;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.joining;
 import static javax.tools.Diagnostic.Kind.ERROR;
@@ -42,41 +73,357 @@ import static javax.tools.Diagnostic.Kind.NOTE;
 
 /**
  * The annotation processor for {@link Derive} and {@link Instantiate} annotations.
+ *
+ * <p>Supported options (pass them to javac as {@code -A<option>=<value>}):
+ * <ul>
+ *     <li>{@value #THREADS_OPTION}: the number of threads used to generate the target classes of a
+ *     round in parallel (default: 1, i.e., generate on the compiler thread). Files are always
+ *     written, and diagnostics reported, on the compiler thread in a deterministic order.</li>
+ *     <li>{@value #CACHE_DIR_OPTION}: a directory in which generated source code is cached across
+ *     builds (default: no caching). On a cache hit, the cached code is written without running the
+ *     replacement pipeline.</li>
+ *     <li>{@value #CACHE_MAX_SIZE_MB_OPTION}: the maximum size of the cache in megabytes
+ *     (default: {@value #DEFAULT_CACHE_MAX_SIZE_MB}).</li>
+ *     <li>{@value #CACHE_MAX_AGE_DAYS_OPTION}: the number of days after which unused cache entries
+ *     are evicted (default: {@value #DEFAULT_CACHE_MAX_AGE_DAYS}).</li>
+ *     <li>{@value #SOURCE_ROOT_OPTION}: the absolute source root directory to read templates from
+ *     if their source code isn't available from the compiler. Overrides the lookup relative to the
+ *     class output directory (see {@link SourceDirectory}), e.g. for build tools that don't
+ *     compile into the Maven default layout.</li>
+ *     <li>{@value #METRICS_OPTION}: a file to write a JSON report with per-template and per-class
+ *     timings and byte counts to (default: no report). The same measurements are emitted as JFR
+ *     events.</li>
+ *     <li>{@value #QUIET_OPTION}: if {@code true} then the per-class notes are replaced by a single
+ *     summary note (default: {@code false}).</li>
+ *     <li>{@value #INSTANTIATE_OPTION}: instantiations to generate in addition to the annotated
+ *     ones, separated by semicolons, e.g. {@code x.y.MyMap<long,double>;x.y.MyList<double>}. The
+ *     templates need not be annotated and are instantiated with the default settings. If given,
+ *     the instantiations declared by annotations are assumed to exist already (and are only
+ *     referred to), and neither derived classes, method specializations nor companions are
+ *     generated. This is what {@link Specializer} uses at runtime.</li>
+ *     <li>{@value #CLASS_LIST_OPTION}: if {@code true} then the class output gets a resource
+ *     {@value ClassList#RESOURCE} listing all classes generated by the compilation in dependency
+ *     order, in the format of the JDK's class lists, for building a CDS archive (see
+ *     {@link CdsArchive}) (default: {@code false}). Incremental compilations only list what they
+ *     generated.</li>
+ * </ul>
  */
+@SupportedOptions({
+        CodeGeneratorProcessor.SOURCE_ROOT_OPTION,
+        CodeGeneratorProcessor.THREADS_OPTION,
+        CodeGeneratorProcessor.CACHE_DIR_OPTION,
+        CodeGeneratorProcessor.CACHE_MAX_SIZE_MB_OPTION,
+        CodeGeneratorProcessor.CACHE_MAX_AGE_DAYS_OPTION,
+        CodeGeneratorProcessor.METRICS_OPTION,
+        CodeGeneratorProcessor.QUIET_OPTION,
+        CodeGeneratorProcessor.INSTANTIATE_OPTION,
+        CodeGeneratorProcessor.CLASS_LIST_OPTION
+})
 @SupportedAnnotationTypes({
         "com.kt.codegen.Derivatives",
         "com.kt.codegen.Derive",
         "com.kt.codegen.Instantiations",
-        "com.kt.codegen.Instantiate"
+        "com.kt.codegen.Instantiate",
+        "com.kt.codegen.InstantiateAll",
+        "com.kt.codegen.Companion"
 })
 @SupportedSourceVersion(SourceVersion.RELEASE_8)
 @AutoService(Processor.class)
 public class CodeGeneratorProcessor extends AbstractProcessor {
     static final String DEFAULT_RELATIVE_SRC_DIR = "../../src/main/java";
+    static final String SOURCE_ROOT_OPTION = "codegen.sourceRoot";
+    static final String GRADLE_ISOLATING = "org.gradle.annotation.processing.isolating";
+    static final String THREADS_OPTION = "codegen.threads";
+    static final String CACHE_DIR_OPTION = "codegen.cacheDir";
+    static final String CACHE_MAX_SIZE_MB_OPTION = "codegen.cacheMaxSizeMB";
+    static final String CACHE_MAX_AGE_DAYS_OPTION = "codegen.cacheMaxAgeDays";
+    static final String METRICS_OPTION = "codegen.metrics";
+    static final String QUIET_OPTION = "codegen.quiet";
+    static final String INSTANTIATE_OPTION = "codegen.instantiate";
+    static final String CLASS_LIST_OPTION = "codegen.classList";
+    static final int DEFAULT_CACHE_MAX_SIZE_MB = 256;
+    static final int DEFAULT_CACHE_MAX_AGE_DAYS = 30;
 
     private static final Function<String, String> FQ_TO_CLASS = s -> s.substring(s.lastIndexOf('.') + 1);
     private static final Function<String, String> FQ_TO_PACKAGE = s -> s.substring(0, s.lastIndexOf('.'));
     private static final Function<String, String> FIRST_UPPER = s -> s.substring(0, 1).toUpperCase() + s.substring(1);
+    private static final int REGEX_FLAGS = Pattern.MULTILINE | Pattern.DOTALL;
+    private static final Set<String> PRIMITIVES = Set.of("boolean", "byte", "char", "short", "int", "long", "float", "double");
+    // the code generator types that templates may import, all of which are removed
+    private static final Set<String> CODEGEN_IMPORTS = Set.of(
+            Derivatives.class.getName(), Derive.class.getName(), Instantiations.class.getName(),
+            Instantiate.class.getName(), InstantiateAll.class.getName(), TypeSet.class.getName(),
+            TypeFamily.class.getName(), Companion.class.getName(), Replace.class.getName(),
+            ReplacementMode.class.getName(), Sentinel.class.getName(), SourceDirectory.class.getName());
+    // shared by all compilations of the JVM (e.g. of a Gradle daemon), and so are its statistics
+    static final PatternCache PATTERNS = new PatternCache(1024);
+
+    private final TemplateCache templateCache = new TemplateCache();
+    private final List<GenerationTask> tasks = new ArrayList<>();
+    // the instantiations of this round by template, as target class names by qualified concrete type names
+    private final Map<TypeElement, Map<List<String>, String>> instantiated = new LinkedHashMap<>();
+    private final Deque<Instantiation> pendingInstantiations = new ArrayDeque<>();
+    // the templates and the originating elements of their instantiations of this round, e.g. those
+    // of other templates referring to them, which their companions depend on
+    private final Map<TypeElement, Set<TypeElement>> originatingElements = new HashMap<>();
+    private ExecutorService executor;  // null if generating on the compiler thread
+    private GeneratedSourceCache generatedSourceCache;  // null if caching is disabled
+    private final TemplateSource explicitTemplateSource;  // null if not given
+    private TemplateSource templateSource = TemplateSource.none();
+    private Trees trees;  // null if not running in javac
+    private final GenerationMetrics metrics = new GenerationMetrics();
+    private Path metricsFile;  // null if no metrics report is requested
+    private boolean quiet;
+    // the requested instantiations as template name followed by the concrete type names, null if
+    // not running on behalf of the Specializer, empty once registered
+    private List<List<String>> requestedInstantiations;
+    private ClassList classList;  // null if no class list is requested
+
+    /**
+     * Constructor, used when the processor is discovered by the compiler. Template sources
+     * registered as services are consulted before the compiler and the disk.
+     */
+    public CodeGeneratorProcessor() {
+        this.explicitTemplateSource = null;
+    }
+
+    /**
+     * Constructor, e.g. for tests or tools that run the processor programmatically.
+     *
+     * @param templateSource The template source to consult before the compiler and the disk.
+     */
+    public CodeGeneratorProcessor(TemplateSource templateSource) {
+        this.explicitTemplateSource = Objects.requireNonNull(templateSource, "templateSource");
+    }
+
+    /**
+     * @return A hash of the code generator's own class files (or JAR), for tools that keep
+     * generated code across builds and have to discard it when the code generator changes.
+     * @throws CodeGeneratorException If the class files can't be read.
+     */
+    public static String fingerprint() {
+        return GeneratedSourceCache.processorFingerprint();
+    }
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        templateSource = explicitTemplateSource != null ? explicitTemplateSource : loadTemplateSources();
+        try {
+            trees = Trees.instance(processingEnv);
+        } catch (IllegalArgumentException ex) {
+            // not javac (or a wrapped processing environment), read template sources from disk
+            trees = null;
+        }
+        try {
+            int threads = positiveIntOption(THREADS_OPTION, 1);
+            if (threads > 1) {
+                executor = new ForkJoinPool(threads);
+            }
+
+            String metricsPath = processingEnv.getOptions().get(METRICS_OPTION);
+            metricsFile = metricsPath == null ? null : Path.of(metricsPath);
+            quiet = Boolean.parseBoolean(processingEnv.getOptions().get(QUIET_OPTION));
+
+            String instantiate = processingEnv.getOptions().get(INSTANTIATE_OPTION);
+            requestedInstantiations = instantiate == null ? null : parseInstantiations(instantiate);
+            // the classes generated at runtime are never archived
+            boolean listClasses = Boolean.parseBoolean(processingEnv.getOptions().get(CLASS_LIST_OPTION));
+            classList = listClasses && requestedInstantiations == null ? new ClassList() : null;
+
+            String cacheDir = processingEnv.getOptions().get(CACHE_DIR_OPTION);
+            if (cacheDir != null) {
+                generatedSourceCache = new GeneratedSourceCache(
+                        Path.of(cacheDir),
+                        positiveIntOption(CACHE_MAX_SIZE_MB_OPTION, DEFAULT_CACHE_MAX_SIZE_MB) * 1024L * 1024L,
+                        Duration.ofDays(positiveIntOption(CACHE_MAX_AGE_DAYS_OPTION, DEFAULT_CACHE_MAX_AGE_DAYS)));
+            }
+        } catch (CodeGeneratorException ex) {
+            processingEnv.getMessager().printMessage(ERROR, ex.getMessage());
+        }
+    }
+
+    private static TemplateSource loadTemplateSources() {
+        List<TemplateSource> templateSources = new ArrayList<>();
+        ServiceLoader.load(TemplateSource.class, CodeGeneratorProcessor.class.getClassLoader()).forEach(templateSources::add);
+        return templateClassName -> templateSources.stream()
+                .map(templateSource -> templateSource.read(templateClassName))
+                .flatMap(Optional::stream)
+                .findFirst();
+    }
+
+    /**
+     * Parses the value of the {@value #INSTANTIATE_OPTION} option.
+     */
+    private static List<List<String>> parseInstantiations(String value) {
+        List<List<String>> instantiations = new ArrayList<>();
+        for (String instantiation : value.split(";")) {
+            Matcher matcher = PATTERNS.get("\\s*([\\w.$]+)\\s*<([\\w.$,\\s]+)>\\s*", 0).matcher(instantiation);
+            if (!matcher.matches()) {
+                throw new CodeGeneratorException("Invalid value for option " + INSTANTIATE_OPTION
+                        + ", expected e.g. x.y.MyMap<long,double>;x.y.MyList<double>: " + value);
+            }
+            List<String> names = new ArrayList<>();
+            names.add(matcher.group(1));
+            for (String typeName : matcher.group(2).split(",")) {
+                names.add(typeName.trim());
+            }
+            instantiations.add(names);
+        }
+        return instantiations;
+    }
+
+    /**
+     * Reports the processor as isolating to Gradle (which registers it as dynamic), unless it
+     * generates files from all templates of a compilation, see {@link #writeFile}. Gradle then
+     * recompiles everything.
+     */
+    @Override
+    public Set<String> getSupportedOptions() {
+        Set<String> options = new LinkedHashSet<>(super.getSupportedOptions());
+        if (requestedInstantiations == null && classList == null) {
+            options.add(GRADLE_ISOLATING);
+        }
+        return options;
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        // requested templates need not be annotated, so the processor has to run anyway
+        return requestedInstantiations != null ? Set.of("*") : super.getSupportedAnnotationTypes();
+    }
+
+    private int positiveIntOption(String option, int defaultValue) {
+        String value = processingEnv.getOptions().get(option);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value.trim());
+            if (intValue > 0) {
+                return intValue;
+            }
+        } catch (NumberFormatException ex) {
+            // handled below
+        }
+        throw new CodeGeneratorException("Invalid value for option " + option + ", expected a positive integer: " + value);
+    }
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
         Messager messager = processingEnv.getMessager();
         try {
-            for (Element element : roundEnv.getElementsAnnotatedWithAny(Set.of(Derivatives.class, Derive.class))) {
-                processDerive((TypeElement) element, messager);
+            // annotated methods are specialized per enclosing class, after the annotated classes
+            Set<ExecutableElement> methods = new LinkedHashSet<>();
+            for (Element element : annotatedWithAny(roundEnv, Derivatives.class, Derive.class)) {
+                if (element.getKind() == ElementKind.METHOD) {
+                    methods.add((ExecutableElement) element);
+                } else if (requestedInstantiations == null) {
+                    processDerive((TypeElement) element, messager);
+                }
             }
-            for (Element element : roundEnv.getElementsAnnotatedWithAny(Set.of(Instantiations.class, Instantiate.class))) {
-                processInstantiate((TypeElement) element, messager);
+            List<TypeElement> templates = new ArrayList<>();
+            for (Element element : annotatedWithAny(roundEnv, Instantiations.class, Instantiate.class, InstantiateAll.class)) {
+                if (element.getKind() == ElementKind.METHOD) {
+                    methods.add((ExecutableElement) element);
+                } else {
+                    templates.add((TypeElement) element);
+                }
             }
+            processInstantiate(templates, messager);
+            if (requestedInstantiations == null) {
+                processSpecializations(methods, messager);
+            }
+            generate(tasks);
         } catch (CodeGeneratorException ex) {
             messager.printMessage(ERROR, ex.getMessage());
+        } finally {
+            tasks.clear();
+            instantiated.clear();
+            pendingInstantiations.clear();
+            originatingElements.clear();
+        }
+
+        if (roundEnv.processingOver()) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            if (classList != null && !classList.isEmpty()) {
+                writeClassList(messager);
+            }
+            List<String> statistics = new ArrayList<>(List.of(templateCache.toString(), PATTERNS.toString()));
+            if (generatedSourceCache != null) {
+                int evicted = generatedSourceCache.evict();
+                statistics.add(generatedSourceCache + ", " + evicted + " evicted");
+            }
+            if (quiet) {
+                messager.printMessage(NOTE, metrics.summary() + "; " + String.join("; ", statistics));
+            } else {
+                statistics.forEach(line -> messager.printMessage(NOTE, line));
+                messager.printMessage(NOTE, metrics.summary());
+            }
+            if (metricsFile != null) {
+                try {
+                    metrics.writeJson(metricsFile);
+                } catch (CodeGeneratorException ex) {
+                    messager.printMessage(ERROR, ex.getMessage());
+                }
+            }
         }
 
         return true;
     }
 
+    /**
+     * @return The elements of this round annotated with any of the given annotations. Annotations
+     * that aren't on the class path of the compilation, as possible with {@link Specializer},
+     * annotate nothing.
+     */
+    @SafeVarargs
+    private Set<? extends Element> annotatedWithAny(RoundEnvironment roundEnv, Class<? extends Annotation>... annotationTypes) {
+        TypeElement[] knownAnnotationTypes = Arrays.stream(annotationTypes)
+                .map(annotationType -> processingEnv.getElementUtils().getTypeElement(annotationType.getCanonicalName()))
+                .filter(Objects::nonNull)
+                .toArray(TypeElement[]::new);
+        return knownAnnotationTypes.length == 0 ? Set.of() : roundEnv.getElementsAnnotatedWithAny(knownAnnotationTypes);
+    }
+
+    private void generate(List<GenerationTask> tasks) {
+        if (executor == null) {
+            for (GenerationTask task : tasks) {
+                writeFile(task.generate(generatedSourceCache), task.targetClassNameFQ, task.metrics, processingEnv, task.originatingElement);
+            }
+            return;
+        }
+
+        // transform in parallel, but write files in task order on this thread
+        List<Future<EditBuffer>> targetCodes = new ArrayList<>(tasks.size());
+        for (GenerationTask task : tasks) {
+            targetCodes.add(executor.submit(() -> task.generate(generatedSourceCache)));
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            GenerationTask task = tasks.get(i);
+            writeFile(join(targetCodes.get(i)), task.targetClassNameFQ, task.metrics, processingEnv, task.originatingElement);
+        }
+    }
+
+    private static EditBuffer join(Future<EditBuffer> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CodeGeneratorException("Interrupted while generating code");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new CodeGeneratorException(ex.getCause().toString());
+        }
+    }
+
     private void processDerive(TypeElement sourceClass, Messager messager) {
-        messager.printMessage(NOTE, "Generating code for " + sourceClass.getQualifiedName());
+        note(messager, "Generating code for " + sourceClass.getQualifiedName());
         Derivatives derivatives = sourceClass.getAnnotation(Derivatives.class);
         if (derivatives != null) {
             for (Derive derive : derivatives.value()) {
@@ -89,108 +436,534 @@ public class CodeGeneratorProcessor extends AbstractProcessor {
         }
     }
 
-    @SuppressWarnings("unchecked")
     private void processDerive(TypeElement sourceClass, Derive derive, Messager messager) {
-        // class declaration
-        String sourceClassDeclarationRegex;
-        String targetClassDeclaration;
-
-        String sourceClassName = sourceClass.getSimpleName().toString();
-        String targetClassName = derive.name();
-        String targetClassDeclarationPlaceholder = String.valueOf(System.nanoTime()) + "(";
-        sourceClassDeclarationRegex = "\\b" + sourceClassName + "\\b";
-        targetClassDeclaration = targetClassName;
-
-        process(
-                sourceClass,
-                new Class[] { Derive.class, Derivatives.class, SourceDirectory.class },
-                derive,
-                sourceClassDeclarationRegex,
-                targetClassDeclarationPlaceholder,
-                targetClassDeclaration,
-                messager);
+        process(sourceClass, sourceClass, derive.name(), Declaration.NAME, template(sourceClass, messager), target -> target
+                .withAnnotationTypesToRemove(List.of(Derive.class, Derivatives.class, SourceDirectory.class))
+                .withReplacements(derive.replace(), derive.mode())
+                .withOffHeap(derive.offHeap()), messager);
+    }
+
+    private void processInstantiate(List<TypeElement> sourceClasses, Messager messager) {
+        for (TypeElement sourceClass : sourceClasses) {
+            instantiated.put(sourceClass, new LinkedHashMap<>());
+        }
+        for (TypeElement sourceClass : sourceClasses) {
+            processInstantiate(sourceClass, messager);
+        }
+        if (requestedInstantiations != null) {
+            // at runtime, the annotated instantiations exist already, only the requested ones (and
+            // those they refer to) are missing
+            pendingInstantiations.clear();
+            for (List<String> request : requestedInstantiations) {
+                TypeElement sourceClass = processingEnv.getElementUtils().getTypeElement(request.get(0));
+                if (sourceClass == null) {
+                    throw new CodeGeneratorException("Template not found: " + request.get(0));
+                }
+                instantiated.computeIfAbsent(sourceClass, c -> new LinkedHashMap<>());
+                processInstantiate(new Instantiation(sourceClass, request.subList(1, request.size()).toArray(String[]::new),
+                                                     new Replace[0], true, ReplacementMode.SEQUENTIAL, new Sentinel[0], false, false, sourceClass));
+            }
+            requestedInstantiations = List.of();
+        }
+
+        // instantiating a template may call for instantiations of the templates it refers to
+        while (!pendingInstantiations.isEmpty()) {
+            instantiate(pendingInstantiations.remove(), messager);
+        }
+
+        for (TypeElement sourceClass : sourceClasses) {
+            String companionName = companionName(sourceClass);
+            if (companionName != null && requestedInstantiations == null) {
+                String companionNameFQ = FQ_TO_PACKAGE.apply(sourceClass.getQualifiedName().toString()) + "." + companionName;
+                note(messager, "Creating companion " + companionNameFQ);
+                String source = CompanionSource.generate(sourceClass, companionName, instantiated.get(sourceClass));
+                writeFile(EditBuffer.of(source), companionNameFQ, metrics.output(sourceClass.getQualifiedName().toString(), companionNameFQ),
+                          processingEnv, originatingElements.getOrDefault(sourceClass, Set.of(sourceClass)).toArray(Element[]::new));
+                if (classList != null) {
+                    String companion = internalName(companionNameFQ);
+                    classList.add(companion, List.of());
+                    classList.add(companion + "$Of", List.of(companion));
+                    for (String className : instantiated.get(sourceClass).values()) {
+                        classList.add(companion + "$" + CompanionSource.interfaceName(sourceClass, className), List.of(companion + "$Of"));
+                    }
+                }
+            }
+        }
     }
 
     private void processInstantiate(TypeElement sourceClass, Messager messager) {
-        messager.printMessage(NOTE, "Creating instantiations for generic class " + sourceClass.getQualifiedName());
+        note(messager, "Creating instantiations for generic class " + sourceClass.getQualifiedName());
+        for (Instantiation instantiation : annotatedInstantiations(sourceClass)) {
+            processInstantiate(instantiation);
+        }
+    }
+
+    /**
+     * @return The instantiations that the annotations of a template call for, empty if the
+     * annotations aren't visible (as for templates loaded from class files).
+     */
+    private static List<Instantiation> annotatedInstantiations(TypeElement sourceClass) {
+        List<Instantiation> annotated = new ArrayList<>();
         Instantiations instantiations = sourceClass.getAnnotation(Instantiations.class);
         if (instantiations != null) {
             for (Instantiate instantiation : instantiations.value()) {
-                processInstantiate(sourceClass, instantiation, messager);
+                annotated.add(instantiation(sourceClass, instantiation));
             }
         }
         Instantiate instantiation = sourceClass.getAnnotation(Instantiate.class);
         if (instantiation != null) {
-            processInstantiate(sourceClass, instantiation, messager);
+            annotated.add(instantiation(sourceClass, instantiation));
         }
+        InstantiateAll instantiateAll = sourceClass.getAnnotation(InstantiateAll.class);
+        if (instantiateAll != null) {
+            annotated.addAll(instantiations(sourceClass, instantiateAll));
+        }
+        return annotated;
     }
 
-    private void processInstantiate(TypeElement sourceClass, Instantiate instantiation, Messager messager) {
-        String sourceClassName = sourceClass.getSimpleName().toString();
-        TypeParameterElement[] typeParameters = sourceClass.getTypeParameters().toArray(TypeParameterElement[]::new);
-        String[] typeParameterNames = Arrays.stream(typeParameters).map(Object::toString).toArray(String[]::new);
+    /**
+     * @return The simple name of the companion class of the given template, or null if it has
+     * none.
+     */
+    private static String companionName(TypeElement sourceClass) {
+        Companion companion = sourceClass.getAnnotation(Companion.class);
+        if (companion == null) {
+            return null;
+        }
+        if (sourceClass.getKind() == ElementKind.INTERFACE) {
+            throw new CodeGeneratorException("@Companion is not supported on interfaces: " + sourceClass.getQualifiedName());
+        }
+        return companion.name().isEmpty() ? sourceClass.getSimpleName() + "s" : companion.name();
+    }
+
+    private static Instantiation instantiation(TypeElement sourceClass, Instantiate instantiation) {
+        String[] concreteTypeNames = getTypeNames(instantiation::value);
+        return new Instantiation(sourceClass, concreteTypeNames, instantiation.replace(), instantiation.append(), instantiation.mode(),
+                                 instantiation.sentinel(), instantiation.offHeap(), instantiation.flatten(), sourceClass);
+    }
+
+    private static List<Instantiation> instantiations(TypeElement sourceClass, InstantiateAll instantiateAll) {
+        int typeParameterCount = sourceClass.getTypeParameters().size();
+        if (typeParameterCount == 0) {
+            throw new CodeGeneratorException("@InstantiateAll requires a generic class: " + sourceClass.getQualifiedName());
+        }
+        TypeSet[] typeSets = instantiateAll.value();
+        if (typeSets.length != typeParameterCount) {
+            throw new CodeGeneratorException("Expected " + typeParameterCount + " type sets, got " + typeSets.length);
+        }
+
+        // the concrete types of each type set, without duplicates
+        List<List<String>> typeNames = new ArrayList<>();
+        for (TypeSet typeSet : typeSets) {
+            Set<String> names = new LinkedHashSet<>(Arrays.asList(getTypeNames(typeSet::value)));
+            for (TypeFamily family : typeSet.family()) {
+                names.addAll(family.typeNames());
+            }
+            if (names.isEmpty()) {
+                throw new CodeGeneratorException("Empty type set in @InstantiateAll on " + sourceClass.getQualifiedName());
+            }
+            typeNames.add(List.copyOf(names));
+        }
+
+        String[] excludedTypeNames = getTypeNames(instantiateAll::exclude);
+        if (excludedTypeNames.length % typeParameterCount != 0) {
+            throw new CodeGeneratorException("Expected excluded combinations of " + typeParameterCount
+                    + " types each, got " + Arrays.toString(excludedTypeNames));
+        }
+        Set<List<String>> excluded = new HashSet<>();
+        for (int i = 0; i < excludedTypeNames.length; i += typeParameterCount) {
+            excluded.add(List.of(Arrays.copyOfRange(excludedTypeNames, i, i + typeParameterCount)));
+        }
 
-        TypeMirror[] concreteTypes = getTypes(instantiation);
-        String[] concreteTypeNames = Stream.of(concreteTypes)
-                                           .map(TypeMirror::toString)
-                                           .map(FQ_TO_CLASS)
-                                           .toArray(String[]::new);
-        if (concreteTypeNames.length != typeParameters.length) {
-            throw new CodeGeneratorException("Expected " + typeParameters.length + " type parameters, got " + Arrays.toString(concreteTypes));
+        // cartesian product, the last type parameter varying fastest
+        List<Instantiation> instantiations = new ArrayList<>();
+        int[] indices = new int[typeParameterCount];
+        while (true) {
+            String[] concreteTypeNames = new String[typeParameterCount];
+            for (int i = 0; i < typeParameterCount; i++) {
+                concreteTypeNames[i] = typeNames.get(i).get(indices[i]);
+            }
+            if (!excluded.contains(List.of(concreteTypeNames))) {
+                instantiations.add(new Instantiation(sourceClass, concreteTypeNames, instantiateAll.replace(), instantiateAll.append(), instantiateAll.mode(),
+                                                     instantiateAll.sentinel(), instantiateAll.offHeap(), instantiateAll.flatten(), sourceClass));
+            }
+
+            int i = typeParameterCount - 1;
+            while (i >= 0 && ++indices[i] == typeNames.get(i).size()) {
+                indices[i--] = 0;
+            }
+            if (i < 0) {
+                return instantiations;
+            }
         }
+    }
+
+    /**
+     * Registers an instantiation, to be generated by {@link #instantiate}.
+     *
+     * @return The simple name of the instantiation.
+     */
+    private String processInstantiate(Instantiation instantiation) {
+        int typeParameterCount = instantiation.sourceClass().getTypeParameters().size();
+        if (instantiation.qualifiedConcreteTypeNames().length != typeParameterCount) {
+            throw new CodeGeneratorException("Expected " + typeParameterCount + " type parameters, got "
+                    + Arrays.toString(instantiation.qualifiedConcreteTypeNames()));
+        }
+        String targetClassName = instantiation.targetClassName();
+        instantiated.get(instantiation.sourceClass()).put(List.of(instantiation.qualifiedConcreteTypeNames()), targetClassName);
+        originatingElements.computeIfAbsent(instantiation.sourceClass(), c -> new LinkedHashSet<>(List.of(c))).add(instantiation.originatingElement());
+        pendingInstantiations.add(instantiation);
+        return targetClassName;
+    }
+
+    private void instantiate(Instantiation instantiation, Messager messager) {
+        TypeElement sourceClass = instantiation.sourceClass();
+        String[] qualifiedConcreteTypeNames = instantiation.qualifiedConcreteTypeNames();
+        TypeParameterElement[] typeParameters = sourceClass.getTypeParameters().toArray(TypeParameterElement[]::new);
+        String[] typeParameterNames = Arrays.stream(typeParameters).map(Object::toString).toArray(String[]::new);
+        String[] concreteTypeNames = Arrays.stream(qualifiedConcreteTypeNames).map(FQ_TO_CLASS).toArray(String[]::new);
 
         Name qualifiedName = sourceClass.getQualifiedName();
-        messager.printMessage(NOTE, "Instantiating " + qualifiedName + " for " + Arrays.toString(concreteTypeNames));
+        note(messager, "Instantiating " + qualifiedName + " for " + Arrays.toString(concreteTypeNames));
         String typeNames = Arrays.stream(concreteTypeNames)
                                  .map(FIRST_UPPER)
                                  .collect(joining(""));
+        String targetClassName = instantiation.targetClassName();
+        String companionName = companionName(sourceClass);
 
-        String targetClassName = instantiation.append()
-                ? sourceClassName + typeNames
-                : typeNames + sourceClassName;
-
-        // class/record declaration
-        String sourceClassDeclarationRegex;
-        String targetClassDeclarationPlaceholder;
-        String targetClassDeclaration;
-        boolean isRecord = sourceClass.getKind() == ElementKind.RECORD;
-        if (isRecord) {
-            // record declaration
-            sourceClassDeclarationRegex = sourceClassName + "\\s*<[\\s\\w\\?,]+>\\s*\\(";
-            targetClassDeclarationPlaceholder = String.valueOf(System.nanoTime()) + "(";
-            targetClassDeclaration = targetClassName + "(";
-        } else {
-            // class declaration
-            sourceClassDeclarationRegex = sourceClassName + "\\s*<[\\s\\w\\?,]+>\\s* ";
-            targetClassDeclarationPlaceholder = String.valueOf(System.nanoTime()) + "(";
-            targetClassDeclaration = targetClassName + " ";
+        // type parameter replacements (applied after the custom replacements because users may want
+        // to replace e.g. "T[]" by "double[]", so replacing "T" beforehand will break that); these
+        // are identifier-level, so literals and comments are left alone
+        Map<String, String> typeParameterReplacements = new HashMap<>();
+        for (int i = 0; i < typeParameterNames.length; i++) {
+            typeParameterReplacements.put(typeParameterNames[i], concreteTypeNames[i]);
+        }
+
+        // the values that stand for null, by type parameter
+        Map<String, String> sentinels = sentinels(instantiation.sentinels(), typeParameterNames, qualifiedConcreteTypeNames);
+
+        // the components of record types, by type parameter, for flattening arrays of records
+        Map<String, Map<String, String>> recordComponents = new HashMap<>();
+        if (instantiation.flatten()) {
+            for (int i = 0; i < typeParameterNames.length; i++) {
+                TypeElement type = processingEnv.getElementUtils().getTypeElement(qualifiedConcreteTypeNames[i]);
+                if (type != null && type.getKind() == ElementKind.RECORD) {
+                    Map<String, String> components = new LinkedHashMap<>();
+                    for (RecordComponentElement component : type.getRecordComponents()) {
+                        components.put(component.getSimpleName().toString(), component.asType().toString());
+                    }
+                    recordComponents.put(typeParameterNames[i], components);
+                }
+            }
         }
 
-        // custom replacements (before type parameter replacements because users may want
-        // to replace e.g. "T[]" by "double[]", so replacing "T" beforehand will break that
-        List<Replace> replacements = new ArrayList<>(Arrays.asList(instantiation.replace()));
+        // references to other templates, by their instantiations
+        Template template = template(sourceClass, messager);
+        Map<String, Map<List<String>, String>> templateReferences = templateReferences(
+                sourceClass, instantiation.originatingElement(), template, typeParameterNames, qualifiedConcreteTypeNames, messager);
+
+        Declaration declaration = sourceClass.getKind() == ElementKind.RECORD ? Declaration.GENERIC_RECORD : Declaration.GENERIC_CLASS;
+        process(sourceClass, instantiation.originatingElement(), targetClassName, declaration, template, target -> target
+                .withAnnotationTypesToRemove(List.of(Instantiate.class, Instantiations.class, InstantiateAll.class, Companion.class, SourceDirectory.class))
+                .withReplacements(instantiation.replace(), instantiation.mode())
+                .withTypeParameterReplacements(typeParameterReplacements)
+                .withSentinels(sentinels)
+                .withRecordComponents(recordComponents)
+                .withTemplateReferences(templateReferences)
+                .withCompanionInterface(companionName == null ? null : companionName + ".Of" + typeNames)
+                .withOffHeap(instantiation.offHeap()), messager);
+    }
 
-        // type parameter replacements
+    /**
+     * Finds the references of a template to other templates (or itself) that an instantiation
+     * turns into references with primitive type arguments, e.g. {@code MyList<K>} in
+     * {@code MyMap<K, V>} for {@code K = double}, and registers the instantiations they call
+     * for unless they exist already. References with reference type arguments, which still
+     * compile, are left alone.
+     *
+     * <p>Referenced templates need not be part of this compilation, e.g. in incremental builds or
+     * at runtime they may come from the source path or the class path. Their instantiations are
+     * generated here as well, with the settings of their annotations if they call for them, so
+     * that they are the same as those generated with the template.
+     *
+     * <p>The instantiations registered here have the originating element of the referring one:
+     * a change to the referenced template recompiles the referring one, which depends on it, and
+     * thus regenerates them in incremental builds.
+     *
+     * @return The names of the instantiations by the type arguments of the references (type
+     * parameters of the referring template) by the simple names of the referenced templates. The
+     * names are qualified for instantiations in other packages.
+     */
+    private Map<String, Map<List<String>, String>> templateReferences(
+            TypeElement sourceClass,
+            TypeElement originatingElement,
+            Template template,
+            String[] typeParameterNames,
+            String[] qualifiedConcreteTypeNames,
+            Messager messager) {
+        String packageName = FQ_TO_PACKAGE.apply(sourceClass.getQualifiedName().toString());
+
+        // the templates that the simple names followed by type arguments refer to, null for other types
+        Map<String, TypeElement> referencedTemplates = new HashMap<>();
+        Predicate<String> isTemplateName = simpleName -> {
+            if (!referencedTemplates.containsKey(simpleName)) {
+                referencedTemplates.put(simpleName, referencedTemplate(simpleName, packageName, template.source()));
+            }
+            return referencedTemplates.get(simpleName) != null;
+        };
+
+        Map<String, String> concreteTypes = new HashMap<>();
         for (int i = 0; i < typeParameterNames.length; i++) {
-            String from = "\\b" + typeParameterNames[i] + "\\b";
-            String to = concreteTypeNames[i];
-            // don't enforce presence as there may be no type parameters left after the class/record
-            // declaration and user-defined replacements
-            replacements.add(new ReplaceImpl(from, to, true, false));
+            concreteTypes.put(typeParameterNames[i], qualifiedConcreteTypeNames[i]);
         }
+        Map<String, Map<List<String>, String>> references = new HashMap<>();
+        for (TemplateReferences.Reference reference : TemplateReferences.find(template.source(), isTemplateName, concreteTypes.keySet())) {
+            TypeElement referenced = referencedTemplates.get(reference.templateName());
+            List<String> types = reference.arguments().stream().map(concreteTypes::get).toList();
+            if (referenced.getTypeParameters().size() != types.size() || types.stream().noneMatch(PRIMITIVES::contains)) {
+                continue;
+            }
+            String targetClassName = instantiated.computeIfAbsent(referenced, c -> new LinkedHashMap<>()).get(types);
+            if (targetClassName == null) {
+                note(messager, "Instantiating " + referenced.getQualifiedName() + " for " + types + " as referenced by " + sourceClass.getQualifiedName());
+                targetClassName = processInstantiate(annotatedInstantiations(referenced).stream()
+                        .filter(instantiation -> List.of(instantiation.qualifiedConcreteTypeNames()).equals(types))
+                        .findFirst()
+                        .orElseGet(() -> new Instantiation(referenced, types.toArray(String[]::new), new Replace[0], true,
+                                                           ReplacementMode.SEQUENTIAL, new Sentinel[0], false, false, referenced))
+                        .referencedBy(originatingElement));
+            }
+            String referencedPackageName = FQ_TO_PACKAGE.apply(referenced.getQualifiedName().toString());
+            references.computeIfAbsent(reference.templateName(), name -> new HashMap<>())
+                      .put(reference.arguments(), referencedPackageName.equals(packageName) ? targetClassName : referencedPackageName + "." + targetClassName);
+        }
+        return references;
+    }
 
-        // convert this instantiation to a derived class task
-        DeriveImpl derive = new DeriveImpl(targetClassName, replacements.toArray(Replace[]::new));
+    /**
+     * Resolves a simple type name used in a template the way the compiler does, against the
+     * single-type imports, the package and the on-demand imports of the template, in this order.
+     *
+     * @return The generic type of that name if its source code is available, i.e., if it is a
+     * template that can be instantiated, or null otherwise.
+     */
+    private TypeElement referencedTemplate(String simpleName, String packageName, String source) {
+        List<String> candidates = new ArrayList<>();
+        List<String> onDemandImports = new ArrayList<>();
+        Matcher imports = PATTERNS.get("^\\s*import\\s+([\\w.]+?)(\\.\\*)?\\s*;", Pattern.MULTILINE).matcher(source);
+        while (imports.find()) {
+            if (imports.group(2) != null) {
+                onDemandImports.add(imports.group(1) + "." + simpleName);
+            } else if (imports.group(1).endsWith("." + simpleName)) {
+                candidates.add(imports.group(1));
+            }
+        }
+        candidates.add(packageName.isEmpty() ? simpleName : packageName + "." + simpleName);
+        candidates.addAll(onDemandImports);
 
-        process(
-                sourceClass,
-                new Class[] { Instantiate.class, Instantiations.class, SourceDirectory.class },
-                derive,
-                sourceClassDeclarationRegex,
-                targetClassDeclarationPlaceholder,
-                targetClassDeclaration,
-                messager);
+        for (String candidate : candidates) {
+            TypeElement type = processingEnv.getElementUtils().getTypeElement(candidate);
+            if (type != null) {
+                return !type.getTypeParameters().isEmpty() && hasSourceCode(type) ? type : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Whether the source code of the given type can be read, see {@link #readSourceCode}.
+     */
+    private boolean hasSourceCode(TypeElement type) {
+        if (instantiated.containsKey(type)
+                || templateSource.read(type.getQualifiedName().toString()).isPresent()
+                || readCompilationUnit(type).isPresent()) {
+            return true;
+        }
+        String sourceRoot = processingEnv.getOptions().get(SOURCE_ROOT_OPTION);
+        return sourceRoot != null
+                && Files.isRegularFile(Path.of(sourceRoot).resolve(type.getQualifiedName().toString().replace(".", File.separator) + ".java"));
+    }
+
+    /**
+     * @return The values that stand for null by the names of the type parameters whose concrete
+     * types they belong to.
+     */
+    private static Map<String, String> sentinels(Sentinel[] sentinelAnnotations, String[] typeParameterNames, String[] qualifiedConcreteTypeNames) {
+        Map<String, String> sentinels = new HashMap<>();
+        for (Sentinel sentinel : sentinelAnnotations) {
+            String sentinelType = getTypeNames(() -> new Class<?>[] { sentinel.type() })[0];
+            for (int i = 0; i < typeParameterNames.length; i++) {
+                if (qualifiedConcreteTypeNames[i].equals(sentinelType)) {
+                    sentinels.put(typeParameterNames[i], sentinel.value());
+                }
+            }
+        }
+        return sentinels;
+    }
+
+    private void processSpecializations(Set<ExecutableElement> methods, Messager messager) {
+        // one specializations class per enclosing class
+        Map<TypeElement, List<ExecutableElement>> methodsByClass = new LinkedHashMap<>();
+        for (ExecutableElement method : methods) {
+            methodsByClass.computeIfAbsent((TypeElement) method.getEnclosingElement(), c -> new ArrayList<>()).add(method);
+        }
+        methodsByClass.forEach((enclosingClass, classMethods) -> processSpecializations(enclosingClass, classMethods, messager));
+    }
+
+    private void processSpecializations(TypeElement enclosingClass, List<ExecutableElement> methods, Messager messager) {
+        String enclosingClassNameFQ = enclosingClass.getQualifiedName().toString();
+        if (trees == null) {
+            throw new CodeGeneratorException("Specializing methods requires javac, cannot specialize the methods of " + enclosingClassNameFQ);
+        }
+        note(messager, "Specializing generic methods of " + enclosingClassNameFQ);
+
+        // the method declarations are taken from the compilation unit as they are, which is why
+        // only the source positions of javac will do
+        CompilationUnitTree compilationUnit = trees.getPath(enclosingClass).getCompilationUnit();
+        SourcePositions positions = trees.getSourcePositions();
+        String source;
+        try {
+            source = compilationUnit.getSourceFile().getCharContent(true).toString();
+        } catch (IOException ex) {
+            throw new CodeGeneratorException(toString(ex));
+        }
+
+        // the imports the methods may rely on, without those of the code generator itself
+        List<String> imports = new ArrayList<>();
+        for (ImportTree importTree : compilationUnit.getImports()) {
+            String imported = importTree.getQualifiedIdentifier().toString();
+            if (importTree.isStatic() || !FQ_TO_PACKAGE.apply(imported).equals(Template.class.getPackageName())) {
+                imports.add(source.substring(
+                        (int) positions.getStartPosition(compilationUnit, importTree),
+                        (int) positions.getEndPosition(compilationUnit, importTree)));
+            }
+        }
+
+        String packageName = processingEnv.getElementUtils().getPackageOf(enclosingClass).getQualifiedName().toString();
+        String className = enclosingClass.getSimpleName() + "Specializations";
+        String classNameFQ = packageName.isEmpty() ? className : packageName + "." + className;
+        GenerationMetrics.Output output = metrics.output(enclosingClassNameFQ, classNameFQ);
+
+        List<String> specializations = new ArrayList<>();
+        for (ExecutableElement method : methods) {
+            String methodName = method.getSimpleName().toString();
+            String methodNameFQ = enclosingClassNameFQ + "." + methodName;
+            if (!method.getModifiers().contains(Modifier.STATIC)) {
+                throw new CodeGeneratorException("Only static methods can be specialized: " + methodNameFQ);
+            }
+
+            // the declaration from its annotations to its closing brace, and its indentation, which
+            // is restored once the code generator annotations are gone
+            MethodTree tree = trees.getTree(method);
+            int start = (int) positions.getStartPosition(compilationUnit, tree);
+            int end = (int) positions.getEndPosition(compilationUnit, tree);
+            String declaration = source.substring(start, end);
+            String indentation = source.substring(source.lastIndexOf('\n', start - 1) + 1, start);
+            if (!indentation.isBlank()) {
+                indentation = "";
+            }
+
+            String[] typeParameterNames = method.getTypeParameters().stream().map(Object::toString).toArray(String[]::new);
+            List<Instantiate> instantiates = new ArrayList<>();
+            Instantiations instantiations = method.getAnnotation(Instantiations.class);
+            if (instantiations != null) {
+                instantiates.addAll(Arrays.asList(instantiations.value()));
+            }
+            if (method.getAnnotation(Instantiate.class) != null) {
+                instantiates.add(method.getAnnotation(Instantiate.class));
+            }
+            for (Instantiate instantiation : instantiates) {
+                if (instantiation.offHeap() || instantiation.flatten()) {
+                    throw new CodeGeneratorException("offHeap and flatten are not supported on methods: " + methodNameFQ);
+                }
+                String[] qualifiedConcreteTypeNames = getTypeNames(instantiation::value);
+                if (qualifiedConcreteTypeNames.length != typeParameterNames.length) {
+                    throw new CodeGeneratorException("Expected " + typeParameterNames.length + " type parameters, got "
+                            + Arrays.toString(qualifiedConcreteTypeNames) + " for " + methodNameFQ);
+                }
+                String[] concreteTypeNames = Arrays.stream(qualifiedConcreteTypeNames).map(FQ_TO_CLASS).toArray(String[]::new);
+                String typeNames = Arrays.stream(concreteTypeNames)
+                                         .map(FIRST_UPPER)
+                                         .collect(joining(""));
+                String targetName = instantiation.append()
+                        ? methodName + typeNames
+                        : typeNames.substring(0, 1).toLowerCase() + typeNames.substring(1) + FIRST_UPPER.apply(methodName);
+                note(messager, "Instantiating " + methodNameFQ + " for " + Arrays.toString(concreteTypeNames) + " as " + targetName);
+
+                Map<String, String> typeParameterReplacements = new HashMap<>();
+                for (int i = 0; i < typeParameterNames.length; i++) {
+                    typeParameterReplacements.put(typeParameterNames[i], concreteTypeNames[i]);
+                }
+                specializations.add(indentation + specialize(
+                        declaration, methodNameFQ, methodName, targetName, instantiation.replace(), instantiation.mode(),
+                        typeParameterReplacements, sentinels(instantiation.sentinel(), typeParameterNames, qualifiedConcreteTypeNames), output));
+            }
+
+            List<Derive> derives = new ArrayList<>();
+            Derivatives derivatives = method.getAnnotation(Derivatives.class);
+            if (derivatives != null) {
+                derives.addAll(Arrays.asList(derivatives.value()));
+            }
+            if (method.getAnnotation(Derive.class) != null) {
+                derives.add(method.getAnnotation(Derive.class));
+            }
+            for (Derive derive : derives) {
+                if (derive.offHeap()) {
+                    throw new CodeGeneratorException("offHeap is not supported on methods: " + methodNameFQ);
+                }
+                note(messager, "Deriving " + derive.name() + " from " + methodNameFQ);
+                specializations.add(indentation + specialize(
+                        declaration, methodNameFQ, methodName, derive.name(), derive.replace(), derive.mode(), Map.of(), Map.of(), output));
+            }
+        }
+
+        note(messager, "Creating " + classNameFQ + " from " + enclosingClassNameFQ);
+        String specializationsSource = SpecializationsSource.generate(enclosingClass, packageName, className, imports, specializations);
+        writeFile(EditBuffer.of(specializationsSource), classNameFQ, output, processingEnv, enclosingClass);
+        if (classList != null) {
+            classList.add(internalName(classNameFQ), List.of());
+        }
+    }
+
+    /**
+     * Specializes a single method declaration: user replacements first, then the declaration and
+     * the comparators, the generic idioms and finally the type parameters, just like
+     * {@link #generateTargetCode} does for classes.
+     *
+     * @return The specialized declaration, without leading and trailing whitespace.
+     */
+    static String specialize(
+            String declaration,
+            String methodNameFQ,
+            String methodName,
+            String targetName,
+            Replace[] replacements,
+            ReplacementMode replacementMode,
+            Map<String, String> typeParameterReplacements,
+            Map<String, String> sentinels,
+            GenerationMetrics.Output metrics) {
+        EditBuffer code = CodegenStripper.strip(
+                EditBuffer.of(declaration),
+                Set.of(),
+                Set.of(Derivatives.class.getSimpleName(), Derive.class.getSimpleName(), Instantiations.class.getSimpleName(), Instantiate.class.getSimpleName()));
+
+        code = replacementMode == ReplacementMode.SIMULTANEOUS
+                ? replaceSimultaneously(replacements, code, methodNameFQ, metrics)
+                : replace(replacements, code, methodNameFQ, metrics);
+
+        GenerationMetrics.Step step = metrics.begin("method " + targetName);
+        code = MethodSpecializer.specialize(code, methodName, targetName, typeParameterReplacements, methodNameFQ);
+        code = GenericIdioms.rewrite(code, methodNameFQ, typeParameterReplacements, sentinels);
+        code = JavaTokens.replaceIdentifiers(code, typeParameterReplacements);
+        step.end();
+        return code.toString().strip();
+    }
+
+    private void note(Messager messager, String message) {
+        if (!quiet) {
+            messager.printMessage(NOTE, message);
         }
+    }
 
     private String getSourceDirectory(TypeElement sourceClass) {
         return sourceClass.getAnnotation(SourceDirectory.class) != null
@@ -198,108 +971,234 @@ public class CodeGeneratorProcessor extends AbstractProcessor {
                 : DEFAULT_RELATIVE_SRC_DIR;
     }
 
+    /**
+     * Adds a task generating a target class from a template.
+     *
+     * @param originatingElement The originating element of the generated file.
+     * @param targetClassName The simple name of the target class, in the package of the template.
+     * @param configure Adds what the target class calls for to the plain renaming of the template.
+     */
     private void process(
             TypeElement sourceClass,
-            Class<? extends Annotation>[] annotationTypesToRemove,
-            Derive derive,
-            String sourceClassDeclarationRegex,
-            String targetClassDeclarationPlaceholder,
-            String targetClassDeclaration,
+            TypeElement originatingElement,
+            String targetClassName,
+            Declaration declaration,
+            Template template,
+            UnaryOperator<TargetClass> configure,
             Messager messager) {
-        // read source file
-        String relativeSourceDir = getSourceDirectory(sourceClass);
-        Path sourceDir = findSourceDirectory(relativeSourceDir, messager);
-        String sourceCode = readSourceCode(sourceDir, sourceClass, messager);
         String sourceClassNameFQ = sourceClass.getQualifiedName().toString();
 
         // generate target files
         String pkg = FQ_TO_PACKAGE.apply(sourceClassNameFQ);
-        String targetClassNameFQ = pkg + "." + derive.name();
+        String targetClassNameFQ = pkg + "." + targetClassName;
         if (targetClassNameFQ.equals(sourceClassNameFQ)) {
             throw new CodeGeneratorException(
                     "Target class name must be different from source class name, but was " + targetClassNameFQ);
         }
 
-        messager.printMessage(NOTE, "Creating " + targetClassNameFQ + " from " + sourceClassNameFQ);
-        String targetCode = generateTargetCode(
-                sourceClassNameFQ,
-                targetClassNameFQ,
-                sourceClassDeclarationRegex,
-                targetClassDeclarationPlaceholder,
-                targetClassDeclaration,
-                annotationTypesToRemove,
-                sourceCode,
-                derive.replace());
+        note(messager, "Creating " + targetClassNameFQ + " from " + sourceClassNameFQ);
+        TargetClass target = configure.apply(TargetClass.of(sourceClassNameFQ, targetClassNameFQ, declaration, template));
+        tasks.add(new GenerationTask(originatingElement, target, metrics.output(sourceClassNameFQ, targetClassNameFQ)));
 
-        writeFile(targetCode, targetClassNameFQ, processingEnv);
+        if (classList != null) {
+            // the companion interface and the instantiations of the referenced templates
+            List<String> dependencies = new ArrayList<>();
+            if (target.companionInterface() != null) {
+                dependencies.add(internalName(pkg + "." + target.companionInterface().replace('.', '$')));
+            }
+            for (Map<List<String>, String> instantiations : target.templateReferences().values()) {
+                for (String instantiation : instantiations.values()) {
+                    dependencies.add(internalName(instantiation.contains(".") ? instantiation : pkg + "." + instantiation));
+                }
+            }
+            listClass(internalName(targetClassNameFQ), dependencies, sourceClass);
+        }
     }
 
-    private static String generateTargetCode(
-            String sourceClassNameFQ,
-            String targetClassNameFQ,
-            String sourceClassDeclarationRegex,
-            String targetClassDeclarationPlaceholder,
-            String targetClassDeclaration,
-            Class<? extends Annotation>[] annotationTypesToRemove,
-            String sourceCode,
-            Replace[] replacements) {
+    /**
+     * Adds a generated class to the class list, followed by the member types it inherits from its
+     * template.
+     */
+    private void listClass(String className, List<String> dependencies, TypeElement sourceClass) {
+        classList.add(className, dependencies);
+        for (TypeElement memberType : ElementFilter.typesIn(sourceClass.getEnclosedElements())) {
+            listClass(className + "$" + memberType.getSimpleName(), List.of(className), memberType);
+        }
+    }
+
+    /**
+     * @return The binary name with slashes of a top-level class, as used by class lists.
+     */
+    private static String internalName(String classNameFQ) {
+        return classNameFQ.replace('.', '/');
+    }
+
+    private void writeClassList(Messager messager) {
+        try {
+            FileObject resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", ClassList.RESOURCE);
+            try (Writer writer = resource.openWriter()) {
+                writer.write(classList.toResource());
+            }
+        } catch (IOException ex) {
+            messager.printMessage(ERROR, "Could not write " + ClassList.RESOURCE + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads the source file of a template, once per template no matter how many annotations refer
+     * to it.
+     */
+    private Template template(TypeElement sourceClass, Messager messager) {
+        return templateCache.get(sourceClass, c -> {
+            GenerationMetrics.TemplateRead read = metrics.beginRead(c.getQualifiedName().toString());
+            String source = readSourceCode(c, messager);
+            read.end(source.length());
+            return source;
+        });
+    }
+
+    /**
+     * Generates the code of a target class from its template.
+     *
+     * @param target The target class.
+     * @param metrics Receives the timings of the generation steps.
+     * @return The generated code.
+     */
+    static EditBuffer generateTargetCode(TargetClass target, GenerationMetrics.Output metrics) {
+        String sourceClassNameFQ = target.sourceClassNameFQ();
+        String targetClassNameFQ = target.targetClassNameFQ();
+        Template template = target.template();
         String sourceClassName = FQ_TO_CLASS.apply(sourceClassNameFQ);
         String targetClassName = FQ_TO_CLASS.apply(targetClassNameFQ);
 
-        String targetCode = sourceCode;
+        EditBuffer targetCode = EditBuffer.of(template.source());
 
         // type declaration replacement is two-stage: first, replace by
         // a dummy placeholder, and then replace the placeholder by the
         // actual type declaration at the end; this is to prevent user
-        // replacements from accidentally modifying the new type declaration
-        targetCode = replace(
-                targetCode,
-                sourceClassDeclarationRegex,
-                targetClassDeclarationPlaceholder,
-                ReplacementMethod.REGEX_ALL,
-                true,
-                sourceClassNameFQ);
+        // replacements from accidentally modifying the new type declaration;
+        // both stages work on tokens, so literals and comments are left alone
+        GenerationMetrics.Step step = metrics.begin("declaration");
+        String targetClassDeclarationPlaceholder = System.nanoTime() + "(";
+        if (target.companionInterface() != null) {
+            targetCode = implement(targetCode, template, target.companionInterface());
+        }
+        if (target.declaration() == Declaration.NAME) {
+            targetCode = JavaTokens.replaceIdentifiers(targetCode, Map.of(sourceClassName, targetClassDeclarationPlaceholder));
+        } else {
+            EditBuffer declared = JavaTokens.replaceParameterizedType(
+                    targetCode, sourceClassName, targetClassDeclarationPlaceholder, target.declaration() == Declaration.GENERIC_RECORD);
+            if (declared == targetCode) {
+                throw new CodeGeneratorException("Declaration of " + sourceClassName + " with type parameters not found in " + sourceClassNameFQ);
+            }
+            targetCode = declared;
+        }
+        step.end();
 
         // now, process user replacements
-        targetCode = replace(replacements, targetCode, sourceClassNameFQ);
+        targetCode = target.replacementMode() == ReplacementMode.SIMULTANEOUS
+                ? replaceSimultaneously(target.replacements(), targetCode, sourceClassNameFQ, metrics)
+                : replace(target.replacements(), targetCode, sourceClassNameFQ, metrics);
+
+        // references to other templates to their instantiations, e.g. MyList<K> to MyListDouble,
+        // while type parameters can still be recognized
+        if (!target.templateReferences().isEmpty()) {
+            step = metrics.begin("template references");
+            targetCode = TemplateReferences.rewrite(targetCode, target.templateReferences(), sourceClassNameFQ);
+            step.end();
+        }
+
+        // generic array creations, redundant casts, boxing and nulls, while type parameters can still be recognized
+        step = metrics.begin("generic idioms");
+        targetCode = GenericIdioms.rewrite(targetCode, sourceClassNameFQ, target.typeParameterReplacements(), target.sentinels());
+        step.end();
+
+        // arrays of records to one array per record component
+        if (!target.recordComponents().isEmpty()) {
+            step = metrics.begin("struct of arrays");
+            targetCode = StructOfArrays.rewrite(targetCode, targetClassNameFQ, target.recordComponents());
+            step.end();
+        }
+
+        // type parameters and remaining references to the source class, all in one pass
+        step = metrics.begin("identifiers");
+        Map<String, String> identifierReplacements = new HashMap<>(target.typeParameterReplacements());
+        identifierReplacements.put(sourceClassName, targetClassName);
+        targetCode = JavaTokens.replaceIdentifiers(targetCode, identifierReplacements);
+        step.end();
 
         // finally, replace the placeholder with the actual new type declaration
+        step = metrics.begin("declaration");
         targetCode = replace(
                 targetCode,
                 targetClassDeclarationPlaceholder,
-                targetClassDeclaration,
+                targetClassName,
                 ReplacementMethod.PLAIN_ALL,
                 true,
                 sourceClassNameFQ);
+        step.end();
 
-        targetCode = removeImport(targetCode, Derivatives.class.getName(), sourceClassNameFQ);
-        targetCode = removeImport(targetCode, Derive.class.getName(), sourceClassNameFQ);
-        targetCode = removeImport(targetCode, Instantiations.class.getName(), sourceClassNameFQ);
-        targetCode = removeImport(targetCode, Instantiate.class.getName(), sourceClassNameFQ);
-        targetCode = removeImport(targetCode, Replace.class.getName(), sourceClassNameFQ);
-        targetCode = removeImport(targetCode, SourceDirectory.class.getName(), sourceClassNameFQ);
-
-        targetCode = removeAnnotations(targetCode, annotationTypesToRemove, sourceClassNameFQ);
+        // remove code generator imports and annotations in one pass
+        step = metrics.begin("strip");
+        Set<String> annotationsToRemove = new HashSet<>();
+        for (var annotationType : target.annotationTypesToRemove()) {
+            annotationsToRemove.add(annotationType.getSimpleName());
+        }
+        targetCode = CodegenStripper.strip(targetCode, CODEGEN_IMPORTS, annotationsToRemove);
+        step.end();
+
+        // primitive array fields to direct buffers, once the code is otherwise final
+        if (target.offHeap()) {
+            step = metrics.begin("off-heap");
+            targetCode = OffHeapStorage.rewrite(targetCode, targetClassNameFQ);
+            step.end();
+        }
 
-        targetCode = targetCode.replaceAll("\\b" + sourceClassName + "\\b", targetClassName);
-        targetCode = "// generated from " + sourceClassNameFQ + "\n" + targetCode;
+        return targetCode.edit().insert(0, "// generated from " + sourceClassNameFQ + "\n").apply();
+    }
 
-        return targetCode;
+    /**
+     * Adds the given interface to the interfaces that the template implements, right before the
+     * type body.
+     */
+    private static EditBuffer implement(EditBuffer code, Template template, String interfaceName) {
+        int bodyStart = template.bodyStart();
+        if (bodyStart < 0) {
+            throw new CodeGeneratorException("Type body not found in " + template.qualifiedName());
+        }
+        int end = bodyStart;
+        while (end > 0 && Character.isWhitespace(template.source().charAt(end - 1))) {
+            end--;
+        }
+        boolean implementsInterfaces = PATTERNS.get("\\bimplements\\b", 0)
+                .matcher(template.source())
+                .region(template.declarationStart(), end)
+                .find();
+        return code.edit()
+                .insert(end, implementsInterfaces ? ", " + interfaceName : " implements " + interfaceName)
+                .apply();
     }
 
-    private static  TypeMirror[] getTypes(Instantiate instantiations) {
+    /**
+     * @return The qualified names of the classes returned by the given annotation value (simple
+     * names for primitive types).
+     */
+    private static String[] getTypeNames(Supplier<Class<?>[]> annotationValue) {
         // uses this trick:
         // https://stackoverflow.com/questions/7687829/java-6-annotation-processing-getting-a-class-from-an-annotation/52793839#52793839
         try {
-            instantiations.value();
+            if (annotationValue.get().length == 0) {
+                return new String[0];
+            }
         } catch (MirroredTypesException mtex) {
-            List<? extends TypeMirror> typeMirrors = mtex.getTypeMirrors();
-            return typeMirrors.isEmpty() ? null : typeMirrors.toArray(TypeMirror[]::new);
+            return mtex.getTypeMirrors().stream()
+                       .map(TypeMirror::toString)
+                       .toArray(String[]::new);
         }
         throw new IllegalStateException("Cannot get to here");
     }
 
-    private static Path findSourceDirectory(String relativeSourceDir, Messager messager) {
+    private Path findSourceDirectory(String relativeSourceDir, Messager messager) {
         Path classFileDir;
         try {
             classFileDir = Path.of(CodeGeneratorProcessor.class.getClassLoader().getResource(".").toURI());
@@ -311,167 +1210,208 @@ public class CodeGeneratorProcessor extends AbstractProcessor {
             throw new CodeGeneratorException("Source path not found: " + sourceDir
                     + ". Possibly a mis-specification of the relative source directory (" + relativeSourceDir + ")?");
         }
-        messager.printMessage(NOTE, "sourceDir=" + sourceDir);
+        note(messager, "sourceDir=" + sourceDir);
         return sourceDir;
     }
 
-    private static String readSourceCode(Path sourceDir, TypeElement sourceClass, Messager messager) {
+    private String readSourceCode(TypeElement sourceClass, Messager messager) {
+        // a template source, if any, takes precedence
+        Optional<String> providedSource = templateSource.read(sourceClass.getQualifiedName().toString());
+        if (providedSource.isPresent()) {
+            return providedSource.get();
+        }
+
+        // otherwise, take the source code of the compilation unit that javac has already parsed
+        Optional<String> compilationUnitSource = readCompilationUnit(sourceClass);
+        if (compilationUnitSource.isPresent()) {
+            return compilationUnitSource.get();
+        }
+
+        // fall back to reading the source file from disk
+        String sourceRoot = processingEnv.getOptions().get(SOURCE_ROOT_OPTION);
+        Path sourceDir = sourceRoot != null
+                ? Path.of(sourceRoot)
+                : findSourceDirectory(getSourceDirectory(sourceClass), messager);
+        return readSourceCode(sourceDir, sourceClass, messager);
+    }
+
+    private Optional<String> readCompilationUnit(TypeElement sourceClass) {
+        if (trees == null) {
+            return Optional.empty();
+        }
+        TreePath path = trees.getPath(sourceClass);
+        JavaFileObject sourceFile = path == null ? null : path.getCompilationUnit().getSourceFile();
+        if (sourceFile == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(sourceFile.getCharContent(true).toString());
+        } catch (IOException | UnsupportedOperationException ex) {
+            return Optional.empty();
+        }
+    }
+
+    private String readSourceCode(Path sourceDir, TypeElement sourceClass, Messager messager) {
         String sourceClassNameFQ = sourceClass.getQualifiedName().toString();
         String relativePath = sourceClassNameFQ.replace(".", File.separator) + ".java";
         Path sourceFile = sourceDir.resolve(relativePath);
         if (!Files.exists(sourceFile)) {
             throw new CodeGeneratorException("Source file not found: " + sourceFile);
         }
-        messager.printMessage(NOTE, "sourceFile=" + sourceFile);
+        note(messager, "sourceFile=" + sourceFile);
 
         String source;
         try {
-            source = Files.readString(sourceFile).replace("\r", "");
+            source = Files.readString(sourceFile);
             return source;
         } catch (IOException ex) {
             throw new CodeGeneratorException(toString(ex));
         }
     }
 
-    private static String removeImport(
-            String code,
-            String classNameFQ,
-            String sourceClassNameFQ) {
-        return replace(
-                code,
-                "^\\s*import\\s+" + classNameFQ + "\\s*;\\s*\n", "\n",
-                ReplacementMethod.REGEX_ALL,
-                false,
-                sourceClassNameFQ);
-    }
+    static EditBuffer replace(Replace[] replacements, EditBuffer code, String sourceClassNameFQ, GenerationMetrics.Output metrics) {
+        for (int i = 0; i < replacements.length; i++) {
+            String from = replacements[i].from();
+            String to = replacements[i].to();
+            ReplacementMethod replacementMethod = replacements[i].regex() ? ReplacementMethod.REGEX_ALL : ReplacementMethod.PLAIN_ALL;
 
-    private static String removeAnnotations(
-            String code,
-            Class<? extends Annotation>[] annotationTypes,
-            String sourceClassNameFQ) {
-        for (var annotationType : annotationTypes) {
-            String annotationStartRegex = "@\\s*" + annotationType.getSimpleName() + "\\s*\\(";
-            while (true) {
-                int annotationStartIndex = indexOfRegex(code, annotationStartRegex);
-                if (annotationStartIndex == -1) {
-                    break;
-                }
-                code = replace(
-                        code,
-                        annotationStartRegex,
-                        "(",
-                        ReplacementMethod.REGEX_FIRST,
-                        true,
-                        sourceClassNameFQ);
-                code = skipBrackets('(', ')', code, annotationStartIndex);
-                code = code.substring(0, annotationStartIndex).replaceAll("\\s\\s+$", "\n\n") + code.substring(annotationStartIndex).replaceAll("^\\s*", "");
-            }
+            GenerationMetrics.Step step = metrics.begin("replace " + (i + 1) + ": " + from);
+            code = replace(code, from, to, replacementMethod, true, sourceClassNameFQ);
+            step.end();
         }
         return code;
     }
 
-    private static String replace(Replace[] replacements, String code, String sourceClassNameFQ) {
-        for (Replace replacement : replacements) {
-            String from = replacement.from();
-            String to = replacement.to();
-            ReplacementMethod replacementMethod = replacement.regex() ? ReplacementMethod.REGEX_ALL : ReplacementMethod.PLAIN_ALL;
+    static EditBuffer replaceSimultaneously(Replace[] replacements, EditBuffer code, String sourceClassNameFQ, GenerationMetrics.Output metrics) {
+        // fall back to sequential replacement if there are regex replacements or if there is an
+        // empty search term (which can't be represented in the automaton)
+        boolean fallBack = Arrays.stream(replacements).anyMatch(r -> r.regex() || r.from().isEmpty());
+        if (fallBack || replacements.length == 0) {
+            return replace(replacements, code, sourceClassNameFQ, metrics);
+        }
 
-            // enforce presence of the replacement key if it's user-generated and if it's
-            // the class/record declaration
-            boolean enforcePresence = !(replacement instanceof ReplaceImpl) || ((ReplaceImpl)replacement).enforcePresence;
-            code = replace(code, from, to, replacementMethod, enforcePresence, sourceClassNameFQ);
+        GenerationMetrics.Step step = metrics.begin("replace 1-" + replacements.length + " simultaneously");
+        AhoCorasickReplacer replacer = new AhoCorasickReplacer(
+                Arrays.stream(replacements).map(Replace::from).toArray(String[]::new),
+                Arrays.stream(replacements).map(Replace::to).toArray(String[]::new));
+        AhoCorasickReplacer.Result result = replacer.replace(code);
+        for (int i = 0; i < replacements.length; i++) {
+            if (!result.found()[i]) {
+                throw new CodeGeneratorException("Search term not found in " + sourceClassNameFQ + ": " + replacements[i].from());
+            }
         }
-        return code;
+        step.end();
+        return result.text();
     }
 
-    private static String replace(
-            String code,
+    static EditBuffer replace(
+            EditBuffer code,
             String from,
             String to,
             ReplacementMethod replacementMethod,
             boolean enforcePresence,
             String sourceClassNameFQ) {
+        EditBuffer.Editor editor = code.edit();
         if (replacementMethod == ReplacementMethod.PLAIN_ALL) {
-            if (code.contains(from)) {
-                return code.replace(from, to);
-            } else if (enforcePresence) {
+            if (from.isEmpty()) {
+                // like String.replace(), insert before every character and at the end
+                for (int i = 0; i <= code.length(); i++) {
+                    editor.insert(i, to);
+                }
+            }
+            for (int i = from.isEmpty() ? -1 : code.indexOf(from, 0); i >= 0; i = code.indexOf(from, i + from.length())) {
+                editor.replace(i, i + from.length(), to);
+            }
+            if (editor.size() == 0 && enforcePresence) {
                 throw new CodeGeneratorException("Search term not found in " + sourceClassNameFQ + ": " + from);
             }
         } else {
-            Pattern pattern = Pattern.compile(from, Pattern.MULTILINE | Pattern.DOTALL);
+            Pattern pattern = PATTERNS.get(from, REGEX_FLAGS);
             Matcher matcher = pattern.matcher(code);
-            if (matcher.find()) {
-                return replacementMethod == ReplacementMethod.REGEX_ALL
-                        ? matcher.replaceAll(to)
-                        : matcher.replaceFirst(to);
-            } else if (enforcePresence) {
-                throw new CodeGeneratorException("Regex search term not found in " + sourceClassNameFQ + ": " + from);
+            while (matcher.find()) {
+                editor.replace(matcher.start(), matcher.end(), expandReplacement(matcher, to));
             }
-        }
-        return code;
-    }
-
-    private static void writeFile(
-            String source,
-            String targetClassNameFQ,
-            ProcessingEnvironment processingEnv) {
-        try {
-            JavaFileObject targetFile = processingEnv.getFiler().createSourceFile(targetClassNameFQ);
-            try (PrintWriter targetWriter = new PrintWriter(targetFile.openWriter())) {
-                targetWriter.write(source);
+            if (editor.size() == 0 && enforcePresence) {
+                throw new CodeGeneratorException("Regex search term not found in " + sourceClassNameFQ + ": " + from);
             }
-        } catch (IOException ex) {
-            throw new CodeGeneratorException("Could not generate file " + targetClassNameFQ + ": " + ex.getMessage());
         }
+        return editor.apply();
     }
 
-    private static String skipBrackets(char opening, char closing, String code, int startIndex) {
-        if (code.charAt(startIndex) != opening) {
-            throw new IllegalStateException("Internal error: opening bracket not where it's expected");
+    /**
+     * Expands the group references in a regex replacement like {@link Matcher#appendReplacement},
+     * but without copying the text before the match.
+     */
+    private static String expandReplacement(Matcher matcher, String replacement) {
+        if (replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0) {
+            return replacement;
         }
 
-        int bracketCount = 0;
-        int endIndex = startIndex;
-        boolean inString = false;
-        while (true) {
-            if (endIndex >= code.length()) {
-                throw new IllegalStateException("Internal error: Reached end of target code but didn't find end of annotation");
-            }
-
-            char c = code.charAt(endIndex);
-            if (inString) {
-                // handle escapes when walking through strings
-                switch (c) {
-                    case '\\':
-                        // escaped character -> skip over next
-                        endIndex++;
-                        break;
-                    case '\"':
-                        // end of string
-                        inString = false;
-                        break;
+        StringBuilder result = new StringBuilder();
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i++);
+            if (c == '\\') {
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                result.append(replacement.charAt(i++));
+            } else if (c != '$') {
+                result.append(c);
+            } else if (i == replacement.length()) {
+                throw new IllegalArgumentException("Illegal group reference: group index is missing");
+            } else if (replacement.charAt(i) == '{') {
+                int end = replacement.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("named capturing group is missing trailing '}'");
                 }
+                String group = matcher.group(replacement.substring(i + 1, end));
+                result.append(group == null ? "" : group);
+                i = end + 1;
             } else {
-                // outside string
-                if (c == '\"') {
-                    inString = true;
-                } else if (c == opening) {
-                    bracketCount++;
-                } else if (c == closing) {
-                    bracketCount--;
-                    if (bracketCount == 0) {
-                        return code.substring(0, startIndex) + code.substring(endIndex + 1);
+                int group = replacement.charAt(i++) - '0';
+                if (group < 0 || group > 9) {
+                    throw new IllegalArgumentException("Illegal group reference");
+                }
+                // take as many digits as still form a valid group number
+                while (i < replacement.length() && Character.isDigit(replacement.charAt(i))) {
+                    int longerGroup = group * 10 + replacement.charAt(i) - '0';
+                    if (longerGroup > matcher.groupCount()) {
+                        break;
                     }
+                    group = longerGroup;
+                    i++;
                 }
+                String text = matcher.group(group);
+                result.append(text == null ? "" : text);
             }
-            endIndex++;
         }
+        return result.toString();
     }
 
-    private static int indexOfRegex(String code, String regex) {
-        Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE | Pattern.DOTALL);
-        Matcher matcher = pattern.matcher(code);
-        return matcher.find() ? matcher.start() : -1;
+    /**
+     * Writes a generated file. For Gradle's isolating incremental processing, its content may only
+     * depend on its originating element (and what that depends on). Files with several originating
+     * elements are fine, too, but make Gradle recompile everything.
+     */
+    private static void writeFile(
+            EditBuffer source,
+            String targetClassNameFQ,
+            GenerationMetrics.Output metrics,
+            ProcessingEnvironment processingEnv,
+            Element... originatingElements) {
+        GenerationMetrics.Step step = metrics.begin(GenerationMetrics.Output.WRITE);
+        try {
+            JavaFileObject targetFile = processingEnv.getFiler().createSourceFile(targetClassNameFQ, originatingElements);
+            try (Writer targetWriter = targetFile.openWriter()) {
+                // the one and only time that the generated code is materialized
+                source.writeTo(targetWriter);
+            }
+        } catch (IOException ex) {
+            throw new CodeGeneratorException("Could not generate file " + targetClassNameFQ + ": " + ex.getMessage());
+        }
+        step.end();
+        metrics.outputBytes(source.length());
     }
 
     private static String toString(Exception ex) {
@@ -485,68 +1425,82 @@ public class CodeGeneratorProcessor extends AbstractProcessor {
         return s.toString();
     }
 
-    private enum ReplacementMethod {
+    enum ReplacementMethod {
         PLAIN_ALL,
-        REGEX_ALL,
-        REGEX_FIRST
+        REGEX_ALL
     }
 
-    private static class DeriveImpl implements Derive {
-        private final String name;
-        private final Replace[] replaces;
-
-        private DeriveImpl(String name, Replace[] replaces) {
-            this.name = name;
-            this.replaces = replaces;
+    /**
+     * The generation of one target class, which is safe to run on any thread.
+     */
+    private static final class GenerationTask {
+        private final TypeElement originatingElement;  // only to be accessed on the compiler thread
+        private final TargetClass target;
+        private final String targetClassNameFQ;
+        private final GenerationMetrics.Output metrics;
+
+        private GenerationTask(TypeElement originatingElement, TargetClass target, GenerationMetrics.Output metrics) {
+            this.originatingElement = originatingElement;
+            this.target = target;
+            this.targetClassNameFQ = target.targetClassNameFQ();
+            this.metrics = metrics;
         }
 
-        @Override
-        public String name() {
-            return name;
-        }
-
-        @Override
-        public Replace[] replace() {
-            return replaces;
-        }
+        /**
+         * Generates the target code, or looks it up in the given cache.
+         *
+         * @param cache The cache of generated code, or null if caching is disabled.
+         * @return The generated code.
+         */
+        private EditBuffer generate(GeneratedSourceCache cache) {
+            if (cache == null) {
+                return generateTargetCode(target, metrics);
+            }
 
-        @Override
-        public Class<? extends Annotation> annotationType() {
-            throw new UnsupportedOperationException();
+            GenerationMetrics.Step step = metrics.begin("cache lookup");
+            String key = cache.key(target.cacheKeyInputs());
+            Optional<String> cached = cache.get(key);
+            step.end();
+            if (cached.isPresent()) {
+                metrics.cached();
+                return EditBuffer.of(cached.get());
+            }
+            EditBuffer targetCode = generateTargetCode(target, metrics);
+            cache.put(key, targetCode);
+            return targetCode;
         }
     }
 
-    private static class ReplaceImpl implements Replace {
-        private final String from;
-        private final String to;
-        private final boolean regex;
-        private final boolean enforcePresence;
-
-        private ReplaceImpl(String from, String to, boolean regex, boolean enforcePresence) {
-            this.from = from;
-            this.to = to;
-            this.regex = regex;
-            this.enforcePresence = enforcePresence;
-        }
-
-        @Override
-        public String from() {
-            return from;
-        }
-
-        @Override
-        public String to() {
-            return to;
-        }
-
-        @Override
-        public boolean regex() {
-            return regex;
+    /**
+     * An instantiation of a template, either given by an annotation or called for by a reference
+     * from another template.
+     */
+    private record Instantiation(
+            TypeElement sourceClass,
+            String[] qualifiedConcreteTypeNames,
+            Replace[] replace,
+            boolean append,
+            ReplacementMode mode,
+            Sentinel[] sentinels,
+            boolean offHeap,
+            boolean flatten,
+            TypeElement originatingElement) {
+        String targetClassName() {
+            String typeNames = Arrays.stream(qualifiedConcreteTypeNames)
+                                     .map(FQ_TO_CLASS)
+                                     .map(FIRST_UPPER)
+                                     .collect(joining(""));
+            String sourceClassName = sourceClass.getSimpleName().toString();
+            return append ? sourceClassName + typeNames : typeNames + sourceClassName;
         }
 
-        @Override
-        public Class<? extends Annotation> annotationType() {
-            throw new UnsupportedOperationException();
+        /**
+         * @return This instantiation, as called for by a reference of a template whose generated
+         * file has the given originating element, which thus becomes the originating element of
+         * this instantiation's file too.
+         */
+        Instantiation referencedBy(TypeElement referringElement) {
+            return new Instantiation(sourceClass, qualifiedConcreteTypeNames, replace, append, mode, sentinels, offHeap, flatten, referringElement);
         }
     }
 }
@@ -0,0 +1,269 @@
+package com.kt.codegen;
+
+
+import java.util.Set;
+
+
+/**
+ * Removes the code generator imports and annotations from generated code in a single left-to-right
+ * scan, collecting the removals as edits of the code. Comments and string or character literals
+ * are skipped, so that an annotation mentioned in documentation, say, is left alone.
+ *
+ * <p>Whitespace around removed parts is treated as follows:
+ * <ul>
+ *     <li>An import is only removed if it is on a line of its own. The line break before it is
+ *     kept, the import is replaced by a line break, and all blank lines after it are removed.</li>
+ *     <li>If an annotation is preceded by two or more whitespace characters then these are
+ *     replaced by a blank line. All whitespace after the annotation is removed.</li>
+ * </ul>
+ */
+final class CodegenStripper {
+    private static final String IMPORT = "import";
+
+    private final EditBuffer code;
+    private final Set<String> imports;
+    private final Set<String> annotations;
+    private final EditBuffer.Editor editor;
+
+    private CodegenStripper(EditBuffer code, Set<String> imports, Set<String> annotations) {
+        this.code = code;
+        this.imports = imports;
+        this.annotations = annotations;
+        this.editor = code.edit();
+    }
+
+    /**
+     * Removes imports and annotations.
+     *
+     * @param code The source code.
+     * @param imports The fully qualified names of the types whose imports to remove.
+     * @param annotations The simple names of the annotations to remove (including their arguments).
+     * @return The source code without the given imports and annotations.
+     */
+    static EditBuffer strip(EditBuffer code, Set<String> imports, Set<String> annotations) {
+        if (imports.isEmpty() && annotations.isEmpty()) {
+            return code;
+        }
+        return new CodegenStripper(code, imports, annotations).strip();
+    }
+
+    private EditBuffer strip() {
+        int length = code.length();
+        int i = 0;
+        while (i < length) {
+            char c = code.charAt(i);
+            int next = skipLiteralOrComment(i);
+            if (next >= 0) {
+                i = next;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int end = identifierEnd(i);
+                i = end - i == IMPORT.length() && code.startsWith(IMPORT, i) && !imports.isEmpty()
+                        ? removeImport(i, end)
+                        : end;
+            } else if (c == '@' && !annotations.isEmpty()) {
+                i = removeAnnotation(i);
+            } else {
+                i++;
+            }
+        }
+        return editor.apply();
+    }
+
+    /**
+     * Removes the import at the given index if it is one to remove.
+     *
+     * @return The index to continue scanning at.
+     */
+    private int removeImport(int importStart, int importEnd) {
+        // import <qualified name>;
+        int nameStart = skipWhitespace(importEnd);
+        if (nameStart == importEnd) {
+            return importEnd;
+        }
+        int nameEnd = nameStart;
+        while (nameEnd < code.length() && (Character.isJavaIdentifierPart(code.charAt(nameEnd)) || code.charAt(nameEnd) == '.')) {
+            nameEnd++;
+        }
+        int semicolon = skipWhitespace(nameEnd);
+        if (semicolon >= code.length() || code.charAt(semicolon) != ';' || !imports.contains(code.subSequence(nameStart, nameEnd))) {
+            return importEnd;
+        }
+
+        // the import must end a line...
+        int lastLineBreak = skipWhitespace(semicolon + 1) - 1;
+        while (lastLineBreak > semicolon && code.charAt(lastLineBreak) != '\n') {
+            lastLineBreak--;
+        }
+        if (lastLineBreak == semicolon) {
+            return importEnd;
+        }
+
+        // ...and start one, i.e., be preceded by a line break or nothing but whitespace
+        Whitespace preceding = precedingWhitespace(importStart);
+        int lineBreak = preceding.text().indexOf('\n');
+        if (preceding.start() > 0 && lineBreak < 0) {
+            return importEnd;
+        }
+
+        // keep the indentation of the next line
+        String lineStart = preceding.start() == 0 ? "" : preceding.text().substring(0, lineBreak + 1);
+        replace(preceding, lastLineBreak + 1, lineStart + "\n");
+        return lastLineBreak + 1;
+    }
+
+    /**
+     * Removes the annotation at the given index if it is one to remove.
+     *
+     * @return The index to continue scanning at.
+     */
+    private int removeAnnotation(int at) {
+        // @ <name> [( ... )]
+        int nameStart = skipWhitespace(at + 1);
+        if (nameStart >= code.length() || !Character.isJavaIdentifierStart(code.charAt(nameStart))) {
+            return at + 1;
+        }
+        int nameEnd = identifierEnd(nameStart);
+        int bracket = skipWhitespace(nameEnd);
+        String name = code.subSequence(nameStart, nameEnd);
+        if (!annotations.contains(name)) {
+            return nameEnd;
+        }
+        // an annotation without arguments ends after the whitespace following its name
+        int end = bracket < code.length() && code.charAt(bracket) == '('
+                ? skipWhitespace(skipArguments(bracket, name))
+                : bracket;
+
+        Whitespace preceding = precedingWhitespace(at);
+        if (preceding.text().length() >= 2) {
+            replace(preceding, end, "\n\n");
+        } else {
+            editor.replace(at, end, "");
+        }
+        return end;
+    }
+
+    /**
+     * @return The index after the closing bracket that matches the given opening bracket.
+     */
+    private int skipArguments(int openingBracket, String annotation) {
+        int depth = 0;
+        int i = openingBracket;
+        while (i < code.length()) {
+            int next = skipLiteralOrComment(i);
+            if (next >= 0) {
+                i = next;
+                continue;
+            }
+            char c = code.charAt(i++);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        throw new CodeGeneratorException("Unbalanced brackets in annotation " + annotation);
+    }
+
+    /**
+     * @return The index after the literal or comment starting at the given index, or -1 if there
+     * is none.
+     */
+    private int skipLiteralOrComment(int i) {
+        char c = code.charAt(i);
+        if (c == '/' && i + 1 < code.length()) {
+            char next = code.charAt(i + 1);
+            if (next == '/') {
+                int end = code.indexOf("\n", i + 2);
+                return end < 0 ? code.length() : end;
+            } else if (next == '*') {
+                int end = code.indexOf("*/", i + 2);
+                return end < 0 ? code.length() : end + 2;
+            }
+        } else if (c == '"') {
+            return code.startsWith("\"\"\"", i) ? skipQuoted(i + 3, "\"\"\"") : skipQuoted(i + 1, "\"");
+        } else if (c == '\'') {
+            return skipQuoted(i + 1, "'");
+        }
+        return -1;
+    }
+
+    private int skipQuoted(int i, String closing) {
+        while (i < code.length()) {
+            char c = code.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (code.startsWith(closing, i)) {
+                return i + closing.length();
+            } else if (c == '\n' && closing.length() == 1) {
+                // unterminated literal
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return code.length();
+    }
+
+    private int identifierEnd(int i) {
+        i++;
+        while (i < code.length() && Character.isJavaIdentifierPart(code.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < code.length() && Character.isWhitespace(code.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Determines the whitespace that precedes the given index in the edited code, which may
+     * extend over the previous removals since these only leave whitespace behind.
+     */
+    private Whitespace precedingWhitespace(int index) {
+        int start = index;
+        int firstEdit = editor.size();
+        while (true) {
+            int limit = firstEdit == 0 ? 0 : editor.end(firstEdit - 1);
+            while (start > limit && Character.isWhitespace(code.charAt(start - 1))) {
+                start--;
+            }
+            if (start > limit || firstEdit == 0 || !editor.replacement(firstEdit - 1).isBlank()) {
+                break;
+            }
+            firstEdit--;
+            start = editor.start(firstEdit);
+        }
+
+        StringBuilder text = new StringBuilder();
+        int copyFrom = start;
+        for (int edit = firstEdit; edit < editor.size(); edit++) {
+            text.append(code.subSequence(copyFrom, editor.start(edit))).append(editor.replacement(edit));
+            copyFrom = editor.end(edit);
+        }
+        text.append(code.subSequence(copyFrom, index));
+        return new Whitespace(start, firstEdit, text.toString());
+    }
+
+    /**
+     * Replaces the given preceding whitespace and everything up to the given end, merging the
+     * previous removals that the whitespace extends over into this one.
+     */
+    private void replace(Whitespace preceding, int end, String replacement) {
+        editor.truncate(preceding.firstEdit());
+        editor.replace(preceding.start(), end, replacement);
+    }
+
+    /**
+     * The whitespace preceding a removal.
+     *
+     * @param start The start of the whitespace in the original code.
+     * @param firstEdit The first previous removal that the whitespace extends over.
+     * @param text The whitespace as it is after the previous removals.
+     */
+    private record Whitespace(int start, int firstEdit, String text) {
+    }
+}
@@ -0,0 +1,44 @@
+package com.kt.codegen;
+
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * Specifies that a companion class should be generated for a class with {@link Instantiate} or
+ * {@link InstantiateAll} annotations. The companion ties the otherwise unrelated instantiations
+ * together:
+ * <ul>
+ *     <li>An interface {@code Of} declaring the public instance methods of the template that
+ *     don't refer to a type parameter, e.g. {@code int size()}.</li>
+ *     <li>An interface per instantiation extending {@code Of}, e.g. {@code OfDouble}, declaring
+ *     the remaining public instance methods with the concrete types, e.g. {@code double get(int)}.
+ *     The instantiation implements this interface.</li>
+ *     <li>If the template has a non-private no-argument constructor, a static factory method
+ *     {@code forType(Class<?>...)} that returns a constructor reference of the instantiation for
+ *     the given concrete types, e.g. {@code MyLists.forType(double.class)}.</li>
+ * </ul>
+ *
+ * <p>This allows picking an instantiation at runtime once, e.g. from configuration, and then
+ * calling it through its primitive interface without boxing:
+ *
+ * <pre>
+ * {@code
+ * MyLists.OfDouble list = (MyLists.OfDouble) MyLists.forType(double.class).get();
+ * }
+ * </pre>
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.SOURCE)
+public @interface Companion {
+    /**
+     * The simple name of the companion class, by default the name of the template class
+     * followed by "s", e.g. {@code MyLists} for {@code MyList}.
+     *
+     * @return The simple name of the companion class, or an empty string for the default.
+     */
+    String name() default "";
+}
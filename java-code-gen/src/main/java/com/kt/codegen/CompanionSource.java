@@ -0,0 +1,183 @@
+package com.kt.codegen;
+
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+
+/**
+ * Generates the source code of the companion class of a template, see {@link Companion}.
+ */
+final class CompanionSource {
+    private static final String INDENT = "    ";
+
+    private CompanionSource() {
+    }
+
+    /**
+     * Generates the companion class.
+     *
+     * @param template The template class.
+     * @param companionName The simple name of the companion class.
+     * @param instantiations The simple names of the instantiations by the qualified names of their
+     *                       concrete types, in declaration order.
+     * @return The source code of the companion class.
+     */
+    static String generate(TypeElement template, String companionName, Map<List<String>, String> instantiations) {
+        String templateName = template.getQualifiedName().toString();
+        List<String> typeParameters = template.getTypeParameters().stream()
+                                              .map(Object::toString)
+                                              .toList();
+
+        // the public instance methods, split by whether they refer to a type parameter
+        List<String> commonMethods = new ArrayList<>();
+        List<String> typedMethods = new ArrayList<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(template.getEnclosedElements())) {
+            if (method.getModifiers().contains(Modifier.PUBLIC) && !method.getModifiers().contains(Modifier.STATIC)) {
+                String signature = signature(method);
+                boolean typed = JavaTokens.tokenize(signature).stream()
+                                          .anyMatch(token -> typeParameters.contains(token.text()));
+                (typed ? typedMethods : commonMethods).add(signature);
+            }
+        }
+        boolean instantiable = !template.getModifiers().contains(Modifier.ABSTRACT)
+                && ElementFilter.constructorsIn(template.getEnclosedElements()).stream()
+                                .anyMatch(constructor -> constructor.getParameters().isEmpty()
+                                        && !constructor.getModifiers().contains(Modifier.PRIVATE));
+
+        StringBuilder s = new StringBuilder();
+        s.append("// generated from ").append(templateName).append("\n");
+        s.append("package ").append(templateName, 0, templateName.lastIndexOf('.')).append(";\n\n");
+        if (instantiable) {
+            s.append("import java.util.Arrays;\n");
+            s.append("import java.util.HashMap;\n");
+            s.append("import java.util.List;\n");
+            s.append("import java.util.Map;\n");
+            s.append("import java.util.function.Supplier;\n\n");
+        }
+        s.append("/**\n");
+        s.append(" * The instantiations of {@link ").append(template.getSimpleName()).append("}.\n");
+        s.append(" */\n");
+        s.append(template.getModifiers().contains(Modifier.PUBLIC) ? "public " : "")
+         .append("final class ").append(companionName).append(" {\n");
+
+        if (instantiable) {
+            s.append(INDENT).append("private static final Map<List<Class<?>>, Supplier<? extends Of>> FACTORIES = new HashMap<>();\n\n");
+            s.append(INDENT).append("static {\n");
+            instantiations.forEach((types, className) -> {
+                s.append(INDENT).append(INDENT).append("FACTORIES.put(List.of(")
+                 .append(types.stream().map(type -> type + ".class").collect(Collectors.joining(", ")))
+                 .append("), ").append(className).append("::new);\n");
+            });
+            s.append(INDENT).append("}\n\n");
+        }
+
+        s.append(INDENT).append("private ").append(companionName).append("() {\n");
+        s.append(INDENT).append("}\n\n");
+
+        s.append(INDENT).append("/**\n");
+        s.append(INDENT).append(" * Implemented by all instantiations.\n");
+        s.append(INDENT).append(" */\n");
+        s.append(INDENT).append("public interface Of {\n");
+        appendMethods(s, commonMethods, Map.of());
+        s.append(INDENT).append("}\n");
+
+        instantiations.forEach((types, className) -> {
+            Map<String, String> replacements = new HashMap<>();
+            for (int i = 0; i < typeParameters.size(); i++) {
+                replacements.put(typeParameters.get(i), types.get(i));
+            }
+            s.append("\n");
+            s.append(INDENT).append("/**\n");
+            s.append(INDENT).append(" * Implemented by {@link ").append(className).append("}.\n");
+            s.append(INDENT).append(" */\n");
+            s.append(INDENT).append("public interface ").append(interfaceName(template, className)).append(" extends Of {\n");
+            appendMethods(s, typedMethods, replacements);
+            s.append(INDENT).append("}\n");
+        });
+
+        if (instantiable) {
+            s.append("\n");
+            s.append(INDENT).append("/**\n");
+            s.append(INDENT).append(" * @param types The concrete types, one per type parameter.\n");
+            s.append(INDENT).append(" * @return A factory creating instances of the instantiation for the given concrete types.\n");
+            s.append(INDENT).append(" * @throws IllegalArgumentException If there is no instantiation for the given concrete types.\n");
+            s.append(INDENT).append(" */\n");
+            s.append(INDENT).append("public static Supplier<? extends Of> forType(Class<?>... types) {\n");
+            s.append(INDENT).append(INDENT).append("Supplier<? extends Of> factory = FACTORIES.get(List.of(types));\n");
+            s.append(INDENT).append(INDENT).append("if (factory == null) {\n");
+            s.append(INDENT).append(INDENT).append(INDENT).append("throw new IllegalArgumentException(\"No instantiation of ")
+             .append(templateName).append(" for \" + Arrays.toString(types));\n");
+            s.append(INDENT).append(INDENT).append("}\n");
+            s.append(INDENT).append(INDENT).append("return factory;\n");
+            s.append(INDENT).append("}\n");
+        }
+
+        s.append("}\n");
+        return s.toString();
+    }
+
+    /**
+     * @return The name of the companion interface of the given instantiation, e.g.
+     * {@code OfDouble} for {@code MyListDouble}.
+     */
+    static String interfaceName(TypeElement template, String className) {
+        String templateName = template.getSimpleName().toString();
+        String typeNames = className.startsWith(templateName)
+                ? className.substring(templateName.length())
+                : className.substring(0, className.length() - templateName.length());
+        return "Of" + typeNames;
+    }
+
+    private static void appendMethods(StringBuilder s, List<String> signatures, Map<String, String> typeParameterReplacements) {
+        for (String signature : signatures) {
+            String concrete = typeParameterReplacements.isEmpty()
+                    ? signature
+                    : JavaTokens.replaceIdentifiers(EditBuffer.of(signature), typeParameterReplacements).toString();
+            s.append(INDENT).append(INDENT).append(concrete).append(";\n");
+        }
+    }
+
+    /**
+     * @return The signature of the given method with qualified type names, e.g.
+     * {@code <U> java.util.List<U> map(java.util.function.Function<T, U> f)}.
+     */
+    private static String signature(ExecutableElement method) {
+        StringBuilder s = new StringBuilder();
+        if (!method.getTypeParameters().isEmpty()) {
+            List<String> typeParameters = new ArrayList<>();
+            for (TypeParameterElement typeParameter : method.getTypeParameters()) {
+                List<String> bounds = typeParameter.getBounds().stream()
+                                                   .map(TypeMirror::toString)
+                                                   .filter(bound -> !bound.equals("java.lang.Object"))
+                                                   .toList();
+                typeParameters.add(bounds.isEmpty() ? typeParameter.toString() : typeParameter + " extends " + String.join(" & ", bounds));
+            }
+            s.append("<").append(String.join(", ", typeParameters)).append("> ");
+        }
+        s.append(method.getReturnType()).append(" ").append(method.getSimpleName()).append("(");
+        List<? extends VariableElement> parameters = method.getParameters();
+        for (int i = 0; i < parameters.size(); i++) {
+            String type = parameters.get(i).asType().toString();
+            if (i == parameters.size() - 1 && method.isVarArgs()) {
+                type = type.substring(0, type.length() - 2) + "...";
+            }
+            s.append(i > 0 ? ", " : "").append(type).append(" ").append(parameters.get(i).getSimpleName());
+        }
+        s.append(")");
+        if (!method.getThrownTypes().isEmpty()) {
+            s.append(" throws ").append(method.getThrownTypes().stream().map(TypeMirror::toString).collect(Collectors.joining(", ")));
+        }
+        return s.toString();
+    }
+}
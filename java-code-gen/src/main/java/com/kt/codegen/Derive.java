@@ -12,9 +12,12 @@ import java.lang.annotation.Target;
  * Specifies that a new class should be generated, derived off the annotated class. The target class
  * name is specified by {@link #name()} and string replacements (plain or regex) are specified by
  * {@link #replace()}.
+ * <p>
+ * On a static method, a copy of the method named {@link #name()} is generated instead, into the
+ * class {@code <Class>Specializations} in the same package, see {@link Instantiate}.
  */
 @Repeatable(Derivatives.class)
-@Target(ElementType.TYPE)
+@Target({ ElementType.TYPE, ElementType.METHOD })
 @Retention(RetentionPolicy.SOURCE)
 public @interface Derive {
     /**
@@ -43,4 +46,29 @@ public @interface Derive {
      * @return A list of string replacements (plain or regex) to apply to the source code..
      */
     Replace[] replace();
+
+    /**
+     * Specifies whether the replacements are applied one after the other (the default) or all
+     * plain string replacements at once in a single pass, see {@link ReplacementMode}.
+     *
+     * @return Specifies how the replacements are applied.
+     */
+    ReplacementMode mode() default ReplacementMode.SEQUENTIAL;
+
+    /**
+     * Specifies whether the primitive array fields of the derived class are moved off-heap, i.e.,
+     * to direct buffers of native memory that the garbage collector neither scans nor copies. The
+     * derived class then implements {@link AutoCloseable}. Element accesses, {@code length},
+     * {@code Arrays.copyOf}, {@code Arrays.fill} and {@code System.arraycopy} on these fields are
+     * rewritten; other uses of the fields as arrays are not supported:
+     *
+     * <pre>
+     * {@code
+     * @Derive(name = "OffHeapDoubleList", replace = {}, offHeap = true)
+     * }
+     * </pre>
+     *
+     * @return Specifies whether the primitive array fields are moved off-heap.
+     */
+    boolean offHeap() default false;
 }
@@ -0,0 +1,324 @@
+package com.kt.codegen;
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+
+/**
+ * An immutable text that is the result of applying edits to an original text, represented as a
+ * piece table: a sequence of slices of the original text and of the replacement texts. Applying
+ * edits creates a new buffer that shares all unchanged slices with this one, so the text of a
+ * code generation pipeline is never copied in full until it is finally written with
+ * {@link #writeTo(Writer)} or {@link #toString()}.
+ *
+ * <p>Sequential access with {@link #charAt(int)} is cheap since the piece of the last access is
+ * remembered. For that reason, a buffer must not be read by several threads concurrently.
+ */
+final class EditBuffer implements CharSequence {
+    private final String[] texts;  // the text of each piece is a slice of one of these
+    private final int[] starts;  // the start of each piece within its text
+    private final int[] offsets;  // the start of each piece within this buffer, plus the length
+
+    // the piece of the last access, in buffer coordinates
+    private String currentText;
+    private int currentStart;
+    private int currentEnd = -1;
+    private int currentShift;
+
+    private EditBuffer(String[] texts, int[] starts, int[] offsets) {
+        this.texts = texts;
+        this.starts = starts;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Creates a buffer from text.
+     *
+     * @param text The text.
+     * @return The buffer.
+     */
+    static EditBuffer of(String text) {
+        return text.isEmpty()
+                ? new EditBuffer(new String[0], new int[0], new int[] { 0 })
+                : new EditBuffer(new String[] { text }, new int[] { 0 }, new int[] { 0, text.length() });
+    }
+
+    /**
+     * @return A new editor to collect edits of this buffer.
+     */
+    Editor edit() {
+        return new Editor();
+    }
+
+    @Override
+    public int length() {
+        return offsets[texts.length];
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < currentStart || index >= currentEnd) {
+            int piece = piece(index);
+            currentText = texts[piece];
+            currentStart = offsets[piece];
+            currentEnd = offsets[piece + 1];
+            currentShift = offsets[piece] - starts[piece];
+        }
+        return currentText.charAt(index - currentShift);
+    }
+
+    @Override
+    public String subSequence(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length());
+        }
+        StringBuilder s = new StringBuilder(end - start);
+        for (int piece = start == end ? texts.length : piece(start); piece < texts.length && offsets[piece] < end; piece++) {
+            int from = Math.max(start, offsets[piece]) - offsets[piece] + starts[piece];
+            int to = Math.min(end, offsets[piece + 1]) - offsets[piece] + starts[piece];
+            s.append(texts[piece], from, to);
+        }
+        return s.toString();
+    }
+
+    /**
+     * Tests whether the given string occurs at the given index.
+     *
+     * @param s The string.
+     * @param index The index.
+     * @return True if the string occurs at the index, false otherwise.
+     */
+    boolean startsWith(String s, int index) {
+        if (index < 0 || index + s.length() > length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (charAt(index + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the next occurrence of a string.
+     *
+     * @param s The string to search, must not be empty.
+     * @param from The index to start searching at.
+     * @return The index of the next occurrence, or -1 if there is none.
+     */
+    int indexOf(String s, int from) {
+        from = Math.max(from, 0);
+        if (from + s.length() > length()) {
+            return -1;
+        }
+
+        // search the first character in the text of each piece directly, which is much faster
+        // than going through charAt(); the next occurrence found beyond the end of a piece is
+        // remembered since the following pieces often are later slices of the same text
+        char first = s.charAt(0);
+        String searchedText = null;
+        int searchedFrom = 0;
+        int next = 0;  // next occurrence in the searched text at or after searchedFrom
+        for (int piece = piece(from); piece < texts.length; piece++) {
+            String text = texts[piece];
+            int shift = offsets[piece] - starts[piece];
+            int pieceEnd = offsets[piece + 1] - shift;
+            int end = Math.min(offsets[piece + 1], length() - s.length() + 1) - shift;
+            int i = Math.max(from, offsets[piece]) - shift;
+            while (i < end) {
+                if (text != searchedText || i < searchedFrom || i > next) {
+                    searchedText = text;
+                    searchedFrom = i;
+                    next = text.indexOf(first, i);
+                    next = next < 0 ? Integer.MAX_VALUE : next;
+                }
+                i = next;
+                if (i >= end) {
+                    break;
+                }
+                if (i + s.length() <= pieceEnd ? text.startsWith(s, i) : startsWith(s, i + shift)) {
+                    return i + shift;
+                }
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the text to a writer, piece by piece.
+     *
+     * @param writer The writer.
+     * @throws IOException If writing fails.
+     */
+    void writeTo(Writer writer) throws IOException {
+        for (int piece = 0; piece < texts.length; piece++) {
+            writer.write(texts[piece], starts[piece], offsets[piece + 1] - offsets[piece]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (texts.length == 1 && starts[0] == 0 && length() == texts[0].length()) {
+            return texts[0];
+        }
+        return subSequence(0, length());
+    }
+
+    private int piece(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+        }
+        int piece = Arrays.binarySearch(offsets, 0, texts.length, index);
+        return piece >= 0 ? piece : -piece - 2;
+    }
+
+    /**
+     * Collects edits of a buffer and applies them all at once. The edits must be given in
+     * ascending order and must not overlap, with positions referring to the edited buffer.
+     */
+    final class Editor {
+        private int[] editStarts = new int[16];
+        private int[] editEnds = new int[16];
+        private String[] replacements = new String[16];
+        private int size;
+
+        private Editor() {
+        }
+
+        /**
+         * Replaces a range of the buffer.
+         *
+         * @param start The start of the range, inclusive.
+         * @param end The end of the range, exclusive.
+         * @param replacement The replacement.
+         * @return This editor.
+         */
+        Editor replace(int start, int end, String replacement) {
+            int previousEnd = size == 0 ? 0 : editEnds[size - 1];
+            if (start < previousEnd || start > end || end > length()) {
+                throw new IllegalArgumentException("Edit " + start + "-" + end + " overlaps a previous edit or exceeds the length " + length());
+            }
+            if (size == editStarts.length) {
+                editStarts = Arrays.copyOf(editStarts, 2 * size);
+                editEnds = Arrays.copyOf(editEnds, 2 * size);
+                replacements = Arrays.copyOf(replacements, 2 * size);
+            }
+            editStarts[size] = start;
+            editEnds[size] = end;
+            replacements[size] = replacement;
+            size++;
+            return this;
+        }
+
+        /**
+         * Inserts text.
+         *
+         * @param index The index to insert at.
+         * @param text The text to insert.
+         * @return This editor.
+         */
+        Editor insert(int index, String text) {
+            return replace(index, index, text);
+        }
+
+        /**
+         * @return The number of edits collected so far.
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * Removes the most recent edits, e.g. in order to replace them with a single edit that
+         * covers all of them.
+         *
+         * @param newSize The number of edits to keep.
+         */
+        void truncate(int newSize) {
+            size = Math.min(size, newSize);
+        }
+
+        int start(int edit) {
+            return editStarts[edit];
+        }
+
+        int end(int edit) {
+            return editEnds[edit];
+        }
+
+        String replacement(int edit) {
+            return replacements[edit];
+        }
+
+        /**
+         * @return The edited buffer, or the original one if there are no edits.
+         */
+        EditBuffer apply() {
+            if (size == 0) {
+                return EditBuffer.this;
+            }
+
+            Pieces pieces = new Pieces(texts.length + 2 * size);
+            int copyFrom = 0;
+            for (int edit = 0; edit < size; edit++) {
+                copy(pieces, copyFrom, editStarts[edit]);
+                pieces.add(replacements[edit], 0, replacements[edit].length());
+                copyFrom = editEnds[edit];
+            }
+            copy(pieces, copyFrom, length());
+            return pieces.toBuffer();
+        }
+
+        private void copy(Pieces pieces, int start, int end) {
+            if (start == end) {
+                return;
+            }
+            for (int piece = piece(start); piece < texts.length && offsets[piece] < end; piece++) {
+                int from = Math.max(start, offsets[piece]) - offsets[piece] + starts[piece];
+                int to = Math.min(end, offsets[piece + 1]) - offsets[piece] + starts[piece];
+                pieces.add(texts[piece], from, to);
+            }
+        }
+    }
+
+    private static final class Pieces {
+        private String[] texts;
+        private int[] starts;
+        private int[] offsets;
+        private int size;
+
+        private Pieces(int capacity) {
+            texts = new String[capacity];
+            starts = new int[capacity];
+            offsets = new int[capacity + 1];
+        }
+
+        private void add(String text, int start, int end) {
+            if (start == end) {
+                return;
+            }
+            if (size > 0 && texts[size - 1] == text && starts[size - 1] + offsets[size] - offsets[size - 1] == start) {
+                // adjacent slice of the same text, extend the previous piece
+                offsets[size] += end - start;
+                return;
+            }
+            if (size == texts.length) {
+                texts = Arrays.copyOf(texts, 2 * size);
+                starts = Arrays.copyOf(starts, 2 * size);
+                offsets = Arrays.copyOf(offsets, 2 * size + 1);
+            }
+            texts[size] = text;
+            starts[size] = start;
+            offsets[size + 1] = offsets[size] + end - start;
+            size++;
+        }
+
+        private EditBuffer toBuffer() {
+            return new EditBuffer(Arrays.copyOf(texts, size), Arrays.copyOf(starts, size), Arrays.copyOf(offsets, size + 1));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.kt.codegen;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+
+/**
+ * A persistent, content-addressed cache of generated source code. Entries are keyed by a hash of
+ * everything that determines the generated code (template source, replacements, concrete types,
+ * processor version), so a cache hit can be written as is without running the replacement
+ * pipeline. The cache directory may be shared by concurrent compilations.
+ *
+ * <p>Entries not used for longer than the maximum age are evicted, and if the cache grows beyond
+ * its maximum size then the least recently used entries are evicted.
+ */
+final class GeneratedSourceCache {
+    private static final String SUFFIX = ".java.cached";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Duration maxAge;
+    private final String processorFingerprint;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param directory The cache directory, created if it doesn't exist.
+     * @param maxBytes The maximum total size of all cache entries.
+     * @param maxAge The maximum time since the last use of a cache entry.
+     */
+    GeneratedSourceCache(Path directory, long maxBytes, Duration maxAge) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        this.processorFingerprint = processorFingerprint();
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException ex) {
+            throw new CodeGeneratorException("Could not create cache directory " + directory + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Computes the cache key for the given inputs of a code generation. The processor version is
+     * included implicitly.
+     *
+     * @param inputs Everything that determines the generated code.
+     * @return The cache key.
+     */
+    String key(List<String> inputs) {
+        return key(processorFingerprint, inputs);
+    }
+
+    /**
+     * Computes a cache key, e.g. for other caches of artifacts derived from generated code.
+     *
+     * @param processorFingerprint The fingerprint of the code generator, see {@link #processorFingerprint()}.
+     * @param inputs Everything that determines the cached artifact.
+     * @return The cache key.
+     */
+    static String key(String processorFingerprint, List<String> inputs) {
+        MessageDigest digest = sha256();
+        update(digest, processorFingerprint);
+        for (String input : inputs) {
+            update(digest, input);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Looks up generated source code.
+     *
+     * @param key The cache key, see {@link #key(List)}.
+     * @return The cached source code, if any.
+     */
+    Optional<String> get(String key) {
+        Path file = file(key);
+        try {
+            String source = Files.readString(file, StandardCharsets.UTF_8);
+            // mark as recently used
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+            hits.incrementAndGet();
+            return Optional.of(source);
+        } catch (IOException ex) {
+            // not cached (or concurrently evicted)
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores generated source code. Failures are ignored since the cache is an optimization only.
+     *
+     * @param key The cache key, see {@link #key(List)}.
+     * @param source The generated source code.
+     */
+    void put(String key, EditBuffer source) {
+        Path file = file(key);
+        try {
+            Files.createDirectories(file.getParent());
+            Path tempFile = Files.createTempFile(file.getParent(), key, ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                source.writeTo(writer);
+            }
+            try {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            // ignore, the source will simply be regenerated next time
+        }
+    }
+
+    /**
+     * Evicts entries that exceed the maximum age, then least recently used entries until the cache
+     * fits into its maximum size.
+     *
+     * @return The number of evicted entries.
+     */
+    int evict() {
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).forEach(file -> {
+                try {
+                    entries.add(new Entry(file, Files.size(file), Files.getLastModifiedTime(file).toInstant()));
+                } catch (IOException ex) {
+                    // concurrently evicted
+                }
+            });
+        } catch (IOException ex) {
+            return 0;
+        }
+
+        entries.sort(Comparator.comparing(Entry::lastUsed));
+        Instant oldestAllowed = Instant.now().minus(maxAge);
+        long totalBytes = entries.stream().mapToLong(Entry::bytes).sum();
+        int evicted = 0;
+        for (Entry entry : entries) {
+            if (!entry.lastUsed().isBefore(oldestAllowed) && totalBytes <= maxBytes) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(entry.file());
+                evicted++;
+            } catch (IOException ex) {
+                // ignore, will be retried next time
+            }
+            totalBytes -= entry.bytes();
+        }
+        return evicted;
+    }
+
+    int hits() {
+        return hits.get();
+    }
+
+    int misses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Generated source cache: " + hits + " hits, " + misses + " misses (" + directory + ")";
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) ':');
+        digest.update(bytes);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return A hash of the code generator's own class files (or JAR), so that any change to the
+     * processor invalidates all cache entries.
+     */
+    static String processorFingerprint() {
+        MessageDigest digest = sha256();
+        try {
+            CodeSource codeSource = GeneratedSourceCache.class.getProtectionDomain().getCodeSource();
+            Path location = codeSource == null ? null : Path.of(codeSource.getLocation().toURI());
+            if (location != null && Files.isRegularFile(location)) {
+                digest.update(Files.readAllBytes(location));
+            } else {
+                // class file directory, e.g. during development: hash the classes of this package
+                String packagePath = GeneratedSourceCache.class.getPackageName().replace('.', '/');
+                Path packageDir = location == null ? null : location.resolve(packagePath);
+                if (packageDir == null || !Files.isDirectory(packageDir)) {
+                    try (InputStream in = GeneratedSourceCache.class.getResourceAsStream("CodeGeneratorProcessor.class")) {
+                        digest.update(in.readAllBytes());
+                    }
+                } else {
+                    try (Stream<Path> classFiles = Files.list(packageDir)) {
+                        for (Path classFile : (Iterable<Path>) classFiles.filter(Files::isRegularFile).sorted()::iterator) {
+                            update(digest, classFile.getFileName().toString());
+                            digest.update(Files.readAllBytes(classFile));
+                        }
+                    }
+                }
+            }
+        } catch (IOException | URISyntaxException | RuntimeException ex) {
+            throw new CodeGeneratorException("Could not determine code generator version for caching: " + ex);
+        }
+        return toHex(digest.digest());
+    }
+
+    private record Entry(Path file, long bytes, Instant lastUsed) {
+    }
+}
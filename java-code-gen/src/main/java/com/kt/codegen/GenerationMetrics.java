@@ -0,0 +1,292 @@
+package com.kt.codegen;
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Collects timings and byte counts of code generation: per template the time to read (and parse)
+ * its source code, and per generated class the time of every generation step (each replacement
+ * rule, import and annotation stripping, writing, ...). Every step is also emitted as a JFR event
+ * (see {@link JfrEventType}).
+ *
+ * <p>Thread-safe: outputs may be generated on any thread.
+ */
+final class GenerationMetrics {
+    private static final JfrEventType TEMPLATE_READ_EVENT = new JfrEventType(
+            "TemplateRead",
+            "Template Read",
+            "Reading and parsing the source code of a template",
+            "template", String.class,
+            "bytes", long.class);
+    private static final JfrEventType GENERATION_STEP_EVENT = new JfrEventType(
+            "GenerationStep",
+            "Code Generation Step",
+            "A step in generating a class from a template",
+            "template", String.class,
+            "target", String.class,
+            "step", String.class);
+
+    private final Map<String, TemplateMetrics> templates = new LinkedHashMap<>();
+
+    /**
+     * Starts recording the reading of a template.
+     *
+     * @param template The qualified name of the template class.
+     * @return The running read, to be {@linkplain TemplateRead#end(long) ended} once the template
+     * has been read and parsed.
+     */
+    TemplateRead beginRead(String template) {
+        return new TemplateRead(this, template);
+    }
+
+    private synchronized void templateRead(String template, long nanos, long bytes) {
+        TemplateMetrics metrics = template(template);
+        metrics.readNanos += nanos;
+        metrics.sourceBytes = bytes;
+    }
+
+    /**
+     * Starts recording the generation of a class.
+     *
+     * @param template The qualified name of the template class.
+     * @param target The qualified name of the generated class.
+     * @return The recorder for the generation steps.
+     */
+    synchronized Output output(String template, String target) {
+        Output output = new Output(template, target, false);
+        template(template).outputs.add(output);
+        return output;
+    }
+
+    /**
+     * @return A one-line summary of all recorded metrics.
+     */
+    synchronized String summary() {
+        int outputs = 0;
+        int cached = 0;
+        long readNanos = 0;
+        long generateNanos = 0;
+        long writeNanos = 0;
+        long outputBytes = 0;
+        for (TemplateMetrics template : templates.values()) {
+            readNanos += template.readNanos;
+            for (Output output : template.outputs) {
+                outputs++;
+                cached += output.cached ? 1 : 0;
+                outputBytes += output.outputBytes;
+                for (Map.Entry<String, Long> step : output.steps().entrySet()) {
+                    if (step.getKey().equals(Output.WRITE)) {
+                        writeNanos += step.getValue();
+                    } else {
+                        generateNanos += step.getValue();
+                    }
+                }
+            }
+        }
+        return String.format(Locale.ROOT,
+                "Generated %d classes (%d cached, %d bytes) from %d templates: read %.1f ms, generate %.1f ms, write %.1f ms",
+                outputs, cached, outputBytes, templates.size(), millis(readNanos), millis(generateNanos), millis(writeNanos));
+    }
+
+    /**
+     * Writes all recorded metrics as a JSON report.
+     *
+     * @param file The report file.
+     */
+    synchronized void writeJson(Path file) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"templates\": [");
+        String templateSeparator = "\n";
+        for (Map.Entry<String, TemplateMetrics> template : templates.entrySet()) {
+            TemplateMetrics metrics = template.getValue();
+            json.append(templateSeparator).append("    {\n");
+            json.append("      \"template\": ").append(quote(template.getKey())).append(",\n");
+            json.append("      \"readNanos\": ").append(metrics.readNanos).append(",\n");
+            json.append("      \"sourceBytes\": ").append(metrics.sourceBytes).append(",\n");
+            json.append("      \"outputs\": [");
+            String outputSeparator = "\n";
+            for (Output output : metrics.outputs) {
+                json.append(outputSeparator).append("        {\n");
+                json.append("          \"target\": ").append(quote(output.target)).append(",\n");
+                json.append("          \"cached\": ").append(output.cached).append(",\n");
+                json.append("          \"outputBytes\": ").append(output.outputBytes).append(",\n");
+                json.append("          \"steps\": [");
+                String stepSeparator = "\n";
+                for (Map.Entry<String, Long> step : output.steps().entrySet()) {
+                    json.append(stepSeparator).append("            { \"step\": ").append(quote(step.getKey()))
+                            .append(", \"nanos\": ").append(step.getValue()).append(" }");
+                    stepSeparator = ",\n";
+                }
+                json.append("\n          ]\n        }");
+                outputSeparator = ",\n";
+            }
+            json.append("\n      ]\n    }");
+            templateSeparator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.writeString(file, json, StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new CodeGeneratorException("Could not write metrics to " + file + ": " + ex.getMessage());
+        }
+    }
+
+    private TemplateMetrics template(String template) {
+        return templates.computeIfAbsent(template, t -> new TemplateMetrics());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static final class TemplateMetrics {
+        private long readNanos;
+        private long sourceBytes;
+        private final List<Output> outputs = new ArrayList<>();
+    }
+
+    /**
+     * Records the steps of generating one class. Steps must be recorded on one thread at a time.
+     */
+    static final class Output {
+        static final String WRITE = "write";
+
+        private final String template;
+        private final String target;
+        private final Map<String, Long> steps;  // null if discarding
+        private boolean cached;
+        private long outputBytes;
+
+        private Output(String template, String target, boolean discarding) {
+            this.template = template;
+            this.target = target;
+            this.steps = discarding ? null : new LinkedHashMap<>();
+        }
+
+        /**
+         * @param template The qualified name of the template class.
+         * @param target The qualified name of the generated class.
+         * @return A recorder that discards everything except JFR events, e.g. for benchmarks.
+         */
+        static Output discarding(String template, String target) {
+            return new Output(template, target, true);
+        }
+
+        /**
+         * Starts a generation step.
+         *
+         * @param step The step name.
+         * @return The started step, to be {@linkplain Step#end() ended} after the step.
+         */
+        Step begin(String step) {
+            return new Step(this, step);
+        }
+
+        void cached() {
+            cached = true;
+        }
+
+        void outputBytes(long bytes) {
+            outputBytes = bytes;
+        }
+
+        private synchronized void record(String step, long nanos) {
+            if (steps != null) {
+                steps.merge(step, nanos, Long::sum);
+            }
+        }
+
+        private synchronized Map<String, Long> steps() {
+            return steps == null ? Map.of() : new LinkedHashMap<>(steps);
+        }
+    }
+
+    /**
+     * A running template read.
+     */
+    static final class TemplateRead {
+        private final GenerationMetrics metrics;
+        private final String template;
+        private final Object event;
+        private final long start;
+
+        private TemplateRead(GenerationMetrics metrics, String template) {
+            this.metrics = metrics;
+            this.template = template;
+            this.event = TEMPLATE_READ_EVENT.begin();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Ends this read.
+         *
+         * @param bytes The size of the template source code.
+         */
+        void end(long bytes) {
+            metrics.templateRead(template, System.nanoTime() - start, bytes);
+            TEMPLATE_READ_EVENT.commit(event, template, bytes);
+        }
+    }
+
+    /**
+     * A running generation step.
+     */
+    static final class Step {
+        private final Output output;
+        private final String name;
+        private final Object event;
+        private final long start;
+
+        private Step(Output output, String name) {
+            this.output = output;
+            this.name = name;
+            this.event = GENERATION_STEP_EVENT.begin();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Ends this step.
+         */
+        void end() {
+            output.record(name, System.nanoTime() - start);
+            GENERATION_STEP_EVENT.commit(event, output.template, output.target, name);
+        }
+    }
+}
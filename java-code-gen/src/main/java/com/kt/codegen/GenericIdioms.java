@@ -0,0 +1,776 @@
+package com.kt.codegen;
+
+
+import com.kt.codegen.JavaTokens.Kind;
+import com.kt.codegen.JavaTokens.Token;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Rewrites idioms of generic code that don't compile, or that cost casts and boxing, once type
+ * parameters are replaced by concrete types. This is done on the template code before the type
+ * parameters are replaced, i.e., while they can still be recognized:
+ * <ul>
+ *     <li>Generic array creations like {@code (T[]) new Object[size]} become
+ *     {@code new T[size]}, i.e., primitive or typed array creations such as
+ *     {@code new double[size]} or {@code new String[size]} after the replacement.</li>
+ *     <li>Casts to a type parameter (or an array of it) are removed if their operand is a variable,
+ *     an element of an array variable or a method call that is declared with exactly that type
+ *     in the template, e.g. {@code (T) array[i]} for a {@code T[] array}.</li>
+ * </ul>
+ *
+ * <p>If a type parameter is replaced by a primitive type, calls that would box values of that
+ * type are rewritten to their primitive counterparts, e.g. for {@code double}:
+ * <ul>
+ *     <li>{@code a.equals(b)} and {@code Objects.equals(a, b)} become
+ *     {@code (Double.compare(a, b) == 0)}, which treats {@code NaN} and {@code -0.0} like
+ *     {@link Double#equals(Object)} does. For integral types, {@code char} and {@code boolean}
+ *     they become {@code (a == b)}.</li>
+ *     <li>{@code a.hashCode()} becomes {@code Double.hashCode(a)}.</li>
+ *     <li>{@code a.compareTo(b)} becomes {@code Double.compare(a, b)}.</li>
+ *     <li>{@code Objects.hash(a, b, ...)} is inlined as {@code (31 * (31 + Double.hashCode(a)) + ...)},
+ *     using {@code Objects.hashCode(x)} for arguments of other types.</li>
+ *     <li>{@code a == null} becomes {@code false} and {@code a != null} becomes {@code true}
+ *     for a variable {@code a}.</li>
+ * </ul>
+ * Here, {@code a} and {@code b} stand for operands declared with the type parameter as
+ * described above. Anything else, e.g. {@code a.equals(someObject)}, is left alone.
+ *
+ * <p>If a {@link Sentinel} is given for the concrete type, {@code null} is replaced by the sentinel
+ * instead where it stands for a value of the type parameter, e.g. for {@code Double.NaN}:
+ * <ul>
+ *     <li>{@code a == null} becomes {@code Double.compare(a, Double.NaN) == 0}, which holds for
+ *     {@code NaN}, and {@code a != null} becomes {@code Double.compare(a, Double.NaN) != 0}. For
+ *     other types the sentinel is compared with {@code ==} and {@code !=}.</li>
+ *     <li>{@code a = null}, {@code T a = null}, {@code return null} in a method returning
+ *     {@code T} and {@code Arrays.fill(array, null)} for a {@code T[] array} use the sentinel.</li>
+ * </ul>
+ * The implicit {@code null} defaults become the sentinel as well, through private static helpers
+ * that are added to the end of the type body, e.g. {@code filledT(double[])} for a type parameter
+ * {@code T}:
+ * <ul>
+ *     <li>{@code (T[]) new Object[size]} becomes {@code filledT(new T[size])}. A creation of nested
+ *     arrays like {@code (T[][]) new Object[n][m]} can't be filled this way and is rejected.</li>
+ *     <li>{@code T a;} declared as an instance field without initializer becomes
+ *     {@code T a = Double.NaN;}. Final fields are left alone, as they are assigned anyway.</li>
+ *     <li>{@code Arrays.copyOf(array, length)} and {@code Arrays.copyOfRange(array, from, to)} for
+ *     a {@code T[] array} become {@code copyOfT(...)} and {@code copyOfRangeT(...)}, which fill
+ *     the elements past the end of {@code array} with the sentinel.</li>
+ * </ul>
+ *
+ * <p>Declarations are recognized syntactically. A name that is declared with different types
+ * anywhere in the template (e.g. a local variable in one method and a parameter in another one)
+ * is left alone, so that a cast is only removed if it is redundant for sure.
+ */
+final class GenericIdioms {
+    private static final String AMBIGUOUS = "";
+
+    // keywords that may precede an identifier without declaring it (primitive types are not included)
+    private static final Set<String> KEYWORDS = Set.of(
+            "abstract", "assert", "break", "case", "catch", "class", "const", "continue", "default", "do",
+            "else", "enum", "extends", "final", "finally", "for", "goto", "if", "implements", "import",
+            "instanceof", "interface", "native", "new", "package", "private", "protected", "public",
+            "return", "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws",
+            "transient", "try", "volatile", "while", "true", "false", "null");
+
+    private static final Map<String, String> WRAPPERS = Map.of(
+            "boolean", "Boolean", "byte", "Byte", "char", "Character", "short", "Short",
+            "int", "Integer", "long", "Long", "float", "Float", "double", "Double");
+
+    // tokens around a comparison with null that bind less tightly than the comparison itself
+    private static final Set<String> BEFORE_NULL_CHECK = Set.of("(", ",", "=", "return", "&&", "||", "?", ":", "{", ";", "->");
+    private static final Set<String> AFTER_NULL_CHECK = Set.of(")", ",", ";", "&&", "||", "?", ":", "}");
+    private static final Set<String> TYPE_DECLARATIONS = Set.of("class", "interface", "record");
+    private static final Set<String> MODIFIERS = Set.of("public", "protected", "private", "static", "final", "transient", "volatile");
+
+    private final EditBuffer code;
+    private final String className;
+    private final Set<String> typeParameters;
+    private final Map<String, String> wrappers = new HashMap<>();  // by type parameter replaced by a primitive type
+    private final Map<String, String> sentinels;  // by type parameter
+    private final List<Token> tokens;
+    private final List<Integer> codeTokens = new ArrayList<>();  // indices of non-whitespace, non-comment tokens
+    private final Map<String, String> declaredTypes = new HashMap<>();
+    private final Set<Integer> uninitializedFields = new HashSet<>();  // indices of the names
+    private final Map<String, String> helpers = new LinkedHashMap<>();  // source code by name
+    private int bodyEnd = -1;
+
+    private GenericIdioms(EditBuffer code, String className, Map<String, String> typeParameterReplacements, Map<String, String> sentinels) {
+        this.code = code;
+        this.className = className;
+        this.typeParameters = typeParameterReplacements.keySet();
+        this.sentinels = sentinels;
+        typeParameterReplacements.forEach((typeParameter, concreteType) -> {
+            if (WRAPPERS.containsKey(concreteType)) {
+                wrappers.put(typeParameter, WRAPPERS.get(concreteType));
+            }
+        });
+        this.tokens = JavaTokens.tokenize(code);
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).isCode()) {
+                codeTokens.add(i);
+            }
+        }
+    }
+
+    /**
+     * Rewrites generic idioms.
+     *
+     * @param code The template code.
+     * @param className The fully qualified name of the template, for error messages.
+     * @param typeParameterReplacements The concrete types (simple names, e.g. {@code double}) by
+     *                                  the names of the type parameters they replace.
+     * @param sentinels The values that stand for {@code null} by type parameter name, see
+     *                  {@link Sentinel}.
+     * @return The rewritten code.
+     * @throws CodeGeneratorException If an implicit {@code null} default can't be replaced by a
+     * sentinel.
+     */
+    static EditBuffer rewrite(EditBuffer code, String className, Map<String, String> typeParameterReplacements, Map<String, String> sentinels) {
+        if (typeParameterReplacements.isEmpty()) {
+            return code;
+        }
+        return new GenericIdioms(code, className, typeParameterReplacements, sentinels).rewrite();
+    }
+
+    private EditBuffer rewrite() {
+        collectDeclarations();
+        if (!sentinels.isEmpty()) {
+            collectUninitializedFields();
+        }
+
+        EditBuffer.Editor editor = code.edit();
+        for (int i = 0; i < codeTokens.size(); i++) {
+            int end = rewriteCast(i, editor);
+            if (end < 0 && !sentinels.isEmpty()) {
+                end = rewriteNull(i, editor);
+            }
+            if (end < 0 && !sentinels.isEmpty()) {
+                end = rewriteDefault(i, editor);
+            }
+            if (end < 0 && !wrappers.isEmpty()) {
+                end = rewriteBoxing(i, editor);
+            }
+            if (end >= 0) {
+                i = end;
+            }
+        }
+        return editor.apply();
+    }
+
+    /**
+     * Rewrites a generic array creation or removes a redundant cast starting at the given index.
+     *
+     * @return The index of the last token that was rewritten, or -1 if nothing was rewritten.
+     */
+    private int rewriteCast(int i, EditBuffer.Editor editor) {
+        int castEnd = castEnd(i);
+        if (castEnd < 0) {
+            return -1;
+        }
+        String castType = text(i + 1, castEnd);
+        if (castType.endsWith("]") && is(castEnd + 1, "new") && is(castEnd + 2, "Object") && is(castEnd + 3, "[")) {
+            String typeParameter = token(i + 1).text();
+            Token object = token(castEnd + 2);
+            int close = closingBracket(castEnd + 3, "[", "]");
+            if (!sentinels.containsKey(typeParameter) || close == castEnd + 4) {
+                // (T[]) new Object[size] -> new T[size]
+                editor.replace(token(i).start(), endIncludingWhitespace(castEnd), "");
+                editor.replace(object.start(), object.end(), typeParameter);
+                return castEnd + 2;
+            }
+            if (!castType.equals(typeParameter + "[]")) {
+                // the outer elements are arrays, and null for them, unless there are inner dimensions
+                if (is(close + 1, "[") && !is(close + 2, "]")) {
+                    throw new CodeGeneratorException("Cannot fill " + source(i, closingBracket(close + 1, "[", "]") + 1)
+                            + " with the sentinel in " + className + ", create the inner arrays one by one");
+                }
+                editor.replace(token(i).start(), endIncludingWhitespace(castEnd), "");
+                editor.replace(object.start(), object.end(), typeParameter);
+                return castEnd + 2;
+            }
+            // (T[]) new Object[size] -> filledT(new T[size])
+            String helper = addHelper(i, "filled", typeParameter);
+            editor.replace(token(i).start(), endIncludingWhitespace(castEnd), helper + "(");
+            editor.replace(object.start(), object.end(), typeParameter);
+            editor.insert(token(close).end(), ")");
+            return close;
+        }
+        Operand operand = operand(castEnd + 1);
+        if (operand != null && !continued(operand.end()) && castType.equals(operand.type())) {
+            // (T) t -> t
+            editor.replace(token(i).start(), endIncludingWhitespace(castEnd), "");
+            return castEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces {@code null} by a sentinel in an assignment, a return statement, an
+     * {@code Arrays.fill(...)} call or a comparison starting at the given index.
+     *
+     * @return The index of the last token that was rewritten, or -1 if nothing was rewritten.
+     */
+    private int rewriteNull(int i, EditBuffer.Editor editor) {
+        if (is(i, "return") && is(i + 1, "null") && is(i + 2, ";")) {
+            // return null; -> return Double.NaN;
+            String sentinel = sentinels.get(enclosingMethodType(i));
+            if (sentinel != null) {
+                replace(editor, i + 1, i + 1, sentinel);
+                return i + 1;
+            }
+            return -1;
+        }
+
+        if (is(i, "Arrays") && is(i + 1, ".") && is(i + 2, "fill") && is(i + 3, "(") && (!is(i - 1, ".") || is(i - 2, "util"))) {
+            // Arrays.fill(array, null) -> Arrays.fill(array, Double.NaN)
+            Operand array = operand(i + 4);
+            int end = closingBracket(i + 3, "(", ")");
+            if (array != null && end > 0 && is(array.end(), ",") && is(end - 1, "null") && is(end - 2, ",") && array.type().endsWith("[]")) {
+                String sentinel = sentinels.get(array.type().substring(0, array.type().length() - 2));
+                if (sentinel != null) {
+                    replace(editor, end - 1, end - 1, sentinel);
+                    return end;
+                }
+            }
+            return -1;
+        }
+
+        if (is(i, "null") && (is(i + 1, "==") || is(i + 1, "!="))) {
+            // null == a -> Double.compare(a, Double.NaN) == 0
+            Operand a = operand(i + 2);
+            if (a != null && sentinels.containsKey(a.type()) && isNullCheck(i, a.end())) {
+                replace(editor, i, a.end() - 1, sentinelCheck(a, token(i + 1).text()));
+                return a.end() - 1;
+            }
+            return -1;
+        }
+
+        Operand a = operand(i);
+        if (a == null || !sentinels.containsKey(a.type())) {
+            return -1;
+        }
+        int end = a.end();
+        if ((is(end, "==") || is(end, "!=")) && is(end + 1, "null") && isNullCheck(i, end + 2)) {
+            // a == null -> Double.compare(a, Double.NaN) == 0
+            replace(editor, i, end + 1, sentinelCheck(a, token(end).text()));
+            return end + 1;
+        }
+        if (is(end, "=") && is(end + 1, "null") && (is(end + 2, ";") || is(end + 2, ",") || is(end + 2, ")"))) {
+            // a = null -> a = Double.NaN
+            replace(editor, end + 1, end + 1, sentinels.get(a.type()));
+            return end + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces an implicit {@code null} default by a sentinel in an instance field declaration or
+     * an {@code Arrays.copyOf(...)} call starting at the given index, or adds the helpers at the
+     * end of the type body.
+     *
+     * @return The index of the last token that was rewritten, or -1 if nothing was rewritten.
+     */
+    private int rewriteDefault(int i, EditBuffer.Editor editor) {
+        if (i == bodyEnd && !helpers.isEmpty()) {
+            StringBuilder members = new StringBuilder();
+            helpers.values().forEach(helper -> members.append("\n").append(helper));
+            editor.insert(token(i).start(), members.toString());
+            return i;
+        }
+
+        if (uninitializedFields.contains(i)) {
+            // T a; -> T a = Double.NaN;
+            editor.insert(token(i).end(), " = " + sentinels.get(token(i - 1).text()));
+            return i;
+        }
+
+        if (is(i, "Arrays") && is(i + 1, ".") && (is(i + 2, "copyOf") || is(i + 2, "copyOfRange")) && is(i + 3, "(")
+                && (!is(i - 1, ".") || is(i - 2, "util"))) {
+            // Arrays.copyOf(array, length) -> copyOfT(array, length)
+            Operand array = operand(i + 4);
+            if (array != null && is(array.end(), ",") && array.type().endsWith("[]")) {
+                String typeParameter = array.type().substring(0, array.type().length() - 2);
+                if (sentinels.containsKey(typeParameter)) {
+                    String helper = addHelper(i, token(i + 2).text(), typeParameter);
+                    replace(editor, is(i - 1, ".") ? i - 4 : i, i + 2, helper);
+                    return i + 2;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a helper that fills the implicit {@code null} defaults of a new array with the sentinel.
+     *
+     * @param i The index the helper is called at.
+     * @param name The name of the helper without the type parameter, i.e., {@code filled},
+     *             {@code copyOf} or {@code copyOfRange}.
+     * @param typeParameter The type parameter of the array elements.
+     * @return The name of the helper.
+     */
+    private String addHelper(int i, String name, String typeParameter) {
+        if (i > bodyEnd) {
+            throw new CodeGeneratorException("Cannot replace the null elements of " + typeParameter
+                    + "[] by the sentinel outside of the type body of " + className);
+        }
+        String helper = name + typeParameter;
+        String sentinel = sentinels.get(typeParameter);
+        String array = typeParameter + "[]";
+        StringBuilder s = new StringBuilder();
+        switch (name) {
+            case "filled" -> {
+                s.append("    private static ").append(array).append(" ").append(helper).append("(").append(array).append(" array) {\n");
+                s.append("        java.util.Arrays.fill(array, ").append(sentinel).append(");\n");
+                s.append("        return array;\n");
+                s.append("    }\n");
+            }
+            case "copyOf" -> {
+                s.append("    private static ").append(array).append(" ").append(helper).append("(").append(array)
+                 .append(" original, int newLength) {\n");
+                s.append("        ").append(array).append(" copy = java.util.Arrays.copyOf(original, newLength);\n");
+                s.append("        java.util.Arrays.fill(copy, Math.min(original.length, newLength), newLength, ").append(sentinel).append(");\n");
+                s.append("        return copy;\n");
+                s.append("    }\n");
+            }
+            default -> {
+                s.append("    private static ").append(array).append(" ").append(helper).append("(").append(array)
+                 .append(" original, int from, int to) {\n");
+                s.append("        ").append(array).append(" copy = java.util.Arrays.copyOfRange(original, from, to);\n");
+                s.append("        java.util.Arrays.fill(copy, Math.min(original.length, to) - from, copy.length, ").append(sentinel).append(");\n");
+                s.append("        return copy;\n");
+                s.append("    }\n");
+            }
+        }
+        helpers.putIfAbsent(helper, s.toString());
+        return helper;
+    }
+
+    private String sentinelCheck(Operand operand, String operator) {
+        String sentinel = sentinels.get(operand.type());
+        String wrapper = wrappers.get(operand.type());
+        return "Double".equals(wrapper) || "Float".equals(wrapper)
+                ? wrapper + ".compare(" + source(operand) + ", " + sentinel + ") " + operator + " 0"
+                : source(operand) + " " + operator + " " + sentinel;
+    }
+
+    /**
+     * @return The declared return type of the method that the given index is in, or null if it
+     * isn't in a method (but e.g. in a lambda) or the return type is unknown.
+     */
+    private String enclosingMethodType(int i) {
+        int depth = 0;
+        for (int j = i - 1; j >= 0; j--) {
+            if (is(j, "}")) {
+                depth++;
+            } else if (is(j, "{") && depth > 0) {
+                depth--;
+            } else if (is(j, "{")) {
+                // the start of the enclosing block, possibly after a throws clause
+                int k = j - 1;
+                for (int t = k; t >= 0 && (token(t).kind() == Kind.IDENTIFIER || is(t, ".") || is(t, ",")); t--) {
+                    if (is(t, "throws")) {
+                        k = t - 1;
+                        break;
+                    }
+                }
+                if (is(k, ")")) {
+                    int name = openingBracket(k, "(", ")") - 1;
+                    if (name < 0 || token(name).kind() != Kind.IDENTIFIER) {
+                        return null;
+                    }
+                    if (!KEYWORDS.contains(token(name).text())) {
+                        // a method
+                        String type = declaredTypes.get(token(name).text());
+                        return AMBIGUOUS.equals(type) ? null : type;
+                    }
+                    // a control statement such as if, for or catch
+                } else if (!(is(k, "else") || is(k, "try") || is(k, "finally") || is(k, "do")
+                        || is(k, "{") || is(k, "}") || is(k, ";") || is(k, ":"))) {
+                    // a lambda, a class body or an initializer
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rewrites a boxing call or a comparison with null starting at the given index.
+     *
+     * @return The index of the last token that was rewritten, or -1 if nothing was rewritten.
+     */
+    private int rewriteBoxing(int i, EditBuffer.Editor editor) {
+        if (is(i, "Objects") && is(i + 1, ".") && is(i + 3, "(")) {
+            int start = i;
+            if (is(i - 1, ".")) {
+                if (!(is(i - 2, "util") && is(i - 3, ".") && is(i - 4, "java") && !is(i - 5, "."))) {
+                    return -1;
+                }
+                start = i - 4;
+            }
+            if (is(i + 2, "equals")) {
+                // Objects.equals(a, b) -> (a == b)
+                Operand a = operand(i + 4);
+                Operand b = a != null && is(a.end(), ",") ? operand(a.end() + 1) : null;
+                if (b != null && is(b.end(), ")") && isPrimitive(a) && a.type().equals(b.type())) {
+                    replace(editor, start, b.end(), equality(a, b));
+                    return b.end();
+                }
+            } else if (is(i + 2, "hash")) {
+                // Objects.hash(a, x) -> (31 * (31 + Double.hashCode(a)) + Objects.hashCode(x))
+                int end = closingBracket(i + 3, "(", ")");
+                String hash = end < 0 ? null : inlineHash(text(start, i + 1), i + 4, end);
+                if (hash != null) {
+                    replace(editor, start, end, hash);
+                    return end;
+                }
+            }
+            return -1;
+        }
+
+        if (is(i, "null") && (is(i + 1, "==") || is(i + 1, "!="))) {
+            // null == a -> false
+            Operand a = operand(i + 2);
+            if (a != null && a.end() == i + 3 && isPrimitive(a) && isNullCheck(i, a.end())) {
+                replace(editor, i, a.end() - 1, is(i + 1, "!=") ? "true" : "false");
+                return a.end() - 1;
+            }
+            return -1;
+        }
+
+        Operand a = operand(i);
+        if (a == null || !isPrimitive(a)) {
+            return -1;
+        }
+        int end = a.end();
+        if ((is(end, "==") || is(end, "!=")) && is(end + 1, "null")) {
+            // a == null -> false
+            if (end == i + 1 && isNullCheck(i, end + 2)) {
+                replace(editor, i, end + 1, is(end, "!=") ? "true" : "false");
+                return end + 1;
+            }
+            return -1;
+        }
+        if (!is(end, ".") || !is(end + 2, "(")) {
+            return -1;
+        }
+        String wrapper = wrappers.get(a.type());
+        if (is(end + 1, "hashCode") && is(end + 3, ")")) {
+            // a.hashCode() -> Double.hashCode(a)
+            replace(editor, i, end + 3, wrapper + ".hashCode(" + source(a) + ")");
+            return end + 3;
+        }
+        Operand b = operand(end + 3);
+        if (b == null || !is(b.end(), ")") || !a.type().equals(b.type())) {
+            return -1;
+        }
+        if (is(end + 1, "equals")) {
+            // a.equals(b) -> (a == b)
+            replace(editor, i, b.end(), equality(a, b));
+            return b.end();
+        } else if (is(end + 1, "compareTo")) {
+            // a.compareTo(b) -> Double.compare(a, b)
+            replace(editor, i, b.end(), wrapper + ".compare(" + source(a) + ", " + source(b) + ")");
+            return b.end();
+        }
+        return -1;
+    }
+
+    private boolean isPrimitive(Operand operand) {
+        return wrappers.containsKey(operand.type());
+    }
+
+    /**
+     * @return Whether a comparison with null from the given start index (inclusive) to the given
+     * end index (exclusive) is an expression of its own, i.e., not an operand of another operator.
+     */
+    private boolean isNullCheck(int start, int end) {
+        boolean before = start == 0 || BEFORE_NULL_CHECK.contains(token(start - 1).text());
+        boolean after = end == codeTokens.size() || AFTER_NULL_CHECK.contains(token(end).text());
+        return before && after;
+    }
+
+    private String equality(Operand a, Operand b) {
+        String wrapper = wrappers.get(a.type());
+        return wrapper.equals("Double") || wrapper.equals("Float")
+                ? "(" + wrapper + ".compare(" + source(a) + ", " + source(b) + ") == 0)"
+                : "(" + source(a) + " == " + source(b) + ")";
+    }
+
+    /**
+     * Inlines {@code Objects.hash(...)} with the arguments from the given start index (inclusive)
+     * to the given end index (exclusive), the same way {@link java.util.Arrays#hashCode(Object[])}
+     * combines them.
+     *
+     * @return The inlined expression, or null if no argument is of a primitive type or the
+     * arguments can't be told apart for sure.
+     */
+    private String inlineHash(String objects, int start, int end) {
+        List<String> hashes = new ArrayList<>();
+        boolean primitive = false;
+        int depth = 0;
+        int argumentStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || depth == 0 && is(i, ",")) {
+                if (i == argumentStart) {
+                    return null;
+                }
+                Operand operand = operand(argumentStart);
+                if (operand != null && operand.end() == i && isPrimitive(operand)) {
+                    hashes.add(wrappers.get(operand.type()) + ".hashCode(" + source(operand) + ")");
+                    primitive = true;
+                } else {
+                    hashes.add(objects + ".hashCode(" + source(argumentStart, i) + ")");
+                }
+                argumentStart = i + 1;
+            } else if (is(i, "(") || is(i, "[") || is(i, "{")) {
+                depth++;
+            } else if (is(i, ")") || is(i, "]") || is(i, "}")) {
+                depth--;
+            } else if (depth == 0 && is(i, "<")) {
+                // might be a type argument list containing commas
+                return null;
+            }
+        }
+        if (!primitive) {
+            return null;
+        }
+
+        String hash = "31 + " + hashes.get(0);
+        for (int i = 1; i < hashes.size(); i++) {
+            hash = "31 * (" + hash + ") + " + hashes.get(i);
+        }
+        return "(" + hash + ")";
+    }
+
+    /**
+     * Records the declared type of every name that is declared with a type, e.g. {@code T[]} for
+     * {@code T[] array}, or {@link #AMBIGUOUS} if a name is declared with different types.
+     */
+    private void collectDeclarations() {
+        for (int i = 1; i < codeTokens.size(); i++) {
+            Token name = token(i);
+            if (name.kind() != Kind.IDENTIFIER || KEYWORDS.contains(name.text()) || is(i - 1, ".")) {
+                continue;
+            }
+
+            // the type ends right before the name, possibly with array dimensions
+            int typeEnd = i - 1;
+            StringBuilder dimensions = new StringBuilder();
+            while (typeEnd >= 2 && is(typeEnd, "]") && is(typeEnd - 1, "[")) {
+                dimensions.append("[]");
+                typeEnd -= 2;
+            }
+            Token type = token(typeEnd);
+            String declaredType;
+            if (type.kind() == Kind.IDENTIFIER && !KEYWORDS.contains(type.text())) {
+                // a qualified type can't be a type parameter
+                declaredType = is(typeEnd - 1, ".") ? AMBIGUOUS : type.text() + dimensions;
+            } else if (type.is(">")) {
+                // a generic type, or a comparison
+                declaredType = AMBIGUOUS;
+            } else {
+                continue;
+            }
+            declaredTypes.merge(name.text(), declaredType, (a, b) -> a.equals(b) ? a : AMBIGUOUS);
+        }
+    }
+
+    /**
+     * Finds the type body, and the names of the instance fields declared directly in it with a
+     * type parameter that has a sentinel and without an initializer. The type declaration itself
+     * is replaced by a placeholder at this point, so the type body is the first one after
+     * {@code class}, {@code interface} or {@code record}.
+     */
+    private void collectUninitializedFields() {
+        int bodyStart = -1;
+        for (int i = 0; i < codeTokens.size() && bodyStart < 0; i++) {
+            if (TYPE_DECLARATIONS.contains(token(i).text()) && !is(i - 1, ".") && !is(i - 1, "@")) {
+                for (int j = i + 1; j < codeTokens.size() && bodyStart < 0; j++) {
+                    if (is(j, "{")) {
+                        bodyStart = j;
+                    }
+                }
+            }
+        }
+        bodyEnd = bodyStart < 0 ? -1 : closingBracket(bodyStart, "{", "}");
+        if (bodyEnd < 0) {
+            return;
+        }
+
+        int depth = 0;
+        for (int i = bodyStart + 1; i < bodyEnd; i++) {
+            if (is(i, "{") || is(i, "(")) {
+                depth++;
+            } else if (is(i, "}") || is(i, ")")) {
+                depth--;
+            } else if (depth == 0 && sentinels.containsKey(token(i).text()) && !is(i - 1, ".")
+                    && token(i + 1).kind() == Kind.IDENTIFIER && (is(i + 2, ";") || is(i + 2, "=") || is(i + 2, ","))) {
+                boolean isFinal = false;
+                for (int j = i - 1; MODIFIERS.contains(token(j).text()); j--) {
+                    isFinal |= is(j, "final");
+                }
+                // every declarator, e.g. T a, b = x, c;
+                int name = i + 1;
+                while (true) {
+                    int end = name + 1;
+                    if (is(end, "=")) {
+                        end = initializerEnd(end + 1);
+                    } else if (!isFinal) {
+                        uninitializedFields.add(name);
+                    }
+                    if (!is(end, ",") || token(end + 1).kind() != Kind.IDENTIFIER) {
+                        i = end;
+                        break;
+                    }
+                    name = end + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The index of the {@code ,} or {@code ;} after the initializer of a declaration
+     * starting at the given index.
+     */
+    private int initializerEnd(int i) {
+        int depth = 0;
+        for (int j = i; j < codeTokens.size(); j++) {
+            if (is(j, "(") || is(j, "[") || is(j, "{")) {
+                depth++;
+            } else if (is(j, ")") || is(j, "]") || is(j, "}")) {
+                depth--;
+            } else if (depth == 0 && (is(j, ",") || is(j, ";"))) {
+                return j;
+            }
+        }
+        return codeTokens.size();
+    }
+
+    /**
+     * @return The index of the closing bracket of a cast to a type parameter or an array of it
+     * starting at the given index, or -1 if there is no such cast.
+     */
+    private int castEnd(int i) {
+        if (!is(i, "(") || i + 2 >= codeTokens.size() || !typeParameters.contains(token(i + 1).text())) {
+            return -1;
+        }
+        int end = i + 2;
+        while (is(end, "[") && is(end + 1, "]")) {
+            end += 2;
+        }
+        return is(end, ")") ? end : -1;
+    }
+
+    /**
+     * @return The operand starting at the given index if it is a variable, an array element or a
+     * method call, or null if it is none of these or its type is unknown.
+     */
+    private Operand operand(int i) {
+        if (i >= codeTokens.size() || token(i).kind() != Kind.IDENTIFIER || is(i - 1, ".")) {
+            return null;
+        }
+        String type = declaredTypes.get(token(i).text());
+        if (type == null || type.equals(AMBIGUOUS)) {
+            return null;
+        }
+
+        int end = i + 1;
+        if (is(end, "(")) {
+            end = closingBracket(end, "(", ")") + 1;
+        } else {
+            while (end > 0 && is(end, "[") && type.endsWith("[]")) {
+                end = closingBracket(end, "[", "]") + 1;
+                type = type.substring(0, type.length() - 2);
+            }
+        }
+        return end == 0 ? null : new Operand(i, end, type);
+    }
+
+    /**
+     * @return Whether the expression ending right before the given index goes on, i.e., whether
+     * an operand ending there is just part of a larger operand.
+     */
+    private boolean continued(int end) {
+        return is(end, ".") || is(end, "[") || is(end, "(") || is(end, "++") || is(end, "--") || is(end, "->");
+    }
+
+    private int closingBracket(int i, String opening, String closing) {
+        int depth = 0;
+        for (int j = i; j < codeTokens.size(); j++) {
+            if (is(j, opening)) {
+                depth++;
+            } else if (is(j, closing) && --depth == 0) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private int openingBracket(int i, String opening, String closing) {
+        int depth = 0;
+        for (int j = i; j >= 0; j--) {
+            if (is(j, closing)) {
+                depth++;
+            } else if (is(j, opening) && --depth == 0) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private int endIncludingWhitespace(int i) {
+        int tokenIndex = codeTokens.get(i);
+        if (tokenIndex + 1 < tokens.size() && tokens.get(tokenIndex + 1).kind() == Kind.WHITESPACE) {
+            return tokens.get(tokenIndex + 1).end();
+        }
+        return tokens.get(tokenIndex).end();
+    }
+
+    private void replace(EditBuffer.Editor editor, int first, int last, String replacement) {
+        editor.replace(token(first).start(), token(last).end(), replacement);
+    }
+
+    private String source(Operand operand) {
+        return source(operand.start(), operand.end());
+    }
+
+    private String source(int from, int to) {
+        return code.subSequence(token(from).start(), token(to - 1).end()).toString();
+    }
+
+    private String text(int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            text.append(token(i).text());
+        }
+        return text.toString();
+    }
+
+    private Token token(int i) {
+        return tokens.get(codeTokens.get(i));
+    }
+
+    private boolean is(int i, String text) {
+        return i >= 0 && i < codeTokens.size() && token(i).is(text);
+    }
+
+    /**
+     * An operand of the template code.
+     *
+     * @param start The index of the first token.
+     * @param end The index after the last token.
+     * @param type The declared type, e.g. {@code T} for an element of a {@code T[]}.
+     */
+    private record Operand(int start, int end, String type) {
+    }
+}
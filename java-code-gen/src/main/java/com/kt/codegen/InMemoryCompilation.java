@@ -0,0 +1,195 @@
+package com.kt.codegen;
+
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+
+/**
+ * Compiles source code held in memory with the code generator as the only annotation processor.
+ * Nothing is read from or written to disk other than the class path.
+ */
+final class InMemoryCompilation {
+    private InMemoryCompilation() {
+    }
+
+    /**
+     * Compiles the given sources.
+     *
+     * @param sources The source code by fully qualified class name.
+     * @param options The compiler options.
+     * @param templateSource The template source for the code generator.
+     * @return The generated source code, all class files and the other generated files.
+     * @throws CodeGeneratorException If the generation or the compilation fails.
+     */
+    static Result compile(Map<String, String> sources, List<String> options, TemplateSource templateSource) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new CodeGeneratorException("No Java compiler available, make sure to run with a JDK");
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        List<JavaFileObject> compilationUnits = new ArrayList<>();
+        sources.forEach((className, source) -> compilationUnits.add(new SourceFile(className, source)));
+        StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(diagnostics, Locale.ROOT, StandardCharsets.UTF_8);
+        try (InMemoryFileManager fileManager = new InMemoryFileManager(standardFileManager)) {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, compilationUnits);
+            task.setProcessors(List.of(new CodeGeneratorProcessor(templateSource)));
+            if (!task.call()) {
+                String errors = diagnostics.getDiagnostics().stream()
+                        .filter(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                        .map(diagnostic -> diagnostic.getMessage(Locale.ROOT))
+                        .collect(Collectors.joining("\n  "));
+                throw new CodeGeneratorException("Code generation failed:\n  " + errors);
+            }
+            return new Result(fileManager.generatedSources, fileManager.classFiles, fileManager.resources);
+        } catch (IOException ex) {
+            throw new CodeGeneratorException("Code generation failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * The outputs of a compilation.
+     *
+     * @param generatedSources The generated source code by fully qualified class name.
+     * @param classFiles The class files by binary class name.
+     * @param resources The other files written to the class output, by relative path.
+     */
+    record Result(Map<String, String> generatedSources, Map<String, byte[]> classFiles, Map<String, byte[]> resources) {
+    }
+
+    /**
+     * A file manager that keeps all outputs in memory and collects the generated source files, the
+     * class files and the resources.
+     */
+    private static final class InMemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, String> generatedSources = new ConcurrentHashMap<>();
+        private final Map<String, byte[]> classFiles = new ConcurrentHashMap<>();
+        private final Map<String, byte[]> resources = new ConcurrentHashMap<>();
+
+        private InMemoryFileManager(StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+            return kind == JavaFileObject.Kind.SOURCE
+                    ? new SourceFile(className, generatedSources)
+                    : new OutputFile(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind,
+                                     kind == JavaFileObject.Kind.CLASS ? bytes -> classFiles.put(className, bytes) : bytes -> { });
+        }
+
+        @Override
+        public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) {
+            String path = packageName.isEmpty() ? relativeName : packageName.replace('.', '/') + "/" + relativeName;
+            return new OutputFile(URI.create("mem:///" + path), JavaFileObject.Kind.OTHER, bytes -> resources.put(path, bytes));
+        }
+
+        @Override
+        public boolean isSameFile(FileObject a, FileObject b) {
+            return a instanceof SimpleJavaFileObject || b instanceof SimpleJavaFileObject
+                    ? a.toUri().equals(b.toUri())
+                    : super.isSameFile(a, b);
+        }
+    }
+
+    /**
+     * A source file in memory, either a given template or a generated source file.
+     */
+    private static final class SourceFile extends SimpleJavaFileObject {
+        private final String className;
+        private final Map<String, String> generatedSources;  // null if not generated
+        private String source;
+
+        private SourceFile(String className, String source) {
+            super(uri(className), Kind.SOURCE);
+            this.className = className;
+            this.generatedSources = null;
+            this.source = source;
+        }
+
+        private SourceFile(String className, Map<String, String> generatedSources) {
+            super(uri(className), Kind.SOURCE);
+            this.className = className;
+            this.generatedSources = generatedSources;
+        }
+
+        private static URI uri(String className) {
+            return URI.create("mem:///" + className.replace('.', '/') + Kind.SOURCE.extension);
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            if (source == null) {
+                throw new IOException("Source file not written yet: " + className);
+            }
+            return source;
+        }
+
+        @Override
+        public Writer openWriter() {
+            return new StringWriter() {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    source = toString();
+                    generatedSources.put(className, source);
+                }
+            };
+        }
+    }
+
+    /**
+     * An output file in memory, either a class file or a discarded output file.
+     */
+    private static final class OutputFile extends SimpleJavaFileObject {
+        private final Consumer<byte[]> content;
+
+        private OutputFile(URI uri, Kind kind, Consumer<byte[]> content) {
+            super(uri, kind);
+            this.content = content;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    content.accept(toByteArray());
+                }
+            };
+        }
+
+        @Override
+        public Writer openWriter() {
+            return new StringWriter() {
+                @Override
+                public void close() {
+                    content.accept(toString().getBytes(StandardCharsets.UTF_8));
+                }
+            };
+        }
+    }
+}
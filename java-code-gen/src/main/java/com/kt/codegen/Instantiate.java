@@ -11,9 +11,24 @@ import java.lang.annotation.Target;
 /**
  * Specifies that a new class should be generated by instantiating the generic class with the given
  * type (or types if there are multiple generic type parameters).
+ * <p>
+ * References to other templates (generic classes whose source code is available, not
+ * necessarily of the same compilation) that are instantiated with a primitive type this way,
+ * e.g. {@code MyList<K>} in {@code MyMap<K, V>} for {@code K = double}, are replaced by the
+ * matching instantiation ({@code MyListDouble}), which is generated with the default settings if
+ * it isn't declared on the referenced template.
+ * <p>
+ * On a static generic method, a specialization of the method is generated instead, e.g.
+ * {@code sortDouble(double[] a)} for {@code @Instantiate(double.class)} on
+ * {@code <T> sort(T[] a, Comparator<? super T> c)}. All specializations of the methods of a class
+ * go to the class {@code <Class>Specializations} in the same package, which statically imports the
+ * members of the original class. Comparators of a type parameter instantiated with a primitive
+ * type are dropped in favor of the natural order, i.e., {@code c.compare(a, b)} becomes
+ * {@code Double.compare(a, b)}, so neither boxing nor megamorphic calls remain.
+ * {@link #offHeap()} and {@link #flatten()} are not supported on methods.
  */
 @Repeatable(Instantiations.class)
-@Target(ElementType.TYPE)
+@Target({ ElementType.TYPE, ElementType.METHOD })
 @Retention(RetentionPolicy.SOURCE)
 public @interface Instantiate {
     /**
@@ -26,12 +41,13 @@ public @interface Instantiate {
 
     /**
      * An optional list of string replacements (plain or regex) to apply on top of the generic type replacements.
-     * This can be useful to e.g. replace generic array construction of generic type {@code T1} with
-     * primitive array construction:
+     * Generic array creations like {@code (T1[]) new Object[size]} and other generic idioms are
+     * rewritten automatically, but code that doesn't mention the type parameter isn't, e.g. a
+     * {@code toArray()} method that returns {@code Object[]}:
      *
      * <pre>
      * {@code
-     * @Replace(from = "(T1[]) new Object[", to = "new double["
+     * @Replace(from = "Object[] toArray()", to = "double[] toArray()")
      * }
      * </pre>
      *
@@ -46,4 +62,47 @@ public @interface Instantiate {
      */
     boolean append() default true;
 
+    /**
+     * Specifies whether the replacements are applied one after the other (the default) or all
+     * plain string replacements at once in a single pass, see {@link ReplacementMode}. The type
+     * parameter replacements are always applied after the replacements in {@link #replace()}.
+     *
+     * @return Specifies how the replacements are applied.
+     */
+    ReplacementMode mode() default ReplacementMode.SEQUENTIAL;
+
+    /**
+     * The values that stand for {@code null} for some of the concrete types, see {@link Sentinel}.
+     * For a type parameter replaced by a type with a sentinel, {@code null} is replaced by the
+     * sentinel where it is assigned to, returned as or compared with a value of the type parameter:
+     *
+     * <pre>
+     * {@code
+     * @Instantiate(value = double.class, sentinel = @Sentinel(type = double.class, value = "Double.NaN"))
+     * }
+     * </pre>
+     *
+     * @return The sentinel values by concrete type.
+     */
+    Sentinel[] sentinel() default {};
+
+    /**
+     * Specifies whether the primitive array fields of the instantiation (e.g. a {@code T[]} for
+     * {@code double}) are moved off-heap, see {@link Derive#offHeap()}.
+     *
+     * @return Specifies whether the primitive array fields are moved off-heap.
+     */
+    boolean offHeap() default false;
+
+    /**
+     * Specifies whether arrays of a type parameter that is replaced by a record are flattened into
+     * one array per record component (struct of arrays). E.g. for
+     * {@code record Point(double x, double y)}, a {@code T[] array} field becomes
+     * {@code double[] arrayX} and {@code double[] arrayY}, {@code array[i].x()} becomes
+     * {@code arrayX[i]}, and {@code array[i] = p} stores {@code p.x()} and {@code p.y()}.
+     * Other element reads create a new record from the components.
+     *
+     * @return Specifies whether arrays of record type parameters are flattened.
+     */
+    boolean flatten() default false;
 }
@@ -0,0 +1,92 @@
+package com.kt.codegen;
+
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * Specifies that a new class should be generated for every combination of concrete types from the
+ * given type sets, one type set per type parameter. Each combination is generated as if it was
+ * given by an {@link Instantiate} annotation with the same {@link #replace()}, {@link #append()},
+ * {@link #mode()} and {@link #sentinel()}.
+ *
+ * <p>Example, generating the eleven classes {@code IntByteMyMap}, {@code IntShortMyMap}, ...,
+ * {@code LongDoubleMyMap} except {@code LongLongMyMap}:
+ *
+ * <pre>
+ * {@code
+ * @InstantiateAll(
+ *     value = { @TypeSet({ int.class, long.class }), @TypeSet(family = TypeFamily.PRIMITIVE_NUMERIC) },
+ *     exclude = { long.class, long.class },
+ *     append = false)
+ * public class MyMap<K, V> { ... }
+ * }
+ * </pre>
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.SOURCE)
+public @interface InstantiateAll {
+    /**
+     * The concrete types for each type parameter. The number of type sets must match the number
+     * of type parameters of the class.
+     *
+     * @return The concrete types for each type parameter.
+     */
+    TypeSet[] value();
+
+    /**
+     * The combinations of concrete types not to generate, one type per type parameter each,
+     * given one after the other, e.g. {@code { int.class, long.class, long.class, int.class }}
+     * to exclude {@code <int, long>} and {@code <long, int>} for a class with two type parameters.
+     * This is useful e.g. for combinations given by an {@link Instantiate} annotation with
+     * different replacements.
+     *
+     * @return The combinations of concrete types not to generate.
+     */
+    Class<?>[] exclude() default {};
+
+    /**
+     * See {@link Instantiate#replace()}.
+     *
+     * @return An optional list of string replacements (plain or regex) to apply on top of the generic type replacements.
+     */
+    Replace[] replace() default {};
+
+    /**
+     * See {@link Instantiate#append()}.
+     *
+     * @return Specifies if the concrete type names should be appended (true) or prepended (false) to the source class name.
+     */
+    boolean append() default true;
+
+    /**
+     * See {@link Instantiate#mode()}.
+     *
+     * @return Specifies how the replacements are applied.
+     */
+    ReplacementMode mode() default ReplacementMode.SEQUENTIAL;
+
+    /**
+     * See {@link Instantiate#sentinel()}.
+     *
+     * @return The sentinel values by concrete type.
+     */
+    Sentinel[] sentinel() default {};
+
+    /**
+     * See {@link Instantiate#offHeap()}.
+     *
+     * @return Specifies whether the primitive array fields are moved off-heap.
+     */
+    boolean offHeap() default false;
+
+    /**
+     * See {@link Instantiate#flatten()}.
+     *
+     * @return Specifies whether arrays of record type parameters are flattened.
+     */
+    boolean flatten() default false;
+}
@@ -10,7 +10,7 @@ import java.lang.annotation.Target;
 /**
  * Container annotation for {@link Instantiate}, see {@link java.lang.annotation.Repeatable},
  */
-@Target(ElementType.TYPE)
+@Target({ ElementType.TYPE, ElementType.METHOD })
 @Retention(RetentionPolicy.SOURCE)
 public @interface Instantiations {
     /**
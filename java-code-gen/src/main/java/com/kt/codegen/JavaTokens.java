@@ -0,0 +1,263 @@
+package com.kt.codegen;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A minimal Java lexer that splits source code into tokens. It only distinguishes as much as the
+ * code generator needs to tell identifiers apart from string/character literals and comments, so
+ * that identifier-level substitutions never corrupt literals or comments. Concatenating the text
+ * of all tokens yields the original source code.
+ */
+final class JavaTokens {
+    private static final String[] OPERATORS = {
+            "...", "->", "::", "==", "!=", "<=", ">=", "&&", "||", "++", "--",
+            "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^="
+    };
+
+    private JavaTokens() {
+    }
+
+    /**
+     * Splits the given source code into tokens.
+     *
+     * @param code The source code.
+     * @return The tokens, in source order.
+     */
+    static List<Token> tokenize(CharSequence code) {
+        List<Token> tokens = new ArrayList<>(code.length() / 3);
+        int length = code.length();
+        int i = 0;
+        while (i < length) {
+            int start = i;
+            char c = code.charAt(i);
+            Kind kind;
+            if (Character.isWhitespace(c)) {
+                kind = Kind.WHITESPACE;
+                while (i < length && Character.isWhitespace(code.charAt(i))) {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < length && code.charAt(i + 1) == '/') {
+                kind = Kind.COMMENT;
+                while (i < length && code.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < length && code.charAt(i + 1) == '*') {
+                kind = Kind.COMMENT;
+                int end = indexOf(code, "*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            } else if (c == '"' && startsWith(code, "\"\"\"", i)) {
+                kind = Kind.STRING;
+                i = skipQuoted(code, i + 3, "\"\"\"", false);
+            } else if (c == '"') {
+                kind = Kind.STRING;
+                i = skipQuoted(code, i + 1, "\"", true);
+            } else if (c == '\'') {
+                kind = Kind.CHARACTER;
+                i = skipQuoted(code, i + 1, "'", true);
+            } else if (Character.isJavaIdentifierStart(c)) {
+                kind = Kind.IDENTIFIER;
+                while (i < length && Character.isJavaIdentifierPart(code.charAt(i))) {
+                    i++;
+                }
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(code.charAt(i + 1)))) {
+                kind = Kind.NUMBER;
+                i = skipNumber(code, i);
+            } else {
+                kind = Kind.OPERATOR;
+                i += operatorLength(code, i);
+            }
+            tokens.add(new Token(kind, code.subSequence(start, i).toString(), start));
+        }
+        return tokens;
+    }
+
+    /**
+     * Replaces identifiers in the given source code. String and character literals, comments and
+     * identifiers that are merely part of a longer identifier or number (e.g. {@code T} in
+     * {@code T1} or {@code 1T}) are left untouched.
+     *
+     * @param code The source code.
+     * @param replacements The identifier replacements.
+     * @return The source code with all identifiers replaced.
+     */
+    static EditBuffer replaceIdentifiers(EditBuffer code, Map<String, String> replacements) {
+        if (replacements.isEmpty()) {
+            return code;
+        }
+
+        EditBuffer.Editor editor = code.edit();
+        for (Token token : tokenize(code)) {
+            String replacement = token.kind() == Kind.IDENTIFIER ? replacements.get(token.text()) : null;
+            if (replacement != null) {
+                editor.replace(token.start(), token.end(), replacement);
+            }
+        }
+        return editor.apply();
+    }
+
+    /**
+     * Replaces the references to a generic type with type arguments, e.g. {@code Box<T>} or
+     * {@code Box<K, ?>}, whose type arguments consist of identifiers, wildcards and commas only.
+     * Literals and comments are left alone.
+     *
+     * @param code The source code.
+     * @param typeName The simple name of the generic type.
+     * @param replacement The replacement of the type name and its type arguments.
+     * @param beforeParenthesis If true then only references followed by an opening parenthesis are
+     *                          replaced (e.g. record headers), otherwise only those followed by
+     *                          whitespace containing a space (e.g. class headers), which is
+     *                          replaced by a single space up to its last space, e.g. in
+     *                          {@code Box<T>\n    implements}.
+     * @return The code with the references replaced, or the given code if there are none.
+     */
+    static EditBuffer replaceParameterizedType(EditBuffer code, String typeName, String replacement, boolean beforeParenthesis) {
+        List<Token> tokens = tokenize(code);
+        EditBuffer.Editor editor = code.edit();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).kind() != Kind.IDENTIFIER || !tokens.get(i).is(typeName)) {
+                continue;
+            }
+            int open = skipWhitespace(tokens, i + 1);
+            if (open == tokens.size() || !tokens.get(open).is("<")) {
+                continue;
+            }
+            int close = open + 1;
+            while (close < tokens.size() && isTypeArgumentToken(tokens.get(close))) {
+                close++;
+            }
+            if (close == open + 1 || close == tokens.size() || !tokens.get(close).is(">")) {
+                continue;
+            }
+            if (beforeParenthesis) {
+                int next = skipWhitespace(tokens, close + 1);
+                if (next < tokens.size() && tokens.get(next).is("(")) {
+                    editor.replace(tokens.get(i).start(), tokens.get(close).end(), replacement);
+                    i = close;
+                }
+            } else if (close + 1 < tokens.size() && tokens.get(close + 1).kind() == Kind.WHITESPACE) {
+                Token whitespace = tokens.get(close + 1);
+                int lastSpace = whitespace.text().lastIndexOf(' ');
+                if (lastSpace >= 0) {
+                    editor.replace(tokens.get(i).start(), whitespace.start() + lastSpace + 1, replacement + " ");
+                    i = close + 1;
+                }
+            }
+        }
+        return editor.size() == 0 ? code : editor.apply();
+    }
+
+    private static boolean isTypeArgumentToken(Token token) {
+        return token.kind() == Kind.WHITESPACE || token.kind() == Kind.IDENTIFIER || token.is("?") || token.is(",");
+    }
+
+    private static int skipWhitespace(List<Token> tokens, int i) {
+        while (i < tokens.size() && tokens.get(i).kind() == Kind.WHITESPACE) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipQuoted(CharSequence code, int i, String closing, boolean singleLine) {
+        int length = code.length();
+        while (i < length) {
+            char c = code.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (startsWith(code, closing, i)) {
+                return i + closing.length();
+            } else if (singleLine && c == '\n') {
+                // unterminated literal, leave the line break to the next token
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    private static int skipNumber(CharSequence code, int start) {
+        int length = code.length();
+        boolean hex = startsWith(code, "0x", start) || startsWith(code, "0X", start);
+        int i = start;
+        while (i < length) {
+            char c = code.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '_' || c == '.') {
+                i++;
+            } else if ((c == '+' || c == '-') && (hex ? "pP" : "eE").indexOf(code.charAt(i - 1)) >= 0) {
+                // exponent sign
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static int operatorLength(CharSequence code, int i) {
+        for (String operator : OPERATORS) {
+            if (startsWith(code, operator, i)) {
+                return operator.length();
+            }
+        }
+        return 1;
+    }
+
+    private static boolean startsWith(CharSequence code, String prefix, int i) {
+        if (i + prefix.length() > code.length()) {
+            return false;
+        }
+        for (int j = 0; j < prefix.length(); j++) {
+            if (code.charAt(i + j) != prefix.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence code, String s, int from) {
+        for (int i = from; i + s.length() <= code.length(); i++) {
+            if (startsWith(code, s, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The token kinds.
+     */
+    enum Kind {
+        WHITESPACE,
+        COMMENT,
+        IDENTIFIER,
+        NUMBER,
+        STRING,
+        CHARACTER,
+        OPERATOR
+    }
+
+    /**
+     * A token.
+     *
+     * @param kind The token kind.
+     * @param text The token text.
+     * @param start The index of the first character of the token in the source code.
+     */
+    record Token(Kind kind, String text, int start) {
+        int end() {
+            return start + text.length();
+        }
+
+        boolean is(String s) {
+            return text.equals(s);
+        }
+
+        boolean isCode() {
+            return kind != Kind.WHITESPACE && kind != Kind.COMMENT;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.kt.codegen;
+
+
+import jdk.jfr.AnnotationElement;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventFactory;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.ValueDescriptor;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A custom JFR event type of the code generator, so that code generation shows up in flight
+ * recordings of the compiler.
+ *
+ * <p>The events are defined dynamically with an {@link EventFactory} and driven through method
+ * handles rather than by subclassing {@link Event}: compiling against {@code jdk.jfr.Event} with
+ * {@code --release 16} fails on current JDKs because the release data lacks its internal super
+ * class.
+ */
+final class JfrEventType {
+    static final String CATEGORY = "Java Code Generator";
+
+    private static final MethodHandle BEGIN = eventMethod("begin", MethodType.methodType(void.class));
+    private static final MethodHandle END = eventMethod("end", MethodType.methodType(void.class));
+    private static final MethodHandle SHOULD_COMMIT = eventMethod("shouldCommit", MethodType.methodType(boolean.class));
+    private static final MethodHandle SET = eventMethod("set", MethodType.methodType(void.class, int.class, Object.class));
+    private static final MethodHandle COMMIT = eventMethod("commit", MethodType.methodType(void.class));
+
+    private final EventFactory factory;  // null if JFR is not available
+
+    /**
+     * Constructor.
+     *
+     * @param name The event name, prefixed with the package name.
+     * @param label The human-readable event name.
+     * @param description The event description.
+     * @param fields The event fields as pairs of name and type, e.g. {@code "template", String.class}.
+     */
+    JfrEventType(String name, String label, String description, Object... fields) {
+        EventFactory eventFactory;
+        try {
+            if (BEGIN == null || END == null || SHOULD_COMMIT == null || SET == null || COMMIT == null) {
+                throw new IllegalStateException("JFR not available");
+            }
+            List<ValueDescriptor> descriptors = new ArrayList<>();
+            for (int i = 0; i < fields.length; i += 2) {
+                descriptors.add(new ValueDescriptor((Class<?>) fields[i + 1], (String) fields[i]));
+            }
+            eventFactory = EventFactory.create(
+                    List.of(new AnnotationElement(Name.class, JfrEventType.class.getPackageName() + "." + name),
+                            new AnnotationElement(Label.class, label),
+                            new AnnotationElement(Description.class, description),
+                            new AnnotationElement(Category.class, new String[] { CATEGORY })),
+                    descriptors);
+        } catch (RuntimeException | LinkageError ex) {
+            // JFR not available in this runtime
+            eventFactory = null;
+        }
+        this.factory = eventFactory;
+    }
+
+    /**
+     * Begins an event, i.e., starts timing it.
+     *
+     * @return The started event, to be passed to {@link #commit(Object, Object...)}.
+     */
+    Object begin() {
+        if (factory == null) {
+            return null;
+        }
+        Object event = factory.newEvent();
+        invoke(BEGIN, event);
+        return event;
+    }
+
+    /**
+     * Ends the given event and commits it if it is enabled and passes the recording's thresholds.
+     *
+     * @param event The event returned by {@link #begin()}.
+     * @param values The event field values, in declaration order.
+     */
+    void commit(Object event, Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            END.invoke(event);
+            if ((boolean) SHOULD_COMMIT.invoke(event)) {
+                for (int i = 0; i < values.length; i++) {
+                    SET.invoke(event, i, values[i]);
+                }
+                COMMIT.invoke(event);
+            }
+        } catch (Throwable ex) {
+            // monitoring must never break code generation
+        }
+    }
+
+    private static void invoke(MethodHandle method, Object event) {
+        try {
+            method.invoke(event);
+        } catch (Throwable ex) {
+            // monitoring must never break code generation
+        }
+    }
+
+    private static MethodHandle eventMethod(String name, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Event.class, name, type);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            // JFR not available in this runtime
+            return null;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.kt.codegen;
+
+
+import com.kt.codegen.JavaTokens.Kind;
+import com.kt.codegen.JavaTokens.Token;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Rewrites the declaration of a generic method into a specialization with a new name, e.g.
+ * {@code static <T> void sort(T[] a, Comparator<? super T> c)} into
+ * {@code static void sortDouble(T[] a)} (the type parameters themselves are replaced afterwards):
+ * <ul>
+ *     <li>The method's type parameter list is removed if the type parameters are instantiated.</li>
+ *     <li>The method is renamed, and so are recursive calls, i.e., calls of the method name with
+ *     the same number of arguments.</li>
+ *     <li>If a type parameter is replaced by a primitive type, parameters of type
+ *     {@code Comparator<...>} of that type parameter are removed, {@code c.compare(a, b)} becomes
+ *     {@code Double.compare(a, b)}, i.e., the natural order, and the comparator is dropped from
+ *     recursive calls.</li>
+ * </ul>
+ */
+final class MethodSpecializer {
+    private static final Map<String, String> WRAPPERS = Map.of(
+            "boolean", "Boolean", "byte", "Byte", "char", "Character", "short", "Short",
+            "int", "Integer", "long", "Long", "float", "Float", "double", "Double");
+
+    private static final Set<String> MODIFIERS = Set.of(
+            "public", "protected", "private", "static", "final", "abstract", "synchronized", "native", "strictfp", "default");
+
+    private final EditBuffer code;
+    private final String name;
+    private final String targetName;
+    private final Map<String, String> typeParameterReplacements;
+    private final String methodName;  // qualified, for error messages
+    private final List<Token> tokens;
+    private final List<Integer> codeTokens = new ArrayList<>();  // indices of non-whitespace, non-comment tokens
+    private final List<Edit> edits = new ArrayList<>();
+
+    private MethodSpecializer(EditBuffer code, String name, String targetName, Map<String, String> typeParameterReplacements, String methodName) {
+        this.code = code;
+        this.name = name;
+        this.targetName = targetName;
+        this.typeParameterReplacements = typeParameterReplacements;
+        this.methodName = methodName;
+        this.tokens = JavaTokens.tokenize(code);
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).isCode()) {
+                codeTokens.add(i);
+            }
+        }
+    }
+
+    /**
+     * Rewrites a method declaration into a specialization.
+     *
+     * @param code The source code of the method declaration, from its modifiers to its body.
+     * @param name The name of the method.
+     * @param targetName The name of the specialization.
+     * @param typeParameterReplacements The concrete types (simple names) by the names of the
+     *                                  method's type parameters they replace, or empty if the type
+     *                                  parameters are kept.
+     * @param methodName The qualified name of the method, for error messages.
+     * @return The rewritten method declaration, still containing the type parameters.
+     */
+    static EditBuffer specialize(EditBuffer code, String name, String targetName, Map<String, String> typeParameterReplacements, String methodName) {
+        return new MethodSpecializer(code, name, targetName, typeParameterReplacements, methodName).specialize();
+    }
+
+    private EditBuffer specialize() {
+        int nameIndex = 0;
+        while (nameIndex < codeTokens.size() && !(is(nameIndex, name) && is(nameIndex + 1, "("))) {
+            nameIndex++;
+        }
+        if (nameIndex == codeTokens.size()) {
+            throw new CodeGeneratorException("Declaration of " + methodName + " not found");
+        }
+
+        // <T> void sort(...) -> void sort(...)
+        if (!typeParameterReplacements.isEmpty()) {
+            int typeParameters = 0;
+            while (typeParameters < nameIndex) {
+                if (MODIFIERS.contains(token(typeParameters).text())) {
+                    typeParameters++;
+                } else if (is(typeParameters, "@")) {
+                    typeParameters += 2;
+                    while (is(typeParameters, ".")) {
+                        typeParameters += 2;
+                    }
+                    if (is(typeParameters, "(")) {
+                        typeParameters = closingBracket(typeParameters, "(", ")") + 1;
+                    }
+                } else {
+                    break;
+                }
+            }
+            if (is(typeParameters, "<")) {
+                int end = closingBracket(typeParameters, "<", ">");
+                edits.add(new Edit(token(typeParameters).start(), token(end + 1).start(), ""));
+            }
+        }
+        edits.add(new Edit(token(nameIndex).start(), token(nameIndex).end(), targetName));
+
+        // parameters, and the comparators among them to drop
+        int close = closingBracket(nameIndex + 1, "(", ")");
+        List<int[]> parameters = arguments(nameIndex + 1, close, true);
+        List<Integer> comparators = new ArrayList<>();
+        List<String> comparatorNames = new ArrayList<>();
+        List<String> wrappers = new ArrayList<>();
+        for (int p = 0; p < parameters.size(); p++) {
+            int[] parameter = parameters.get(p);
+            String wrapper = comparatorWrapper(parameter[0], parameter[1]);
+            if (wrapper != null) {
+                comparators.add(p);
+                comparatorNames.add(token(parameter[1] - 1).text());
+                wrappers.add(wrapper);
+                removeArgument(parameters, p, nameIndex + 1, close);
+            }
+        }
+
+        int bodyStart = close + 1;
+        while (bodyStart < codeTokens.size() && !is(bodyStart, "{")) {
+            bodyStart++;
+        }
+        Set<Integer> droppedArguments = new HashSet<>();
+        for (int i = bodyStart; i < codeTokens.size(); i++) {
+            Token token = token(i);
+            if (token.kind() != Kind.IDENTIFIER || is(i - 1, ".") || droppedArguments.contains(i)) {
+                continue;
+            }
+            int comparator = comparatorNames.indexOf(token.text());
+            if (comparator >= 0 && is(i + 1, ".") && is(i + 2, "compare") && is(i + 3, "(")) {
+                // c.compare(a, b) -> Double.compare(a, b)
+                edits.add(new Edit(token.start(), token.end(), wrappers.get(comparator)));
+            } else if (comparator >= 0) {
+                throw new CodeGeneratorException("Cannot drop comparator " + token.text() + " of " + methodName
+                        + ", it is used other than by compare(...)");
+            } else if (token.is(name) && is(i + 1, "(")) {
+                int callEnd = closingBracket(i + 1, "(", ")");
+                List<int[]> arguments = arguments(i + 1, callEnd, false);
+                if (arguments.size() == parameters.size()) {
+                    // sort(a, lo, hi, c) -> sortDouble(a, lo, hi)
+                    edits.add(new Edit(token.start(), token.end(), targetName));
+                    for (int c = 0; c < comparators.size(); c++) {
+                        int[] argument = arguments.get(comparators.get(c));
+                        if (argument[1] - argument[0] != 1 || !is(argument[0], comparatorNames.get(c))) {
+                            throw new CodeGeneratorException("Cannot drop comparator argument " + source(argument[0], argument[1])
+                                    + " of a recursive call of " + methodName);
+                        }
+                        removeArgument(arguments, comparators.get(c), i + 1, callEnd);
+                        droppedArguments.add(argument[0]);
+                    }
+                }
+            }
+        }
+
+        edits.sort(Comparator.comparingInt(Edit::start).thenComparingInt(Edit::end));
+        EditBuffer.Editor editor = code.edit();
+        for (Edit edit : edits) {
+            editor.replace(edit.start(), edit.end(), edit.text());
+        }
+        return editor.apply();
+    }
+
+    /**
+     * @return The wrapper type of the primitive type that a comparator parameter compares, or
+     * null if the given parameter isn't such a comparator.
+     */
+    private String comparatorWrapper(int from, int to) {
+        int type = is(from, "java") && is(from + 1, ".") && is(from + 2, "util") && is(from + 3, ".") ? from + 4 : from;
+        if (!is(type, "Comparator") || !is(type + 1, "<")) {
+            return null;
+        }
+        for (int i = type + 2; i < to; i++) {
+            String replacement = typeParameterReplacements.get(token(i).text());
+            if (replacement != null && WRAPPERS.containsKey(replacement)) {
+                return WRAPPERS.get(replacement);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the given argument (or parameter) and its separating comma.
+     */
+    private void removeArgument(List<int[]> arguments, int index, int open, int close) {
+        int[] argument = arguments.get(index);
+        int start = index == 0 ? token(open).end() : token(arguments.get(index - 1)[1] - 1).end();
+        int end = index == 0 && arguments.size() > 1 ? token(arguments.get(1)[0]).start() : token(argument[1] - 1).end();
+        edits.add(new Edit(start, end, ""));
+    }
+
+    /**
+     * @return The token ranges (start inclusive, end exclusive) of the comma-separated arguments
+     * or parameters (whose types may contain commas within angle brackets) between the given
+     * brackets.
+     */
+    private List<int[]> arguments(int open, int close, boolean parameters) {
+        List<int[]> arguments = new ArrayList<>();
+        int depth = 0;
+        int start = open + 1;
+        for (int i = open + 1; i < close; i++) {
+            if (is(i, "(") || is(i, "[") || is(i, "{") || parameters && is(i, "<")) {
+                depth++;
+            } else if (is(i, ")") || is(i, "]") || is(i, "}") || parameters && is(i, ">")) {
+                depth--;
+            } else if (depth == 0 && is(i, ",")) {
+                arguments.add(new int[] { start, i });
+                start = i + 1;
+            }
+        }
+        if (start < close) {
+            arguments.add(new int[] { start, close });
+        }
+        return arguments;
+    }
+
+    private int closingBracket(int i, String opening, String closing) {
+        int depth = 0;
+        for (int j = i; j < codeTokens.size(); j++) {
+            if (is(j, opening)) {
+                depth++;
+            } else if (is(j, closing) && --depth == 0) {
+                return j;
+            }
+        }
+        throw new CodeGeneratorException("Unbalanced " + opening + " in " + methodName);
+    }
+
+    private String source(int from, int to) {
+        return code.subSequence(token(from).start(), token(to - 1).end()).toString();
+    }
+
+    private Token token(int i) {
+        return tokens.get(codeTokens.get(i));
+    }
+
+    private boolean is(int i, String text) {
+        return i >= 0 && i < codeTokens.size() && token(i).is(text);
+    }
+
+    /**
+     * A replacement of the code.
+     *
+     * @param start The start of the replaced range, inclusive.
+     * @param end The end of the replaced range, exclusive.
+     * @param text The replacement.
+     */
+    private record Edit(int start, int end, String text) {
+    }
+}
@@ -0,0 +1,466 @@
+package com.kt.codegen;
+
+
+import com.kt.codegen.JavaTokens.Kind;
+import com.kt.codegen.JavaTokens.Token;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Moves the primitive array fields of a generated class to off-heap storage, i.e., to direct
+ * buffers of native memory that the garbage collector doesn't have to scan or copy. For each
+ * instance field of type {@code double[]} (or any other primitive array type except
+ * {@code boolean[]}):
+ * <ul>
+ *     <li>The field becomes a {@code java.nio.DoubleBuffer} in native byte order and loses its
+ *     {@code final} modifier.</li>
+ *     <li>{@code new double[n]} assigned to the field becomes {@code allocateDoubleBuffer(n)}.</li>
+ *     <li>{@code array[i]} becomes {@code array.get(i)}, {@code array[i] = v} becomes
+ *     {@code array.put(i, v)} (with a cast of {@code v} for {@code byte}, {@code short} and
+ *     {@code char}), and compound assignments and increments become a {@code get} followed by a
+ *     {@code put}. Since {@code put} returns the buffer, these must be statements of their own,
+ *     i.e., their value must not be used, as in {@code a[i] = b[j] = v} or {@code x = a[i]++}.</li>
+ *     <li>{@code array.length} becomes {@code array.capacity()}.</li>
+ *     <li>{@code Arrays.copyOf}, {@code Arrays.fill} and {@code System.arraycopy} on the field
+ *     call generated helpers with the same signatures, e.g. {@code Arrays.copyOf(array, n)}
+ *     returns a new buffer if assigned to an off-heap field and a heap array otherwise.</li>
+ * </ul>
+ * The class implements {@link AutoCloseable}, and {@code close()} drops the buffers so that their
+ * native memory is released once they are garbage collected.
+ *
+ * <p>Anything else that would need the field to be an array (e.g. passing it to a method or
+ * {@code Arrays.sort}) is rejected or won't compile, so that the off-heap variant never silently
+ * copies its data back to the heap.
+ */
+final class OffHeapStorage {
+    private static final Map<String, String> WRAPPERS = Map.of(
+            "byte", "Byte", "char", "Character", "short", "Short", "int", "Integer",
+            "long", "Long", "float", "Float", "double", "Double");
+
+    private static final Set<String> MODIFIERS = Set.of("public", "protected", "private", "static", "final", "transient", "volatile");
+    private static final Set<String> COMPOUND_ASSIGNMENTS = Set.of("+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=");
+    private static final Set<String> SIDE_EFFECTS = Set.of("(", "=", "++", "--", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=");
+    private static final Set<String> EXPRESSION_KEYWORDS = Set.of("return", "throw", "case", "else", "assert", "yield", "do");
+    // tokens after which an assignment is an expression statement, i.e., its value isn't used
+    private static final Set<String> STATEMENT_STARTS = Set.of(";", "{", "}", ")", ":", "->", "else", "do");
+
+    private final EditBuffer code;
+    private final String className;
+    private final List<Token> tokens;
+    private final List<Integer> codeTokens = new ArrayList<>();  // indices of non-whitespace, non-comment tokens
+    private final Map<String, String> fieldTypes = new LinkedHashMap<>();  // primitive types by field name
+    private final Set<Integer> fieldDeclarations = new HashSet<>();
+    private final List<Edit> edits = new ArrayList<>();
+    private final Map<String, String> helpers = new LinkedHashMap<>();  // source code by name and type
+
+    private OffHeapStorage(EditBuffer code, String className) {
+        this.code = code;
+        this.className = className;
+        this.tokens = JavaTokens.tokenize(code);
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).isCode()) {
+                codeTokens.add(i);
+            }
+        }
+    }
+
+    /**
+     * Moves the primitive array fields of the given class to off-heap storage.
+     *
+     * @param code The generated code, without code generator annotations.
+     * @param className The fully qualified name of the generated class, for error messages.
+     * @return The rewritten code.
+     * @throws CodeGeneratorException If the class has no primitive array fields or uses them in a
+     * way that cannot be rewritten.
+     */
+    static EditBuffer rewrite(EditBuffer code, String className) {
+        return new OffHeapStorage(code, className).rewrite();
+    }
+
+    private EditBuffer rewrite() {
+        int bodyStart = bodyStart();
+        int bodyEnd = bodyStart < 0 ? -1 : closingBracket(bodyStart, "{", "}");
+        if (bodyEnd < 0) {
+            throw new CodeGeneratorException("Type body not found in " + className);
+        }
+        collectFields(bodyStart, bodyEnd);
+        if (fieldTypes.isEmpty()) {
+            throw new CodeGeneratorException("No primitive array instance fields to move off-heap in " + className);
+        }
+
+        for (int i = bodyStart + 1; i < bodyEnd; i++) {
+            Token token = token(i);
+            if (token.kind() != Kind.IDENTIFIER) {
+                continue;
+            }
+            if (is(i + 1, "(") && token.is("close") && is(i - 1, "void") && is(i + 2, ")")) {
+                throw new CodeGeneratorException("Off-heap variant " + className + " must not declare close()");
+            }
+            if ((token.is("Arrays") || token.is("System")) && !is(i - 1, ".") && is(i + 1, ".")) {
+                rewriteCall(i);
+            } else if (fieldTypes.containsKey(token.text()) && (!is(i - 1, ".") || is(i - 2, "this") && !is(i - 3, "."))) {
+                checkNotShadowed(i);
+                rewriteAccess(i);
+            }
+        }
+
+        implementAutoCloseable(bodyStart);
+        StringBuilder members = new StringBuilder();
+        members.append("\n");
+        members.append("    /**\n");
+        members.append("     * Releases the off-heap storage of this instance. The native memory is freed once the\n");
+        members.append("     * buffers are garbage collected. This instance must not be used afterwards.\n");
+        members.append("     */\n");
+        members.append("    @Override\n");
+        members.append("    public void close() {\n");
+        fieldTypes.keySet().forEach(field -> members.append("        ").append(field).append(" = null;\n"));
+        members.append("    }\n");
+        helpers.values().forEach(helper -> members.append("\n").append(helper));
+        edits.add(new Edit(token(bodyEnd).start(), token(bodyEnd).start(), members.toString()));
+
+        // edits are collected out of order, e.g. a closing parenthesis after an assignment is
+        // added before the accesses on the right-hand side; insertions go before replacements
+        edits.sort(Comparator.comparingInt(Edit::start).thenComparingInt(Edit::end));
+        EditBuffer.Editor editor = code.edit();
+        for (Edit edit : edits) {
+            editor.replace(edit.start(), edit.end(), edit.text());
+        }
+        return editor.apply();
+    }
+
+    /**
+     * Collects the primitive array instance fields declared directly in the type body, and
+     * rewrites their declarations.
+     */
+    private void collectFields(int bodyStart, int bodyEnd) {
+        int depth = 0;
+        for (int i = bodyStart + 1; i < bodyEnd; i++) {
+            if (is(i, "{") || is(i, "(")) {
+                depth++;
+            } else if (is(i, "}") || is(i, ")")) {
+                depth--;
+            } else if (depth == 0 && WRAPPERS.containsKey(token(i).text()) && is(i + 1, "[") && is(i + 2, "]")
+                    && token(i + 3).kind() == Kind.IDENTIFIER && (is(i + 4, ";") || is(i + 4, "=") || is(i + 4, ","))) {
+                int modifiers = i;
+                while (MODIFIERS.contains(token(modifiers - 1).text())) {
+                    modifiers--;
+                }
+                if (text(modifiers, i).contains("static")) {
+                    continue;
+                }
+                if (is(i + 4, ",")) {
+                    throw new CodeGeneratorException("Declare off-heap fields one per declaration in " + className);
+                }
+                for (int j = modifiers; j < i; j++) {
+                    if (is(j, "final")) {
+                        edits.add(new Edit(token(j).start(), token(j + 1).start(), ""));
+                    }
+                }
+                String type = token(i).text();
+                edits.add(new Edit(token(i).start(), token(i + 2).end(), "java.nio." + bufferType(type)));
+                fieldTypes.put(token(i + 3).text(), type);
+                fieldDeclarations.add(i + 3);
+            }
+        }
+    }
+
+    /**
+     * Rewrites a reference to an off-heap field at the given index, possibly qualified by
+     * {@code this.}.
+     */
+    private void rewriteAccess(int i) {
+        String type = fieldTypes.get(token(i).text());
+        int start = is(i - 1, ".") ? i - 2 : i;
+        String field = source(start, i + 1);
+
+        if (is(i + 1, ".") && is(i + 2, "length") && !is(i + 3, "(")) {
+            replace(i + 2, i + 2, "capacity()");
+        } else if (is(i + 1, "=") && is(i + 2, "new") && WRAPPERS.containsKey(token(i + 3).text()) && is(i + 4, "[")) {
+            int close = closingBracket(i + 4, "[", "]");
+            if (close == i + 5 || !token(i + 3).is(type)) {
+                throw new CodeGeneratorException("Cannot move " + source(i + 2, close + 1) + " off-heap in " + className);
+            }
+            replace(i + 2, i + 4, allocate(type) + "(");
+            replace(close, close, ")");
+        } else if (is(i + 1, "[")) {
+            int close = closingBracket(i + 1, "[", "]");
+            String index = source(i + 2, close);
+            if (is(start - 1, "++") || is(start - 1, "--")) {
+                String operator = token(start - 1).text().substring(1);
+                checkStatement(start - 1, close);
+                checkIndex(i + 2, close);
+                replace(start - 1, start - 1, "");
+                replace(i + 1, i + 1, ".put(");
+                replace(close, close, ", " + narrow(type, field + ".get(" + index + ") " + operator + " 1") + ")");
+            } else if (is(close + 1, "++") || is(close + 1, "--")) {
+                String operator = token(close + 1).text().substring(1);
+                checkStatement(start, close + 1);
+                checkIndex(i + 2, close);
+                replace(i + 1, i + 1, ".put(");
+                replace(close, close + 1, ", " + narrow(type, field + ".get(" + index + ") " + operator + " 1") + ")");
+            } else if (is(close + 1, "=")) {
+                checkStatement(start, close + 1);
+                replace(i + 1, i + 1, ".put(");
+                edits.add(new Edit(token(close).start(), token(close + 2).start(), isPromoted(type) ? ", (" + type + ") (" : ", "));
+                insertAfter(expressionEnd(close + 2), isPromoted(type) ? "))" : ")");
+            } else if (COMPOUND_ASSIGNMENTS.contains(token(close + 1).text())) {
+                String operator = token(close + 1).text().substring(0, 1);
+                checkStatement(start, close + 1);
+                checkIndex(i + 2, close);
+                String value = field + ".get(" + index + ") " + operator + " (";
+                replace(i + 1, i + 1, ".put(");
+                edits.add(new Edit(token(close).start(), token(close + 2).start(),
+                                   ", " + (type.equals("double") ? value : "(" + type + ") (" + value)));
+                insertAfter(expressionEnd(close + 2), type.equals("double") ? "))" : ")))");
+            } else {
+                replace(i + 1, i + 1, ".get(");
+                replace(close, close, ")");
+            }
+        }
+    }
+
+    /**
+     * Rewrites {@code Arrays.copyOf}, {@code Arrays.fill} and {@code System.arraycopy} calls on
+     * off-heap fields.
+     */
+    private void rewriteCall(int i) {
+        int argument = is(i + 4, "this") && is(i + 5, ".") ? i + 6 : i + 4;
+        if (!is(i + 3, "(") || !fieldTypes.containsKey(token(argument).text()) || !is(argument + 1, ",")) {
+            return;
+        }
+        String type = fieldTypes.get(token(argument).text());
+        String method = token(i).text() + "." + token(i + 2).text();
+        String helper;
+        switch (method) {
+            case "Arrays.copyOf" -> {
+                boolean toField = is(i - 1, "=") && fieldTypes.containsKey(token(i - 2).text());
+                helper = toField ? "copyOf" : "toArray";
+                addHelper(helper, type);
+            }
+            case "Arrays.fill", "System.arraycopy" -> {
+                helper = token(i + 2).text();
+                addHelper(helper, type);
+            }
+            default -> throw new CodeGeneratorException(method + " is not supported for off-heap fields in " + className);
+        }
+        replace(i, i + 2, helper);
+    }
+
+    private void addHelper(String name, String type) {
+        String buffer = "java.nio." + bufferType(type);
+        String key = name + " " + type;
+        if (helpers.containsKey(key)) {
+            return;
+        }
+        StringBuilder s = new StringBuilder();
+        switch (name) {
+            case "copyOf" -> {
+                addHelper("allocate", type);
+                s.append("    private static ").append(buffer).append(" copyOf(").append(buffer).append(" buffer, int length) {\n");
+                s.append("        ").append(buffer).append(" copy = ").append(allocate(type)).append("(length);\n");
+                s.append("        copy.put(0, buffer, 0, Math.min(length, buffer.capacity()));\n");
+                s.append("        return copy;\n");
+                s.append("    }\n");
+            }
+            case "toArray" -> {
+                s.append("    private static ").append(type).append("[] toArray(").append(buffer).append(" buffer, int length) {\n");
+                s.append("        ").append(type).append("[] array = new ").append(type).append("[length];\n");
+                s.append("        buffer.get(0, array, 0, Math.min(length, buffer.capacity()));\n");
+                s.append("        return array;\n");
+                s.append("    }\n");
+            }
+            case "fill" -> {
+                s.append("    private static void fill(").append(buffer).append(" buffer, ").append(type).append(" value) {\n");
+                s.append("        fill(buffer, 0, buffer.capacity(), value);\n");
+                s.append("    }\n\n");
+                s.append("    private static void fill(").append(buffer).append(" buffer, int fromIndex, int toIndex, ")
+                 .append(type).append(" value) {\n");
+                s.append("        for (int i = fromIndex; i < toIndex; i++) {\n");
+                s.append("            buffer.put(i, value);\n");
+                s.append("        }\n");
+                s.append("    }\n");
+            }
+            case "arraycopy" -> {
+                s.append("    private static void arraycopy(").append(buffer).append(" src, int srcPos, ")
+                 .append(buffer).append(" dest, int destPos, int length) {\n");
+                s.append("        dest.put(destPos, src, srcPos, length);\n");
+                s.append("    }\n");
+            }
+            default -> {
+                s.append("    private static ").append(buffer).append(" allocate").append(bufferType(type)).append("(int capacity) {\n");
+                if (type.equals("byte")) {
+                    s.append("        return java.nio.ByteBuffer.allocateDirect(capacity);\n");
+                } else {
+                    s.append("        return java.nio.ByteBuffer.allocateDirect(Math.multiplyExact(capacity, ")
+                     .append(WRAPPERS.get(type)).append(".BYTES))\n");
+                    s.append("                .order(java.nio.ByteOrder.nativeOrder())\n");
+                    s.append("                .as").append(bufferType(type)).append("();\n");
+                }
+                s.append("    }\n");
+            }
+        }
+        helpers.put(key, s.toString());
+    }
+
+    private String allocate(String type) {
+        addHelper("allocate", type);
+        return "allocate" + bufferType(type);
+    }
+
+    private void implementAutoCloseable(int bodyStart) {
+        boolean implementsInterfaces = false;
+        for (int i = 0; i < bodyStart; i++) {
+            implementsInterfaces |= token(i).kind() == Kind.IDENTIFIER && token(i).is("implements");
+        }
+        int end = token(bodyStart - 1).end();
+        edits.add(new Edit(end, end, implementsInterfaces ? ", AutoCloseable" : " implements AutoCloseable"));
+    }
+
+    /**
+     * Rejects local declarations that shadow an off-heap field, since their accesses would be
+     * rewritten as well.
+     */
+    private void checkNotShadowed(int i) {
+        if (fieldDeclarations.contains(i) || is(i - 1, ".")) {
+            return;
+        }
+        Token previous = token(i - 1);
+        if (previous.is("]") || previous.kind() == Kind.IDENTIFIER && !EXPRESSION_KEYWORDS.contains(previous.text())) {
+            throw new CodeGeneratorException("Local declaration of " + token(i).text()
+                    + " shadows an off-heap field in " + className);
+        }
+    }
+
+    /**
+     * Rejects assignments and increments of off-heap elements whose value is used, since
+     * {@code put} returns the buffer rather than the value.
+     */
+    private void checkStatement(int from, int to) {
+        if (!STATEMENT_STARTS.contains(token(from - 1).text())) {
+            throw new CodeGeneratorException("Assignment " + source(from, to + 1) + " to an off-heap field must be a "
+                    + "statement of its own in " + className + ", use a local variable");
+        }
+    }
+
+    /**
+     * Rejects indices that would be evaluated twice after rewriting a compound assignment or an
+     * increment but are not free of side effects.
+     */
+    private void checkIndex(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (SIDE_EFFECTS.contains(token(i).text()) || fieldTypes.containsKey(token(i).text())) {
+                throw new CodeGeneratorException("Index " + source(from, to) + " must be a plain expression in "
+                        + "compound assignments to off-heap fields in " + className + ", use a local variable");
+            }
+        }
+    }
+
+    /**
+     * @return The given expression, cast back to the given type if it is promoted to {@code int}.
+     */
+    private static String narrow(String type, String expression) {
+        return isPromoted(type) ? "(" + type + ") (" + expression + ")" : expression;
+    }
+
+    /**
+     * @return Whether values of the given type are promoted to {@code int} in arithmetic, and
+     * constants of type {@code int} aren't narrowed to it when passed to a method.
+     */
+    private static boolean isPromoted(String type) {
+        return type.equals("byte") || type.equals("short") || type.equals("char");
+    }
+
+    /**
+     * @return The index of the last token of the expression starting at the given index.
+     */
+    private int expressionEnd(int i) {
+        int depth = 0;
+        for (int j = i; j < codeTokens.size(); j++) {
+            String text = token(j).text();
+            if (text.equals("(") || text.equals("[") || text.equals("{")) {
+                depth++;
+            } else if (depth > 0 && (text.equals(")") || text.equals("]") || text.equals("}"))) {
+                depth--;
+            } else if (depth == 0 && (text.equals(";") || text.equals(",") || text.equals(")") || text.equals("]") || text.equals("}"))) {
+                return j - 1;
+            }
+        }
+        return codeTokens.size() - 1;
+    }
+
+    private int bodyStart() {
+        int depth = 0;
+        for (int i = 0; i < codeTokens.size(); i++) {
+            if (is(i, "(")) {
+                depth++;
+            } else if (is(i, ")")) {
+                depth--;
+            } else if (depth == 0 && is(i, "{")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int closingBracket(int i, String opening, String closing) {
+        int depth = 0;
+        for (int j = i; j < codeTokens.size(); j++) {
+            if (is(j, opening)) {
+                depth++;
+            } else if (is(j, closing) && --depth == 0) {
+                return j;
+            }
+        }
+        throw new CodeGeneratorException("Unbalanced " + opening + " in " + className);
+    }
+
+    private static String bufferType(String type) {
+        String wrapper = WRAPPERS.get(type);
+        return (wrapper.equals("Integer") ? "Int" : wrapper.equals("Character") ? "Char" : wrapper) + "Buffer";
+    }
+
+    private void insertAfter(int i, String text) {
+        edits.add(new Edit(token(i).end(), token(i).end(), text));
+    }
+
+    private void replace(int first, int last, String replacement) {
+        edits.add(new Edit(token(first).start(), token(last).end(), replacement));
+    }
+
+    private String source(int from, int to) {
+        return code.subSequence(token(from).start(), token(to - 1).end()).toString();
+    }
+
+    private String text(int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            text.append(token(i).text()).append(' ');
+        }
+        return text.toString();
+    }
+
+    private Token token(int i) {
+        return tokens.get(codeTokens.get(i));
+    }
+
+    private boolean is(int i, String text) {
+        return i >= 0 && i < codeTokens.size() && token(i).is(text);
+    }
+
+    /**
+     * A replacement of the code.
+     *
+     * @param start The start of the replaced range, inclusive.
+     * @param end The end of the replaced range, exclusive.
+     * @param text The replacement.
+     */
+    private record Edit(int start, int end, String text) {
+    }
+}
@@ -0,0 +1,27 @@
+package com.kt.codegen;
+
+
+/**
+ * Specifies how the {@link Replace} entries of a {@link Derive} or {@link Instantiate} annotation
+ * are applied to the source code.
+ */
+public enum ReplacementMode {
+    /**
+     * The replacements are applied one after the other, each one operating on the output of the
+     * previous one. Thus, a later replacement may modify text that was inserted by an earlier one.
+     */
+    SEQUENTIAL,
+
+    /**
+     * All plain string replacements are applied simultaneously in a single pass over the source
+     * code. At each position, the longest matching search term wins (leftmost-longest semantics),
+     * and replaced text is never looked at again. This allows e.g. swapping two terms
+     * ({@code int} to {@code long} and {@code long} to {@code int}) and is considerably faster
+     * for templates with many replacements.
+     *
+     * <p>If any of the user-specified replacements is a regex, this mode falls back to
+     * {@link #SEQUENTIAL} for all replacements since regex replacements cannot be combined
+     * into a single pass.
+     */
+    SIMULTANEOUS
+}
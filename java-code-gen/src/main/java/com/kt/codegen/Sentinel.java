@@ -0,0 +1,31 @@
+package com.kt.codegen;
+
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * Specifies the value that stands for {@code null} when a type parameter is replaced by the given
+ * concrete type, typically a primitive type, e.g. {@code Double.NaN} for {@code double} or
+ * {@code Long.MIN_VALUE} for {@code long}. This allows templates that use {@code null} for empty
+ * slots (e.g. open-addressing hash maps) to be instantiated for primitive types.
+ */
+@Target({})
+@Retention(RetentionPolicy.SOURCE)
+public @interface Sentinel {
+    /**
+     * The concrete type that the sentinel value applies to.
+     *
+     * @return The concrete type that the sentinel value applies to.
+     */
+    Class<?> type();
+
+    /**
+     * The Java expression to replace {@code null} with, e.g. {@code "Double.NaN"}.
+     *
+     * @return The Java expression to replace {@code null} with.
+     */
+    String value();
+}
@@ -11,6 +11,10 @@ import java.lang.annotation.Target;
  * Allows the specification of a source directory relative to the class root directory
  * if the layout is different from the Maven default layout. If not set then the following
  * default is used: {@link CodeGeneratorProcessor#DEFAULT_RELATIVE_SRC_DIR}.
+ *
+ * <p>The source directory is only used if the source code of the annotated class can't be
+ * obtained from the compiler directly, which is normally only the case with compilers other
+ * than javac.
  */
 @Target(ElementType.TYPE)
 @Retention(RetentionPolicy.SOURCE)
@@ -0,0 +1,51 @@
+package com.kt.codegen;
+
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import java.util.List;
+
+
+/**
+ * Generates the source code of the class holding the specializations of the generic methods of a
+ * class, see {@link Instantiate} and {@link Derive} on methods.
+ */
+final class SpecializationsSource {
+    private static final String INDENT = "    ";
+
+    private SpecializationsSource() {
+    }
+
+    /**
+     * Generates the specializations class.
+     *
+     * @param enclosingClass The class declaring the generic methods.
+     * @param packageName The package of the enclosing class.
+     * @param className The simple name of the specializations class.
+     * @param imports The import declarations of the enclosing class that the methods may rely on.
+     * @param methods The specialized method declarations, indented as class members.
+     * @return The source code of the specializations class.
+     */
+    static String generate(TypeElement enclosingClass, String packageName, String className, List<String> imports, List<String> methods) {
+        StringBuilder s = new StringBuilder();
+        s.append("// generated from ").append(enclosingClass.getQualifiedName()).append("\n");
+        s.append("package ").append(packageName).append(";\n\n");
+        for (String importDeclaration : imports) {
+            s.append(importDeclaration).append("\n");
+        }
+        // the methods may call other static members of the enclosing class, just like the originals
+        s.append("import static ").append(enclosingClass.getQualifiedName()).append(".*;\n\n");
+        s.append("/**\n");
+        s.append(" * The specializations of the generic methods of {@link ").append(enclosingClass.getSimpleName()).append("}.\n");
+        s.append(" */\n");
+        s.append(enclosingClass.getModifiers().contains(Modifier.PUBLIC) ? "public " : "")
+         .append("final class ").append(className).append(" {\n");
+        s.append(INDENT).append("private ").append(className).append("() {\n");
+        s.append(INDENT).append("}\n");
+        for (String method : methods) {
+            s.append("\n").append(method).append("\n");
+        }
+        s.append("}\n");
+        return s.toString();
+    }
+}
@@ -0,0 +1,413 @@
+package com.kt.codegen;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Instantiates templates at runtime, for concrete types that are only known at runtime (e.g. from
+ * a schema), just like {@link Instantiate} does at build time:
+ * <pre>{@code
+ * Specializer specializer = new Specializer(TemplateSource.resources(MyList.class.getClassLoader()));
+ * Class<?> myListDouble = specializer.instantiate(MyList.class, double.class);
+ * }</pre>
+ * The template is run through the code generator (with the default settings of
+ * {@link Instantiate}) and compiled in memory, see {@link CodeGeneratorProcessor}'s
+ * {@code codegen.instantiate} option. If the parent class loader can load the templates, the
+ * instantiations are defined in the runtime packages of their templates, so that they can access
+ * package-private members just like the instantiations generated at build time. Otherwise, all
+ * instantiations of a specializer are defined by a single class loader of its own. Either way,
+ * instantiations referring to each other (see {@link Instantiate}) agree on their types. Each
+ * instantiation is generated once per specializer, even if requested concurrently.
+ *
+ * <p>Optionally, the class files are cached in a directory across JVM runs, keyed by the source
+ * of the template and of the templates it refers to, the concrete types, the compiler options,
+ * the class path (by the sizes and modification times of its files) and the versions of the code
+ * generator and the JVM, so that warm restarts neither generate nor compile.
+ */
+public final class Specializer {
+    private static final String SUFFIX = ".class";
+    // the templates an instantiation was generated from, one per line with the hash of its source
+    private static final String TEMPLATES_FILE = "templates";
+
+    private final TemplateSource templateSource;
+    private final List<String> options;
+    private final ClassLoader parent;
+    private final Path cacheDirectory;  // null if class files aren't cached
+    private final String processorFingerprint;  // null if class files aren't cached
+    private final String classPathFingerprint;  // null if class files aren't cached
+    private final SpecializedClassLoader classLoader;
+    private final Map<List<String>, CompletableFuture<Class<?>>> instantiations = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor, for a specializer without a class file cache whose instantiations are loaded
+     * by a child of the class loader of this class.
+     *
+     * @param templateSource The source code of the templates.
+     */
+    public Specializer(TemplateSource templateSource) {
+        this(templateSource, List.of(), null, Specializer.class.getClassLoader());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param templateSource The source code of the templates.
+     * @param options The compiler options, e.g. {@code -classpath}. By default, the class path of
+     *                the running JVM is used.
+     * @param cacheDirectory The directory to cache class files in, or null for no caching. It may
+     *                       be shared by concurrent JVMs.
+     * @param parent The class loader to load the templates with, and the parent class loader of
+     *               the class loader of the instantiations if it can't. It has to be able to load
+     *               what the templates refer to.
+     */
+    public Specializer(TemplateSource templateSource, List<String> options, Path cacheDirectory, ClassLoader parent) {
+        this.templateSource = templateSource;
+        this.options = List.copyOf(options);
+        this.parent = parent;
+        this.cacheDirectory = cacheDirectory;
+        this.processorFingerprint = cacheDirectory == null ? null : GeneratedSourceCache.processorFingerprint();
+        this.classPathFingerprint = cacheDirectory == null ? null : classPathFingerprint(processorFingerprint, this.options);
+        this.classLoader = new SpecializedClassLoader(parent);
+        if (cacheDirectory != null) {
+            try {
+                Files.createDirectories(cacheDirectory);
+            } catch (IOException ex) {
+                throw new CodeGeneratorException("Could not create cache directory " + cacheDirectory + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Instantiates a template, or returns the instantiation created before.
+     *
+     * @param template The generic template class.
+     * @param types The concrete types, one per type parameter, e.g. {@code double.class}. Local,
+     *              anonymous and hidden classes can't be named in source code and are rejected.
+     * @return The instantiation, e.g. {@code MyListDouble} for {@code MyList} and {@code double}.
+     * @throws CodeGeneratorException If the template can't be instantiated.
+     */
+    public Class<?> instantiate(Class<?> template, Class<?>... types) {
+        String[] typeNames = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            typeNames[i] = types[i].getCanonicalName();
+            if (typeNames[i] == null) {
+                throw new CodeGeneratorException("Type without canonical name can't instantiate a template: " + types[i].getName());
+            }
+        }
+        return instantiate(template.getName(), typeNames);
+    }
+
+    /**
+     * Instantiates a template, or returns the instantiation created before.
+     *
+     * @param templateName The fully qualified name of the generic template class.
+     * @param typeNames The fully qualified names of the concrete types, e.g. {@code double} or
+     *                  {@code java.time.Instant}.
+     * @return The instantiation.
+     * @throws CodeGeneratorException If the template can't be instantiated.
+     */
+    public Class<?> instantiate(String templateName, String... typeNames) {
+        List<String> key = new ArrayList<>();
+        key.add(templateName);
+        key.addAll(Arrays.asList(typeNames));
+
+        // the first request generates, concurrent ones wait for it
+        CompletableFuture<Class<?>> created = new CompletableFuture<>();
+        CompletableFuture<Class<?>> existing = instantiations.putIfAbsent(key, created);
+        if (existing != null) {
+            return join(existing);
+        }
+        try {
+            created.complete(specialize(templateName, typeNames));
+        } catch (RuntimeException ex) {
+            // failures aren't cached, e.g. to allow for fixing the template source
+            instantiations.remove(key, created);
+            created.completeExceptionally(ex);
+        }
+        return join(created);
+    }
+
+    private Class<?> specialize(String templateName, String[] typeNames) {
+        String targetClassName = templateName + Arrays.stream(typeNames)
+                .map(typeName -> typeName.substring(typeName.lastIndexOf('.') + 1))
+                .map(typeName -> typeName.substring(0, 1).toUpperCase() + typeName.substring(1))
+                .collect(Collectors.joining(""));
+        String source = templateSource.read(templateName)
+                .orElseThrow(() -> new CodeGeneratorException("Template source not found: " + templateName));
+
+        Path cacheEntry = null;
+        if (cacheDirectory != null) {
+            List<String> inputs = new ArrayList<>(List.of(templateName, source, Runtime.version().toString(), classPathFingerprint));
+            inputs.addAll(Arrays.asList(typeNames));
+            inputs.add(String.valueOf(options.size()));
+            inputs.addAll(options);
+            cacheEntry = cacheDirectory.resolve(GeneratedSourceCache.key(processorFingerprint, inputs));
+            List<String> templateNames = new ArrayList<>();
+            Map<String, byte[]> classFiles = readClassFiles(cacheEntry, templateNames);
+            if (!classFiles.isEmpty()) {
+                return define(classFiles, templateNames, targetClassName);
+            }
+        }
+
+        // the templates read by the code generator, i.e., the requested one and those it refers to
+        Map<String, String> templateSources = new ConcurrentHashMap<>();
+        templateSources.put(templateName, source);
+        TemplateSource readTemplates = name -> {
+            Optional<String> read = templateSource.read(name);
+            read.ifPresent(templateSource -> templateSources.put(name, templateSource));
+            return read;
+        };
+
+        List<String> compilerOptions = new ArrayList<>(options);
+        compilerOptions.add("-A" + CodeGeneratorProcessor.INSTANTIATE_OPTION + "=" + templateName + "<" + String.join(",", typeNames) + ">");
+        compilerOptions.add("-A" + CodeGeneratorProcessor.QUIET_OPTION + "=true");
+        Map<String, byte[]> classFiles = InMemoryCompilation.compile(Map.of(templateName, source), compilerOptions, readTemplates).classFiles();
+        if (cacheEntry != null) {
+            writeClassFiles(cacheEntry, classFiles, templateSources);
+        }
+        return define(classFiles, templateSources.keySet(), targetClassName);
+    }
+
+    /**
+     * Defines the classes of an instantiation in the runtime packages of their templates if the
+     * parent class loader can load the templates of all of them, or else by the class loader of
+     * this specializer. Classes that exist already aren't defined again, e.g. instantiations
+     * declared by annotations or referred to by several instantiations.
+     *
+     * @return The instantiation.
+     */
+    private synchronized Class<?> define(Map<String, byte[]> classFiles, Collection<String> templateNames, String targetClassName) {
+        Map<String, MethodHandles.Lookup> lookups = new HashMap<>();  // by package name
+        for (String templateName : templateNames) {
+            try {
+                Class<?> template = Class.forName(templateName, false, parent);
+                lookups.put(template.getPackageName(), MethodHandles.privateLookupIn(template, MethodHandles.lookup()));
+            } catch (ClassNotFoundException | IllegalAccessException | LinkageError ex) {
+                // a template that only exists as source code
+            }
+        }
+        if (!classFiles.keySet().stream().allMatch(className -> lookups.containsKey(packageName(className)))) {
+            classLoader.add(classFiles);
+            return load(targetClassName, classLoader);
+        }
+
+        Map<String, byte[]> undefined = new HashMap<>(classFiles);
+        for (String className : classFiles.keySet()) {
+            define(className, undefined, lookups);
+        }
+        return load(targetClassName, lookups.get(packageName(targetClassName)).lookupClass().getClassLoader());
+    }
+
+    private static void define(String className, Map<String, byte[]> undefined, Map<String, MethodHandles.Lookup> lookups) {
+        byte[] classFile = undefined.remove(className);
+        MethodHandles.Lookup lookup = lookups.get(packageName(className));
+        if (classFile == null || isLoadable(className, lookup.lookupClass().getClassLoader())) {
+            return;
+        }
+        while (true) {
+            try {
+                lookup.defineClass(classFile);
+                return;
+            } catch (NoClassDefFoundError ex) {
+                // a supertype that is part of the same instantiation has to be defined first
+                String missing = ex.getMessage() == null ? null : ex.getMessage().replace('/', '.');
+                if (missing == null || !undefined.containsKey(missing)) {
+                    throw new CodeGeneratorException("Could not define " + className + ": " + ex);
+                }
+                define(missing, undefined, lookups);
+            } catch (IllegalAccessException | LinkageError ex) {
+                throw new CodeGeneratorException("Could not define " + className + ": " + ex);
+            }
+        }
+    }
+
+    private static boolean isLoadable(String className, ClassLoader classLoader) {
+        try {
+            Class.forName(className, false, classLoader);
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    private static Class<?> load(String className, ClassLoader classLoader) {
+        try {
+            return Class.forName(className, true, classLoader);
+        } catch (ClassNotFoundException | LinkageError ex) {
+            throw new CodeGeneratorException("Could not load " + className + ": " + ex);
+        }
+    }
+
+    private static String packageName(String className) {
+        int dot = className.lastIndexOf('.');
+        return dot < 0 ? "" : className.substring(0, dot);
+    }
+
+    /**
+     * @return A fingerprint of the class path the instantiations are compiled against, from the
+     * names, sizes and modification times of its files, which is cheaper than hashing them.
+     */
+    private static String classPathFingerprint(String processorFingerprint, List<String> options) {
+        String classPath = System.getProperty("java.class.path");
+        for (int i = 0; i < options.size() - 1; i++) {
+            if (List.of("-classpath", "-cp", "--class-path").contains(options.get(i))) {
+                classPath = options.get(i + 1);
+            }
+        }
+        List<String> inputs = new ArrayList<>();
+        for (String entry : classPath.split(File.pathSeparator)) {
+            inputs.add(entry);
+            Path path = Path.of(entry);
+            try (Stream<Path> files = Files.isDirectory(path) ? Files.walk(path) : Stream.of(path)) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile).sorted()::iterator) {
+                    inputs.add(file.toString());
+                    inputs.add(String.valueOf(Files.size(file)));
+                    inputs.add(String.valueOf(Files.getLastModifiedTime(file).toMillis()));
+                }
+            } catch (IOException | UncheckedIOException ex) {
+                // unreadable entries only count by name
+            }
+        }
+        return GeneratedSourceCache.key(processorFingerprint, inputs);
+    }
+
+    /**
+     * @param templateNames Receives the templates the class files were generated from.
+     * @return The class files of the given cache entry by binary class name, empty if there is no
+     * such entry or if the source of any of its templates changed.
+     */
+    private Map<String, byte[]> readClassFiles(Path cacheEntry, List<String> templateNames) {
+        Map<String, byte[]> classFiles = new HashMap<>();
+        if (!Files.isDirectory(cacheEntry)) {
+            return classFiles;
+        }
+        try (Stream<Path> files = Files.list(cacheEntry)) {
+            for (String line : Files.readAllLines(cacheEntry.resolve(TEMPLATES_FILE), StandardCharsets.UTF_8)) {
+                String[] nameAndHash = line.split(" ");
+                Optional<String> source = templateSource.read(nameAndHash[0]);
+                if (source.isEmpty() || !sourceHash(source.get()).equals(nameAndHash[1])) {
+                    return classFiles;
+                }
+                templateNames.add(nameAndHash[0]);
+            }
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(SUFFIX)) {
+                    classFiles.put(fileName.substring(0, fileName.length() - SUFFIX.length()), Files.readAllBytes(file));
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            // unreadable entries are treated as cache misses
+            classFiles.clear();
+        }
+        return classFiles;
+    }
+
+    /**
+     * Writes the class files to a temporary directory first and then moves it into place, so that
+     * concurrent JVMs never see partial cache entries. An existing entry is replaced, as it is
+     * stale.
+     */
+    private void writeClassFiles(Path cacheEntry, Map<String, byte[]> classFiles, Map<String, String> templateSources) {
+        Path temp = null;
+        try {
+            temp = Files.createTempDirectory(cacheDirectory, cacheEntry.getFileName() + ".tmp");
+            for (Map.Entry<String, byte[]> classFile : classFiles.entrySet()) {
+                Files.write(temp.resolve(classFile.getKey() + SUFFIX), classFile.getValue());
+            }
+            List<String> templates = new ArrayList<>();
+            new TreeMap<>(templateSources).forEach((name, source) -> templates.add(name + " " + sourceHash(source)));
+            Files.write(temp.resolve(TEMPLATES_FILE), templates, StandardCharsets.UTF_8);
+            if (Files.exists(cacheEntry)) {
+                deleteDirectory(cacheEntry);
+            }
+            Files.move(temp, cacheEntry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // another JVM was faster (or the file system can't move atomically), keep its entry;
+            // caching is an optimization only
+            try {
+                if (temp != null && Files.exists(temp)) {
+                    deleteDirectory(temp);
+                }
+            } catch (IOException ignored) {
+                // a temporary directory only
+            }
+        }
+    }
+
+    private String sourceHash(String source) {
+        return GeneratedSourceCache.key(processorFingerprint, List.of(source));
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    private static Class<?> join(CompletableFuture<Class<?>> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Defines the classes of the instantiations of a specializer whose templates the parent class
+     * loader can't load, lazily on first use. A class is only defined if the parent class loader
+     * doesn't know it, e.g. the template itself, and only the first class file of a given name
+     * counts, e.g. of an instantiation that several others refer to.
+     */
+    private static final class SpecializedClassLoader extends ClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final Map<String, byte[]> classFiles = new ConcurrentHashMap<>();
+
+        private SpecializedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        private void add(Map<String, byte[]> newClassFiles) {
+            newClassFiles.forEach(classFiles::putIfAbsent);
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] classFile = classFiles.get(name);
+            if (classFile == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.kt.codegen;
+
+
+import com.kt.codegen.JavaTokens.Kind;
+import com.kt.codegen.JavaTokens.Token;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Flattens array fields of a type parameter that is replaced by a record into one array per
+ * record component (struct of arrays), e.g. a {@code T[] array} field for a
+ * {@code record Point(double x, double y)} becomes {@code double[] arrayX} and
+ * {@code double[] arrayY}. This is done on the template code before the type parameters are
+ * replaced, i.e., while they can still be recognized:
+ * <ul>
+ *     <li>Declarations and whole-array statements are repeated per component, i.e., field
+ *     declarations, assignments like {@code array = new T[n]} or
+ *     {@code array = Arrays.copyOf(array, n)}, and {@code System.arraycopy(...)} calls.</li>
+ *     <li>{@code array[i].x()} becomes {@code arrayX[i]}.</li>
+ *     <li>{@code array[i] = value;} becomes {@code arrayX[i] = value.x(); arrayY[i] = value.y();},
+ *     and {@code array[i] = other[j];} copies component-wise.</li>
+ *     <li>Any other element read {@code array[i]} becomes {@code new T(arrayX[i], arrayY[i])}.</li>
+ *     <li>{@code array.length} becomes {@code arrayX.length}.</li>
+ * </ul>
+ * Indices and values that are repeated per component must be free of side effects, otherwise
+ * they are evaluated once into local variables first. Other uses of a flattened field, e.g.
+ * passing it to a method or storing {@code null}, are rejected.
+ */
+final class StructOfArrays {
+    private static final Set<String> MODIFIERS = Set.of("public", "protected", "private", "static", "final", "transient", "volatile");
+    private static final Set<String> SIDE_EFFECTS = Set.of("(", "=", "++", "--", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=");
+    private static final Set<String> STATEMENT_STARTS = Set.of(";", "{", "}", ")", ":", "else", "do");
+
+    private final EditBuffer code;
+    private final String className;
+    private final Map<String, Map<String, String>> components;  // component types by name, by type parameter
+    private final List<Token> tokens;
+    private final List<Integer> codeTokens = new ArrayList<>();  // indices of non-whitespace, non-comment tokens
+    private final Map<String, String> fields = new LinkedHashMap<>();  // type parameters by field name
+    private final Map<Integer, Integer> fieldDeclarations = new LinkedHashMap<>();  // last index by first index
+    private final Set<String> identifiers = new HashSet<>();
+
+    private StructOfArrays(EditBuffer code, String className, Map<String, Map<String, String>> components) {
+        this.code = code;
+        this.className = className;
+        this.components = components;
+        this.tokens = JavaTokens.tokenize(code);
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).isCode()) {
+                codeTokens.add(i);
+                if (tokens.get(i).kind() == Kind.IDENTIFIER) {
+                    identifiers.add(tokens.get(i).text());
+                }
+            }
+        }
+    }
+
+    /**
+     * Flattens the array fields of record type parameters.
+     *
+     * @param code The template code.
+     * @param className The fully qualified name of the generated class, for error messages.
+     * @param components The record components (names and types, in declaration order) by the
+     *                   names of the type parameters that are replaced by records.
+     * @return The rewritten code.
+     * @throws CodeGeneratorException If a flattened field is used in a way that cannot be rewritten.
+     */
+    static EditBuffer rewrite(EditBuffer code, String className, Map<String, Map<String, String>> components) {
+        if (components.isEmpty()) {
+            return code;
+        }
+        return new StructOfArrays(code, className, components).rewrite();
+    }
+
+    private EditBuffer rewrite() {
+        collectFields();
+        if (fields.isEmpty()) {
+            return code;
+        }
+
+        EditBuffer.Editor editor = code.edit();
+        for (int i = 0; i < codeTokens.size(); i++) {
+            Integer declarationEnd = fieldDeclarations.get(i);
+            if (declarationEnd != null) {
+                // private T[] array = new T[n]; -> private double[] arrayX = new double[n]; ...
+                String typeParameter = fields.get(declaredField(i, declarationEnd));
+                replace(editor, i, declarationEnd, repeat(i, declarationEnd, typeParameter, false));
+                i = declarationEnd;
+            } else if (is(i, "System") && is(i + 1, ".") && is(i + 2, "arraycopy") && !is(i - 1, ".")
+                    && is(i + 3, "(") && fields.containsKey(token(field(i + 4)).text())) {
+                // System.arraycopy(array, ...); -> System.arraycopy(arrayX, ...); ...
+                int end = statementEnd(i);
+                replace(editor, i, end, repeat(i, end, fields.get(token(field(i + 4)).text()), true));
+                i = end;
+            } else if (isField(i)) {
+                i = rewriteAccess(i, editor);
+            }
+        }
+        return editor.apply();
+    }
+
+    /**
+     * Collects the instance fields declared with an array of a flattened type parameter.
+     */
+    private void collectFields() {
+        int depth = 0;
+        for (int i = 0; i < codeTokens.size(); i++) {
+            if (is(i, "{")) {
+                depth++;
+            } else if (is(i, "}")) {
+                depth--;
+            } else if (depth == 1 && components.containsKey(token(i).text()) && is(i + 1, "[") && is(i + 2, "]")
+                    && token(i + 3).kind() == Kind.IDENTIFIER && (is(i + 4, ";") || is(i + 4, "="))) {
+                int start = i;
+                while (MODIFIERS.contains(token(start - 1).text())) {
+                    start--;
+                }
+                if ((is(start - 1, ";") || is(start - 1, "{") || is(start - 1, "}")) && !text(start, i).contains("static")) {
+                    fields.put(token(i + 3).text(), token(i).text());
+                    fieldDeclarations.put(start, statementEnd(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites a reference to a flattened field at the given index, possibly qualified by
+     * {@code this.}.
+     *
+     * @return The index of the last token that was rewritten.
+     */
+    private int rewriteAccess(int i, EditBuffer.Editor editor) {
+        String field = token(i).text();
+        String typeParameter = fields.get(field);
+        Map<String, String> recordComponents = components.get(typeParameter);
+        int start = is(i - 1, ".") ? i - 2 : i;
+
+        if (is(i + 1, ".") && is(i + 2, "length")) {
+            // array.length -> arrayX.length
+            replace(editor, i, i, componentField(field, recordComponents.keySet().iterator().next()));
+            return i;
+        }
+
+        if (is(i + 1, "=") && STATEMENT_STARTS.contains(token(start - 1).text())) {
+            // array = Arrays.copyOf(array, n); -> arrayX = Arrays.copyOf(arrayX, n); ...
+            int end = statementEnd(i);
+            replace(editor, start, end, repeat(start, end, typeParameter, true));
+            return end;
+        }
+
+        if (!is(i + 1, "[")) {
+            throw new CodeGeneratorException("Cannot flatten use of field " + field + " in " + className);
+        }
+        int close = closingBracket(i + 1, "[", "]");
+        if (is(close + 1, ".") && recordComponents.containsKey(token(close + 2).text()) && is(close + 3, "(") && is(close + 4, ")")) {
+            // array[i].x() -> arrayX[i]
+            checkPlain(i + 2, close, field);
+            replace(editor, i, i, componentField(field, token(close + 2).text()));
+            editor.replace(token(close).end(), token(close + 4).end(), "");
+            return close + 4;
+        }
+        String index = source(i + 2, close);
+
+        if (is(close + 1, "=")) {
+            if (!STATEMENT_STARTS.contains(token(start - 1).text())) {
+                throw new CodeGeneratorException("Cannot flatten assignment to " + field + "[" + index + "] within an expression in " + className);
+            }
+            int end = statementEnd(close + 1);
+            String value = source(close + 2, end);
+            StringBuilder s = new StringBuilder();
+            int other = is(close + 2, "this") && is(close + 3, ".") ? close + 4 : close + 2;
+            if (fields.containsKey(token(other).text()) && is(other + 1, "[") && closingBracket(other + 1, "[", "]") == end - 1
+                    && fields.get(token(other).text()).equals(typeParameter)) {
+                // array[i] = other[j]; -> arrayX[i] = otherX[j]; ...
+                checkPlain(i + 2, close);
+                checkPlain(other + 2, end - 1);
+                String otherIndex = source(other + 2, end - 1);
+                recordComponents.keySet().forEach(component -> s.append(componentField(field, component)).append("[").append(index).append("] = ")
+                        .append(componentField(token(other).text(), component)).append("[").append(otherIndex).append("]; "));
+            } else if (is(close + 2, "null")) {
+                throw new CodeGeneratorException("Cannot store null in flattened field " + field + " in " + className);
+            } else {
+                // array[size++] = point; -> { int index = size++; arrayX[index] = point.x(); ... }
+                checkPlain(close + 2, end, field);
+                String indexName = index;
+                String valueName = value;
+                s.append("{ ");
+                if (!isPlain(i + 2, close)) {
+                    indexName = freshName("index");
+                    s.append("int ").append(indexName).append(" = ").append(index).append("; ");
+                }
+                if (!isName(close + 2, end)) {
+                    valueName = freshName("element");
+                    s.append(typeParameter).append(" ").append(valueName).append(" = ").append(value).append("; ");
+                }
+                for (String component : recordComponents.keySet()) {
+                    s.append(componentField(field, component)).append("[").append(indexName).append("] = ")
+                     .append(valueName).append(".").append(component).append("(); ");
+                }
+                s.append("}");
+                if (indexName.equals(index) && valueName.equals(value)) {
+                    s.delete(0, 2).setLength(s.length() - 1);
+                }
+            }
+            String statements = s.toString().strip();
+            boolean wrap = !statements.startsWith("{") && (is(start - 1, ")") || is(start - 1, "else") || is(start - 1, "do"));
+            replace(editor, start, end, wrap ? "{ " + statements + " }" : statements);
+            return end;
+        }
+
+        if (SIDE_EFFECTS.contains(token(close + 1).text())) {
+            throw new CodeGeneratorException("Cannot flatten " + token(close + 1).text() + " on " + field + "[" + index + "] in " + className);
+        }
+
+        // array[i] -> new T(arrayX[i], arrayY[i])
+        checkPlain(i + 2, close);
+        StringBuilder s = new StringBuilder("new ").append(typeParameter).append("(");
+        recordComponents.keySet().forEach(component -> s.append(componentField(field, component)).append("[").append(index).append("], "));
+        s.setLength(s.length() - 2);
+        s.append(")");
+        replace(editor, start, close, s.toString());
+        return close;
+    }
+
+    /**
+     * @return The source code of the given statement once per record component, with flattened
+     * fields and the type parameter replaced by the component fields and types.
+     */
+    private String repeat(int first, int last, String typeParameter, boolean inBlock) {
+        checkWholeArrays(first, last);
+        int lineStart = token(first).start();
+        while (lineStart > 0 && code.charAt(lineStart - 1) != '\n') {
+            lineStart--;
+        }
+        String indent = code.subSequence(lineStart, token(first).start()).toString();
+        if (!indent.isBlank()) {
+            indent = "";
+        }
+
+        List<String> statements = new ArrayList<>();
+        for (Map.Entry<String, String> component : components.get(typeParameter).entrySet()) {
+            StringBuilder s = new StringBuilder();
+            for (int i = first; i <= last; i++) {
+                if (i > first) {
+                    s.append(code, token(i - 1).end(), token(i).start());
+                }
+                if (token(i).kind() == Kind.IDENTIFIER && token(i).is(typeParameter)) {
+                    s.append(component.getValue());
+                } else if (isField(i) && typeParameter.equals(fields.get(token(i).text()))) {
+                    s.append(componentField(token(i).text(), component.getKey()));
+                } else {
+                    s.append(token(i).text());
+                }
+            }
+            statements.add(s.toString());
+        }
+        String separator = indent.isEmpty() ? " " : "\n" + indent;
+        String repeated = String.join(separator, statements);
+        return inBlock && (is(first - 1, ")") || is(first - 1, "else") || is(first - 1, "do")) ? "{ " + repeated + " }" : repeated;
+    }
+
+    /**
+     * Rejects statements that access elements of flattened fields or have side effects, since
+     * they are repeated per component.
+     */
+    private void checkWholeArrays(int first, int last) {
+        for (int i = first; i <= last; i++) {
+            if (isField(i) && is(i + 1, "[")) {
+                throw new CodeGeneratorException("Cannot flatten " + source(first, last + 1) + " in " + className);
+            }
+            if (is(i, "++") || is(i, "--")) {
+                throw new CodeGeneratorException("Cannot repeat " + source(first, last + 1) + " per record component in " + className);
+            }
+        }
+    }
+
+    private void checkPlain(int from, int to) {
+        if (!isPlain(from, to)) {
+            throw new CodeGeneratorException("Index " + source(from, to) + " of a flattened field must be free of side effects in "
+                    + className + ", use a local variable");
+        }
+    }
+
+    private void checkPlain(int from, int to, String field) {
+        for (int i = from; i < to; i++) {
+            if (isField(i)) {
+                throw new CodeGeneratorException("Cannot flatten " + source(from, to) + " next to " + field
+                        + " in " + className + ", use a local variable");
+            }
+        }
+    }
+
+    /**
+     * @return Whether the given tokens can be evaluated more than once, i.e., have no side
+     * effects and don't refer to flattened fields.
+     */
+    private boolean isPlain(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (SIDE_EFFECTS.contains(token(i).text()) || isField(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isName(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (token(i).kind() != Kind.IDENTIFIER && !is(i, ".")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the given index refers to a flattened field, i.e., the field name that is
+     * not qualified or qualified by {@code this.}.
+     */
+    private boolean isField(int i) {
+        return i < codeTokens.size() && token(i).kind() == Kind.IDENTIFIER && fields.containsKey(token(i).text())
+                && (!is(i - 1, ".") || is(i - 2, "this") && !is(i - 3, "."));
+    }
+
+    /**
+     * @return The index of the field name at the given index, skipping a {@code this.} qualifier.
+     */
+    private int field(int i) {
+        return is(i, "this") && is(i + 1, ".") ? i + 2 : i;
+    }
+
+    private String declaredField(int first, int last) {
+        for (int i = first; i < last; i++) {
+            if (is(i, "]") && fields.containsKey(token(i + 1).text())) {
+                return token(i + 1).text();
+            }
+        }
+        throw new IllegalStateException("No field declared in " + source(first, last + 1));
+    }
+
+    private String freshName(String name) {
+        String fresh = name;
+        for (int i = 2; identifiers.contains(fresh); i++) {
+            fresh = name + i;
+        }
+        return fresh;
+    }
+
+    private static String componentField(String field, String component) {
+        return field + component.substring(0, 1).toUpperCase() + component.substring(1);
+    }
+
+    /**
+     * @return The index of the semicolon that ends the statement containing the given index.
+     */
+    private int statementEnd(int i) {
+        int depth = 0;
+        for (int j = i; j < codeTokens.size(); j++) {
+            if (is(j, "(") || is(j, "[") || is(j, "{")) {
+                depth++;
+            } else if (is(j, ")") || is(j, "]") || is(j, "}")) {
+                depth--;
+            } else if (depth == 0 && is(j, ";")) {
+                return j;
+            }
+        }
+        throw new CodeGeneratorException("Unterminated statement in " + className);
+    }
+
+    private int closingBracket(int i, String opening, String closing) {
+        int depth = 0;
+        for (int j = i; j < codeTokens.size(); j++) {
+            if (is(j, opening)) {
+                depth++;
+            } else if (is(j, closing) && --depth == 0) {
+                return j;
+            }
+        }
+        throw new CodeGeneratorException("Unbalanced " + opening + " in " + className);
+    }
+
+    private void replace(EditBuffer.Editor editor, int first, int last, String replacement) {
+        editor.replace(token(first).start(), token(last).end(), replacement);
+    }
+
+    private String source(int from, int to) {
+        return code.subSequence(token(from).start(), token(to - 1).end()).toString();
+    }
+
+    private String text(int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            text.append(token(i).text()).append(' ');
+        }
+        return text.toString();
+    }
+
+    private Token token(int i) {
+        return tokens.get(codeTokens.get(i));
+    }
+
+    private boolean is(int i, String text) {
+        return i >= 0 && i < codeTokens.size() && token(i).is(text);
+    }
+}
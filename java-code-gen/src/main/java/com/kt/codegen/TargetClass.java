@@ -0,0 +1,208 @@
+package com.kt.codegen;
+
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+
+/**
+ * Everything needed to generate one target class from a template, see
+ * {@link CodeGeneratorProcessor#generateTargetCode}. Generation is a pure function of these
+ * inputs. Start with {@link #of} and add what the target class calls for with the
+ * {@code with...} methods, the defaults being no replacements at all.
+ *
+ * @param sourceClassNameFQ The qualified name of the template.
+ * @param targetClassNameFQ The qualified name of the target class.
+ * @param declaration How the declaration of the template is found.
+ * @param template The template.
+ * @param annotationTypesToRemove The code generator annotations to strip from the template.
+ * @param replacements The user replacements.
+ * @param replacementMode How the user replacements are applied.
+ * @param typeParameterReplacements The concrete types by the type parameters they replace.
+ * @param sentinels The values that stand for null by type parameter.
+ * @param recordComponents The components of the record types by the type parameters whose arrays
+ *                         are flattened.
+ * @param templateReferences The instantiations of referenced templates, see
+ *                           {@link TemplateReferences#rewrite}.
+ * @param companionInterface The companion interface to implement, or null if none.
+ * @param offHeap Whether primitive array fields are stored off-heap.
+ */
+record TargetClass(
+        String sourceClassNameFQ,
+        String targetClassNameFQ,
+        Declaration declaration,
+        Template template,
+        List<Class<? extends Annotation>> annotationTypesToRemove,
+        Replace[] replacements,
+        ReplacementMode replacementMode,
+        Map<String, String> typeParameterReplacements,
+        Map<String, String> sentinels,
+        Map<String, Map<String, String>> recordComponents,
+        Map<String, Map<List<String>, String>> templateReferences,
+        String companionInterface,
+        boolean offHeap) {
+
+    /**
+     * @return A target class that is the template with the given name and nothing else replaced.
+     */
+    static TargetClass of(String sourceClassNameFQ, String targetClassNameFQ, Declaration declaration, Template template) {
+        return new TargetClass(sourceClassNameFQ, targetClassNameFQ, declaration, template, List.of(), new Replace[0],
+                               ReplacementMode.SEQUENTIAL, Map.of(), Map.of(), Map.of(), Map.of(), null, false);
+    }
+
+    TargetClass withAnnotationTypesToRemove(List<Class<? extends Annotation>> annotationTypesToRemove) {
+        return with(target -> target.annotationTypesToRemove = annotationTypesToRemove);
+    }
+
+    TargetClass withReplacements(Replace[] replacements, ReplacementMode replacementMode) {
+        return with(target -> {
+            target.replacements = replacements;
+            target.replacementMode = replacementMode;
+        });
+    }
+
+    TargetClass withTypeParameterReplacements(Map<String, String> typeParameterReplacements) {
+        return with(target -> target.typeParameterReplacements = typeParameterReplacements);
+    }
+
+    TargetClass withSentinels(Map<String, String> sentinels) {
+        return with(target -> target.sentinels = sentinels);
+    }
+
+    TargetClass withRecordComponents(Map<String, Map<String, String>> recordComponents) {
+        return with(target -> target.recordComponents = recordComponents);
+    }
+
+    TargetClass withTemplateReferences(Map<String, Map<List<String>, String>> templateReferences) {
+        return with(target -> target.templateReferences = templateReferences);
+    }
+
+    TargetClass withCompanionInterface(String companionInterface) {
+        return with(target -> target.companionInterface = companionInterface);
+    }
+
+    TargetClass withOffHeap(boolean offHeap) {
+        return with(target -> target.offHeap = offHeap);
+    }
+
+    private TargetClass with(Consumer<Builder> change) {
+        Builder builder = new Builder(this);
+        change.accept(builder);
+        return builder.build();
+    }
+
+    /**
+     * @return All inputs as strings, in a deterministic order, for the key of the generated source
+     * cache.
+     */
+    List<String> cacheKeyInputs() {
+        List<String> inputs = new ArrayList<>();
+        inputs.add(sourceClassNameFQ);
+        inputs.add(targetClassNameFQ);
+        inputs.add(declaration.name());
+        inputs.add(String.valueOf(annotationTypesToRemove.size()));
+        for (var annotationType : annotationTypesToRemove) {
+            inputs.add(annotationType.getName());
+        }
+        inputs.add(template.source());
+        inputs.add(replacementMode.name());
+        inputs.add(String.valueOf(replacements.length));
+        for (Replace replacement : replacements) {
+            inputs.add(replacement.from());
+            inputs.add(replacement.to());
+            inputs.add(String.valueOf(replacement.regex()));
+        }
+        inputs.add(String.valueOf(typeParameterReplacements.size()));
+        new TreeMap<>(typeParameterReplacements).forEach((from, to) -> {
+            inputs.add(from);
+            inputs.add(to);
+        });
+        inputs.add(String.valueOf(sentinels.size()));
+        new TreeMap<>(sentinels).forEach((typeParameter, sentinel) -> {
+            inputs.add(typeParameter);
+            inputs.add(sentinel);
+        });
+        inputs.add(String.valueOf(recordComponents.size()));
+        new TreeMap<>(recordComponents).forEach((typeParameter, components) -> {
+            inputs.add(typeParameter);
+            inputs.add(String.valueOf(components.size()));
+            components.forEach((name, type) -> {
+                inputs.add(name);
+                inputs.add(type);
+            });
+        });
+        inputs.add(String.valueOf(templateReferences.size()));
+        new TreeMap<>(templateReferences).forEach((templateName, instantiations) -> {
+            inputs.add(templateName);
+            inputs.add(String.valueOf(instantiations.size()));
+            Map<String, String> sorted = new TreeMap<>();
+            instantiations.forEach((arguments, instantiation) -> sorted.put(String.join(",", arguments), instantiation));
+            sorted.forEach((arguments, instantiation) -> {
+                inputs.add(arguments);
+                inputs.add(instantiation);
+            });
+        });
+        inputs.add(String.valueOf(companionInterface));
+        inputs.add(String.valueOf(offHeap));
+        return inputs;
+    }
+
+    /**
+     * The components of a target class to change, the only place besides the record header to
+     * list them all.
+     */
+    private static final class Builder {
+        private final String sourceClassNameFQ;
+        private final String targetClassNameFQ;
+        private final Declaration declaration;
+        private final Template template;
+        private List<Class<? extends Annotation>> annotationTypesToRemove;
+        private Replace[] replacements;
+        private ReplacementMode replacementMode;
+        private Map<String, String> typeParameterReplacements;
+        private Map<String, String> sentinels;
+        private Map<String, Map<String, String>> recordComponents;
+        private Map<String, Map<List<String>, String>> templateReferences;
+        private String companionInterface;
+        private boolean offHeap;
+
+        Builder(TargetClass target) {
+            sourceClassNameFQ = target.sourceClassNameFQ;
+            targetClassNameFQ = target.targetClassNameFQ;
+            declaration = target.declaration;
+            template = target.template;
+            annotationTypesToRemove = target.annotationTypesToRemove;
+            replacements = target.replacements;
+            replacementMode = target.replacementMode;
+            typeParameterReplacements = target.typeParameterReplacements;
+            sentinels = target.sentinels;
+            recordComponents = target.recordComponents;
+            templateReferences = target.templateReferences;
+            companionInterface = target.companionInterface;
+            offHeap = target.offHeap;
+        }
+
+        TargetClass build() {
+            return new TargetClass(sourceClassNameFQ, targetClassNameFQ, declaration, template, annotationTypesToRemove, replacements,
+                                   replacementMode, typeParameterReplacements, sentinels, recordComponents, templateReferences,
+                                   companionInterface, offHeap);
+        }
+    }
+
+    /**
+     * The references to the source class in a template that are renamed to the target class
+     * before the user replacements, so that they can't interfere.
+     */
+    enum Declaration {
+        /** All occurrences of the source class name, for derived classes. */
+        NAME,
+        /** The source class name with type arguments, followed by whitespace, for instantiated classes. */
+        GENERIC_CLASS,
+        /** The source class name with type arguments, followed by a parenthesis, for instantiated records. */
+        GENERIC_RECORD
+    }
+}
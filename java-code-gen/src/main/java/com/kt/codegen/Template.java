@@ -0,0 +1,90 @@
+package com.kt.codegen;
+
+
+import java.util.regex.Matcher;
+
+
+/**
+ * The normalized source code of a template class (i.e., a class annotated with {@link Derive}
+ * or {@link Instantiate}) together with the offsets of its type declaration and body, which the
+ * code generator needs to find again and again.
+ */
+final class Template {
+    private final String qualifiedName;
+    private final String source;
+    private final int declarationStart;
+    private final int bodyStart;
+
+    private Template(String qualifiedName, String source, int declarationStart, int bodyStart) {
+        this.qualifiedName = qualifiedName;
+        this.source = source;
+        this.declarationStart = declarationStart;
+        this.bodyStart = bodyStart;
+    }
+
+    /**
+     * Normalizes the given source code and locates the type declaration.
+     *
+     * @param qualifiedName The fully qualified name of the template class.
+     * @param source The raw source code of the template class.
+     * @return The parsed template.
+     */
+    static Template parse(String qualifiedName, String source) {
+        String normalized = source.replace("\r", "");
+        String simpleName = qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1);
+
+        Matcher declarationMatcher = CodeGeneratorProcessor.PATTERNS
+                .get("\\b(class|interface|record|enum)\\s+" + simpleName + "\\b", 0)
+                .matcher(normalized);
+        int declarationStart = declarationMatcher.find() ? declarationMatcher.start() : -1;
+
+        return new Template(
+                qualifiedName,
+                normalized,
+                declarationStart,
+                bodyStart(normalized, declarationStart));
+    }
+
+    String qualifiedName() {
+        return qualifiedName;
+    }
+
+    String source() {
+        return source;
+    }
+
+    /**
+     * @return The index of the type declaration keyword ({@code class}, {@code record}, ...) in
+     * {@link #source()}, or -1 if it could not be found.
+     */
+    int declarationStart() {
+        return declarationStart;
+    }
+
+    /**
+     * @return The index of the opening brace of the type body in {@link #source()}, or -1 if it
+     * could not be found.
+     */
+    int bodyStart() {
+        return bodyStart;
+    }
+
+    private static int bodyStart(String code, int declarationStart) {
+        if (declarationStart < 0) {
+            return -1;
+        }
+        // skip record components
+        int depth = 0;
+        for (int i = declarationStart; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '{' && depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
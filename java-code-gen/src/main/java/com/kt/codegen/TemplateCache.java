@@ -0,0 +1,58 @@
+package com.kt.codegen;
+
+
+import javax.lang.model.element.TypeElement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+
+/**
+ * Per-compilation cache of {@link Template}s so that a template class carrying many {@link Derive}
+ * or {@link Instantiate} annotations is located and read only once, no matter how many annotations
+ * or processing rounds refer to it.
+ *
+ * <p>Entries are keyed by the qualified name of the {@link TypeElement} rather than by the element
+ * itself because the compiler is free to hand out different element instances for the same type in
+ * different rounds.
+ */
+final class TemplateCache {
+    private final Map<String, Template> templates = new HashMap<>();
+    private int hits;
+    private int misses;
+
+    /**
+     * Returns the cached template for the given class, loading and parsing its source code on first
+     * access.
+     *
+     * @param sourceClass The template class.
+     * @param sourceLoader Loads the raw source code of the template class on a cache miss.
+     * @return The template.
+     */
+    Template get(TypeElement sourceClass, Function<TypeElement, String> sourceLoader) {
+        String qualifiedName = sourceClass.getQualifiedName().toString();
+        Template template = templates.get(qualifiedName);
+        if (template != null) {
+            hits++;
+            return template;
+        }
+
+        misses++;
+        template = Template.parse(qualifiedName, sourceLoader.apply(sourceClass));
+        templates.put(qualifiedName, template);
+        return template;
+    }
+
+    int hits() {
+        return hits;
+    }
+
+    int misses() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return "Template cache: " + hits + " hits, " + misses + " misses";
+    }
+}
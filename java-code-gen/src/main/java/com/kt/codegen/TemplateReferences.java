@@ -0,0 +1,203 @@
+package com.kt.codegen;
+
+
+import com.kt.codegen.JavaTokens.Kind;
+import com.kt.codegen.JavaTokens.Token;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+
+/**
+ * Finds and rewrites references to other templates, e.g. {@code MyList<K>} in a template
+ * {@code MyMap<K, V>}. Once {@code K} is instantiated with {@code double}, such a reference has to
+ * become a reference to the matching instantiation {@code MyListDouble}, because
+ * {@code MyList<double>} doesn't compile (and {@code MyList<Double>} would box):
+ * <ul>
+ *     <li>{@code MyList<K>} becomes {@code MyListDouble}, given the instantiation for the type
+ *     arguments {@code [K]}.</li>
+ *     <li>{@code new MyList<>()} becomes {@code new MyListDouble()} if the same statement refers
+ *     to an instantiated {@code MyList<...>} before, e.g. in
+ *     {@code MyList<K> keys = new MyList<>();}.</li>
+ * </ul>
+ * References without an instantiation, e.g. with type arguments that aren't all type parameters of
+ * the referring template (like {@code MyList<String>} or {@code MyList<List<K>>}), and qualified
+ * references are left alone, and so are diamonds following them in the same statement.
+ */
+final class TemplateReferences {
+    private final List<Token> tokens;
+    private final List<Integer> codeTokens = new ArrayList<>();  // indices of non-whitespace, non-comment tokens
+
+    private TemplateReferences(CharSequence code) {
+        this.tokens = JavaTokens.tokenize(code);
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).isCode()) {
+                codeTokens.add(i);
+            }
+        }
+    }
+
+    /**
+     * Finds the references to the given templates whose type arguments are all type parameters
+     * of the referring template.
+     *
+     * @param code The source code of the referring template.
+     * @param isTemplateName Whether a simple name followed by type arguments refers to a template.
+     * @param typeParameters The type parameters of the referring template.
+     * @return The references, in source order, possibly with duplicates.
+     */
+    static List<Reference> find(CharSequence code, Predicate<String> isTemplateName, Set<String> typeParameters) {
+        return new TemplateReferences(code).findReferences(isTemplateName, typeParameters);
+    }
+
+    /**
+     * Rewrites references to templates to references to their instantiations.
+     *
+     * @param code The source code of the referring template.
+     * @param instantiations The simple names of the instantiations by the type arguments (the
+     *                       type parameters of the referring template) by the simple names of
+     *                       the referenced templates.
+     * @param sourceClassNameFQ The qualified name of the referring template, for error messages.
+     * @return The rewritten source code.
+     */
+    static EditBuffer rewrite(EditBuffer code, Map<String, Map<List<String>, String>> instantiations, String sourceClassNameFQ) {
+        if (instantiations.isEmpty()) {
+            return code;
+        }
+        return new TemplateReferences(code).rewriteReferences(code, instantiations, sourceClassNameFQ);
+    }
+
+    private List<Reference> findReferences(Predicate<String> isTemplateName, Set<String> typeParameters) {
+        List<Reference> references = new ArrayList<>();
+        for (int i = 0; i < codeTokens.size(); i++) {
+            int close = isReference(i, true) && isTemplateName.test(token(i).text()) ? closingAngleBracket(i + 1) : -1;
+            if (close > 0) {
+                List<String> arguments = arguments(i + 1, close);
+                if (!arguments.isEmpty() && typeParameters.containsAll(arguments)) {
+                    references.add(new Reference(token(i).text(), arguments));
+                }
+            }
+        }
+        return references;
+    }
+
+    private EditBuffer rewriteReferences(EditBuffer code, Map<String, Map<List<String>, String>> instantiations, String sourceClassNameFQ) {
+        EditBuffer.Editor editor = code.edit();
+        int statementStart = 0;
+        // the template name and the instantiation (null if left alone) of the last reference in this statement
+        String[] lastReference = null;
+        for (int i = 0; i < codeTokens.size(); i++) {
+            if (is(i, ";") || is(i, "{") || is(i, "}")) {
+                statementStart = i + 1;
+                lastReference = null;
+                continue;
+            }
+            Map<List<String>, String> templateInstantiations = instantiations.get(token(i).text());
+            if (!isReference(i, templateInstantiations != null)) {
+                continue;
+            }
+            int close = closingAngleBracket(i + 1);
+            if (close < 0) {
+                continue;
+            }
+            List<String> arguments = arguments(i + 1, close);
+            String instantiation;
+            if (!arguments.isEmpty()) {
+                // MyList<K> -> MyListDouble
+                instantiation = templateInstantiations.get(arguments);
+            } else if (lastReference != null && lastReference[0].equals(token(i).text())) {
+                // MyListDouble keys = new MyList<>() -> MyListDouble keys = new MyListDouble()
+                instantiation = lastReference[1];
+            } else {
+                throw new CodeGeneratorException("Cannot infer the type arguments of " + token(i).text() + "<> in "
+                        + sourceClassNameFQ + ": " + code.subSequence(token(statementStart).start(), token(close).end()).toString().strip()
+                        + ", please spell them out");
+            }
+            if (instantiation != null) {
+                editor.replace(token(i).start(), token(close).end(), instantiation);
+            }
+            lastReference = new String[] { token(i).text(), instantiation };
+            i = close;
+        }
+        return editor.apply();
+    }
+
+    /**
+     * @return Whether the token at the given index is an unqualified reference to a template with
+     * type arguments (possibly a diamond).
+     */
+    private boolean isReference(int i, boolean isTemplateName) {
+        return isTemplateName
+                && token(i).kind() == Kind.IDENTIFIER
+                && !is(i - 1, ".")
+                && is(i + 1, "<");
+    }
+
+    /**
+     * @return The type arguments between the given angle brackets as normalized text, e.g.
+     * {@code ["K", "List<K>"]}.
+     */
+    private List<String> arguments(int open, int close) {
+        List<String> arguments = new ArrayList<>();
+        StringBuilder argument = new StringBuilder();
+        int depth = 0;
+        for (int i = open + 1; i < close; i++) {
+            if (is(i, "<")) {
+                depth++;
+            } else if (is(i, ">")) {
+                depth--;
+            } else if (depth == 0 && is(i, ",")) {
+                arguments.add(argument.toString());
+                argument.setLength(0);
+                continue;
+            }
+            if (!argument.isEmpty() && token(i).kind() == Kind.IDENTIFIER && token(i - 1).kind() == Kind.IDENTIFIER) {
+                argument.append(' ');
+            }
+            argument.append(token(i).text());
+        }
+        if (!argument.isEmpty()) {
+            arguments.add(argument.toString());
+        }
+        return arguments;
+    }
+
+    /**
+     * @return The index of the angle bracket closing the one at the given index, or -1 if the
+     * brackets don't enclose type arguments (e.g. in {@code a < b}).
+     */
+    private int closingAngleBracket(int open) {
+        int depth = 0;
+        for (int i = open; i < codeTokens.size(); i++) {
+            if (is(i, "<")) {
+                depth++;
+            } else if (is(i, ">") && --depth == 0) {
+                return i;
+            } else if (token(i).kind() != Kind.IDENTIFIER && !is(i, ",") && !is(i, ".") && !is(i, "?")
+                    && !is(i, "[") && !is(i, "]") && !is(i, "&")) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private Token token(int i) {
+        return tokens.get(codeTokens.get(i));
+    }
+
+    private boolean is(int i, String text) {
+        return i >= 0 && i < codeTokens.size() && token(i).is(text);
+    }
+
+    /**
+     * A reference to a template.
+     *
+     * @param templateName The simple name of the referenced template.
+     * @param arguments The type arguments, all of them type parameters of the referring template.
+     */
+    record Reference(String templateName, List<String> arguments) {
+    }
+}
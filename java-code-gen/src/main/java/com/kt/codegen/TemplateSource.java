@@ -0,0 +1,67 @@
+package com.kt.codegen;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+
+
+/**
+ * Provides the source code of templates to the annotation processor, e.g. from memory in tests.
+ * The processor asks the template source first, then takes the source code of the compilation
+ * unit from the compiler, and finally falls back to reading the source file from disk.
+ *
+ * <p>A template source is either passed to {@link CodeGeneratorProcessor#CodeGeneratorProcessor(TemplateSource)}
+ * or registered as a service in {@code META-INF/services/com.kt.codegen.TemplateSource} on the
+ * annotation processor path.
+ */
+@FunctionalInterface
+public interface TemplateSource {
+    /**
+     * Reads the source code of a template.
+     *
+     * @param templateClassName The fully qualified name of the template class.
+     * @return The source code of the compilation unit declaring the template class, or empty if
+     * the template is unknown to this template source.
+     */
+    Optional<String> read(String templateClassName);
+
+    /**
+     * Creates a template source that serves source code from memory.
+     *
+     * @param sources The source code by fully qualified template class name.
+     * @return The template source.
+     */
+    static TemplateSource of(Map<String, String> sources) {
+        Map<String, String> copy = Map.copyOf(sources);
+        return templateClassName -> Optional.ofNullable(copy.get(templateClassName));
+    }
+
+    /**
+     * Creates a template source that reads source files from the class path, e.g. for
+     * {@link Specializer} with templates whose source files are packaged as resources next to
+     * their class files.
+     *
+     * @param classLoader The class loader to find the source files with.
+     * @return The template source, which throws a {@link CodeGeneratorException} if a source file
+     * can't be read.
+     */
+    static TemplateSource resources(ClassLoader classLoader) {
+        return templateClassName -> {
+            try (InputStream in = classLoader.getResourceAsStream(templateClassName.replace('.', '/') + ".java")) {
+                return in == null ? Optional.empty() : Optional.of(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                throw new CodeGeneratorException("Could not read template source " + templateClassName + ": " + ex.getMessage());
+            }
+        };
+    }
+
+    /**
+     * @return A template source that doesn't know any templates.
+     */
+    static TemplateSource none() {
+        return templateClassName -> Optional.empty();
+    }
+}
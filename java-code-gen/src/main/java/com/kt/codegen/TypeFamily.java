@@ -0,0 +1,51 @@
+package com.kt.codegen;
+
+
+import java.util.List;
+
+
+/**
+ * A predefined family of concrete types for a {@link TypeSet}.
+ */
+public enum TypeFamily {
+    /**
+     * All eight primitive types.
+     */
+    PRIMITIVE("boolean", "byte", "char", "short", "int", "long", "float", "double"),
+
+    /**
+     * The primitive number types, i.e., {@code byte}, {@code short}, {@code int}, {@code long},
+     * {@code float} and {@code double}.
+     */
+    PRIMITIVE_NUMERIC("byte", "short", "int", "long", "float", "double"),
+
+    /**
+     * The primitive integral types except {@code char}, i.e., {@code byte}, {@code short},
+     * {@code int} and {@code long}.
+     */
+    PRIMITIVE_INTEGRAL("byte", "short", "int", "long"),
+
+    /**
+     * The primitive floating point types, i.e., {@code float} and {@code double}.
+     */
+    PRIMITIVE_FLOATING_POINT("float", "double"),
+
+    /**
+     * The wrapper classes of the primitive number types, i.e., {@code Byte}, {@code Short},
+     * {@code Integer}, {@code Long}, {@code Float} and {@code Double}.
+     */
+    BOXED_NUMERIC("java.lang.Byte", "java.lang.Short", "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double");
+
+    private final List<String> typeNames;
+
+    TypeFamily(String... typeNames) {
+        this.typeNames = List.of(typeNames);
+    }
+
+    /**
+     * @return The qualified names of the types in this family (simple names for primitive types).
+     */
+    List<String> typeNames() {
+        return typeNames;
+    }
+}
@@ -0,0 +1,30 @@
+package com.kt.codegen;
+
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * The concrete types to replace one type parameter with in an {@link InstantiateAll} annotation:
+ * the types given in {@link #value()} followed by those of the families in {@link #family()}.
+ * Types given more than once are only used once.
+ */
+@Target({})
+@Retention(RetentionPolicy.SOURCE)
+public @interface TypeSet {
+    /**
+     * The concrete types.
+     *
+     * @return The concrete types.
+     */
+    Class<?>[] value() default {};
+
+    /**
+     * The families of concrete types, see {@link TypeFamily}.
+     *
+     * @return The families of concrete types.
+     */
+    TypeFamily[] family() default {};
+}
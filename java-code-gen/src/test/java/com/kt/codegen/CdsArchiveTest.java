@@ -0,0 +1,122 @@
+package com.kt.codegen;
+
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class CdsArchiveTest {
+    private static final String BAG = """
+            package x.y;
+
+            import com.kt.codegen.Companion;
+            import com.kt.codegen.Instantiate;
+
+            @Companion
+            @Instantiate(long.class)
+            public class Bag<T> {
+                private T[] values = (T[]) new Object[16];
+                private int size;
+
+                public void add(T value) {
+                    values[size++] = value;
+                }
+            }
+            """;
+    private static final String TABLE = """
+            package x.y;
+
+            import com.kt.codegen.Instantiate;
+
+            @Instantiate(double.class)
+            public class Table<K> {
+                private final Bag<K> keys = new Bag<>();
+
+                public void add(K key) {
+                    keys.add(key);
+                }
+
+                public static class Row {
+                }
+            }
+            """;
+
+    @Test
+    public void listsGeneratedClassesInDependencyOrder() {
+        InMemoryCompilation.Result result = compile(List.of("-A" + CodeGeneratorProcessor.CLASS_LIST_OPTION + "=true"));
+
+        // the on-demand instantiation BagDouble and its companion interface come before TableDouble
+        assertEquals("""
+                # generated by com.kt.codegen.CodeGeneratorProcessor
+                x/y/Bags
+                x/y/Bags$Of
+                x/y/Bags$OfDouble
+                x/y/BagDouble
+                x/y/TableDouble
+                x/y/TableDouble$Row
+                x/y/Bags$OfLong
+                x/y/BagLong
+                """, new String(result.resources().get(ClassList.RESOURCE), StandardCharsets.UTF_8));
+
+        // everything listed is a generated class
+        for (String className : classNames(result)) {
+            assertTrue(result.classFiles().containsKey(className.replace('/', '.')), className);
+        }
+
+        assertFalse(compile(List.of()).resources().containsKey(ClassList.RESOURCE));
+    }
+
+    @Test
+    public void dumpsArchive(@TempDir Path dir) throws Exception {
+        InMemoryCompilation.Result result = compile(List.of("-A" + CodeGeneratorProcessor.CLASS_LIST_OPTION + "=true"));
+        Path jar = dir.resolve("app.jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (Map.Entry<String, byte[]> classFile : result.classFiles().entrySet()) {
+                write(out, classFile.getKey().replace('.', '/') + ".class", classFile.getValue());
+            }
+            write(out, ClassList.RESOURCE, result.resources().get(ClassList.RESOURCE));
+        }
+
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[] { jar.toUri().toURL() }, null)) {
+            assertEquals(classNames(result), CdsArchive.classList(classLoader));
+        }
+
+        Path archive = dir.resolve("app.jsa");
+        CdsArchive.dump(List.of(jar), archive);
+        assertTrue(Files.size(archive) > 0);
+    }
+
+    private static InMemoryCompilation.Result compile(List<String> options) {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("x.y.Table", TABLE);
+        sources.put("x.y.Bag", BAG);
+        return InMemoryCompilation.compile(sources, options, TemplateSource.of(sources));
+    }
+
+    private static void write(JarOutputStream out, String name, byte[] content) throws Exception {
+        out.putNextEntry(new JarEntry(name));
+        out.write(content);
+        out.closeEntry();
+    }
+
+    private static List<String> classNames(InMemoryCompilation.Result result) {
+        return new String(result.resources().get(ClassList.RESOURCE), StandardCharsets.UTF_8).lines()
+                .filter(line -> !line.startsWith("#"))
+                .toList();
+    }
+}
@@ -0,0 +1,89 @@
+package com.kt.codegen;
+
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.kt.codegen.CodeGeneratorTestHelper.checkGeneration;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class CodeGeneratorHarnessTest {
+    private static final String TEMPLATE = """
+            package x.y;
+
+            import com.kt.codegen.Instantiate;
+
+            @Instantiate(%s.class)
+            public class Box%d<T> {
+                private T value;
+            }
+            """;
+
+    @Test
+    public void generatesConcurrentlyInMemory() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<String, String>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                String templateClassName = "x.y.Box" + i;
+                String template = String.format(TEMPLATE, i % 2 == 0 ? "Integer" : "String", i);
+                results.add(executor.submit(() -> CodeGeneratorHarness.generate(Map.of(templateClassName, template), List.of())));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                String type = i % 2 == 0 ? "Integer" : "String";
+                Map<String, String> generated = results.get(i).get();
+                assertEquals(List.of("x.y.Box" + i + type), List.copyOf(generated.keySet()));
+                assertEquals(
+                        """
+                        // generated from x.y.Box%d
+                        package x.y;
+
+                        public class Box%d%s {
+                            private %s value;
+                        }
+                        """.formatted(i, i, type, type),
+                        generated.get("x.y.Box" + i + type));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void reportsErrors() {
+        String template = String.format(TEMPLATE, "Integer", 1).replace("private T value;", "private T value");
+        CodeGeneratorException ex = assertThrows(
+                CodeGeneratorException.class,
+                () -> CodeGeneratorHarness.generate(Map.of("x.y.Box1", template), List.of()));
+        assertTrue(ex.getMessage().contains("';' expected"), ex.getMessage());
+    }
+
+    @Test
+    public void templateSourceTakesPrecedence() throws Exception {
+        String template = String.format(TEMPLATE, "Integer", 1);
+        String provided = template.replace("private T value;", "private T value;  // provided");
+        checkGeneration(
+                new CodeGeneratorProcessor(templateClassName -> Optional.of(provided)),
+                "x.y.Box1",
+                template,
+                "x.y.Box1Integer",
+                """
+                // generated from x.y.Box1
+                package x.y;
+
+                public class Box1Integer {
+                    private Integer value;  // provided
+                }
+                """);
+    }
+}
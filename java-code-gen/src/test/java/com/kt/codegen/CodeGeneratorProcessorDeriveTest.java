@@ -3,7 +3,12 @@ package com.kt.codegen;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+import java.util.Map;
+
 import static com.kt.codegen.CodeGeneratorTestHelper.checkGeneration;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class CodeGeneratorProcessorDeriveTest {
@@ -39,7 +44,7 @@ public class CodeGeneratorProcessorDeriveTest {
                 // generated from x.y.Before
                 package x.y;
                 
-                public  class After<T, U>    implements     Comparable<After> {  // Beforex 1Before After
+                public  class After<T, U>    implements     Comparable<After> {  // Beforex 1Before Before
                   int q;
                   
                   public After(int q) {
@@ -388,4 +393,365 @@ public class CodeGeneratorProcessorDeriveTest {
                 """
         );
     }
+
+    @Test
+    public void simultaneousReplacements() throws Exception {
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+
+                "x.y.IntLongPair",
+
+                """
+                package x.y;
+
+                import com.kt.codegen.Derive;
+                import com.kt.codegen.Replace;
+                import com.kt.codegen.ReplacementMode;
+
+                @Derive(name = "LongIntPair", mode = ReplacementMode.SIMULTANEOUS, replace = {
+                    @Replace(from = "int", to = "long"),
+                    @Replace(from = "long", to = "int"),
+                    @Replace(from = "Int", to = "Long"),
+                    @Replace(from = "Long", to = "Int"),
+                    @Replace(from = "IntLong", to = "LongInt"),
+                })
+                class IntLongPair {
+                    private final int first;
+                    private final long second;
+
+                    IntLongPair(int first, long second) {
+                        this.first = first;
+                        this.second = second;
+                    }
+                }
+                """,
+
+                "x.y.LongIntPair",
+
+                """
+                // generated from x.y.IntLongPair
+                package x.y;
+
+                class LongIntPair {
+                    private final long first;
+                    private final int second;
+
+                    LongIntPair(long first, int second) {
+                        this.first = first;
+                        this.second = second;
+                    }
+                }
+                """
+        );
+    }
+
+    @Test
+    public void simultaneousReplacementsFallBackToSequentialForRegex() throws Exception {
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+
+                "x.y.Counter",
+
+                """
+                package x.y;
+
+                import com.kt.codegen.Derive;
+                import com.kt.codegen.Replace;
+                import com.kt.codegen.ReplacementMode;
+
+                @Derive(name = "LongCounter", mode = ReplacementMode.SIMULTANEOUS, replace = {
+                    @Replace(from = "\\\\bint\\\\b", to = "short", regex = true),
+                    @Replace(from = "short", to = "long"),
+                })
+                class Counter {
+                    private int count;
+                }
+                """,
+
+                "x.y.LongCounter",
+
+                """
+                // generated from x.y.Counter
+                package x.y;
+
+                class LongCounter {
+                    private long count;
+                }
+                """
+        );
+    }
+
+    @Test
+    public void offHeap() throws Exception {
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+
+                "x.y.DoubleList",
+
+                """
+                package x.y;
+
+                import com.kt.codegen.Derive;
+                import java.util.Arrays;
+
+                @Derive(name = "OffHeapDoubleList", replace = {}, offHeap = true)
+                public class DoubleList {
+                    private static final double[] EMPTY = {};
+                    private double[] array = new double[4];
+                    private final int[] counts;
+                    private int size;
+
+                    DoubleList() {
+                        counts = new int[array.length];
+                    }
+
+                    void add(double value) {
+                        if (size == this.array.length) {
+                            array = Arrays.copyOf(array, 2 * size);
+                        }
+                        array[size] = value;
+                        counts[size]++;
+                        size++;
+                    }
+
+                    void scale(int index, double factor) {
+                        this.array[index] *= factor + 1;
+                        counts[index] += 2;
+                    }
+
+                    double get(int index) {
+                        return array[index] + array[counts[index]];
+                    }
+
+                    void remove(int index) {
+                        System.arraycopy(array, index + 1, array, index, size - index - 1);
+                        array[--size] = 0;
+                    }
+
+                    double[] toArray() {
+                        return Arrays.copyOf(array, size);
+                    }
+
+                    void clear() {
+                        Arrays.fill(array, 0.0);
+                        size = 0;
+                    }
+                }
+                """,
+
+                "x.y.OffHeapDoubleList",
+
+                """
+                // generated from x.y.DoubleList
+                package x.y;
+
+                import java.util.Arrays;
+
+                public class OffHeapDoubleList implements AutoCloseable {
+                    private static final double[] EMPTY = {};
+                    private java.nio.DoubleBuffer array = allocateDoubleBuffer(4);
+                    private java.nio.IntBuffer counts;
+                    private int size;
+
+                    OffHeapDoubleList() {
+                        counts = allocateIntBuffer(array.capacity());
+                    }
+
+                    void add(double value) {
+                        if (size == this.array.capacity()) {
+                            array = copyOf(array, 2 * size);
+                        }
+                        array.put(size, value);
+                        counts.put(size, counts.get(size) + 1);
+                        size++;
+                    }
+
+                    void scale(int index, double factor) {
+                        this.array.put(index, this.array.get(index) * (factor + 1));
+                        counts.put(index, (int) (counts.get(index) + (2)));
+                    }
+
+                    double get(int index) {
+                        return array.get(index) + array.get(counts.get(index));
+                    }
+
+                    void remove(int index) {
+                        arraycopy(array, index + 1, array, index, size - index - 1);
+                        array.put(--size, 0);
+                    }
+
+                    double[] toArray() {
+                        return toArray(array, size);
+                    }
+
+                    void clear() {
+                        fill(array, 0.0);
+                        size = 0;
+                    }
+
+                    /**
+                     * Releases the off-heap storage of this instance. The native memory is freed once the
+                     * buffers are garbage collected. This instance must not be used afterwards.
+                     */
+                    @Override
+                    public void close() {
+                        array = null;
+                        counts = null;
+                    }
+
+                    private static java.nio.DoubleBuffer allocateDoubleBuffer(int capacity) {
+                        return java.nio.ByteBuffer.allocateDirect(Math.multiplyExact(capacity, Double.BYTES))
+                                .order(java.nio.ByteOrder.nativeOrder())
+                                .asDoubleBuffer();
+                    }
+
+                    private static java.nio.IntBuffer allocateIntBuffer(int capacity) {
+                        return java.nio.ByteBuffer.allocateDirect(Math.multiplyExact(capacity, Integer.BYTES))
+                                .order(java.nio.ByteOrder.nativeOrder())
+                                .asIntBuffer();
+                    }
+
+                    private static java.nio.DoubleBuffer copyOf(java.nio.DoubleBuffer buffer, int length) {
+                        java.nio.DoubleBuffer copy = allocateDoubleBuffer(length);
+                        copy.put(0, buffer, 0, Math.min(length, buffer.capacity()));
+                        return copy;
+                    }
+
+                    private static void arraycopy(java.nio.DoubleBuffer src, int srcPos, java.nio.DoubleBuffer dest, int destPos, int length) {
+                        dest.put(destPos, src, srcPos, length);
+                    }
+
+                    private static double[] toArray(java.nio.DoubleBuffer buffer, int length) {
+                        double[] array = new double[length];
+                        buffer.get(0, array, 0, Math.min(length, buffer.capacity()));
+                        return array;
+                    }
+
+                    private static void fill(java.nio.DoubleBuffer buffer, double value) {
+                        fill(buffer, 0, buffer.capacity(), value);
+                    }
+
+                    private static void fill(java.nio.DoubleBuffer buffer, int fromIndex, int toIndex, double value) {
+                        for (int i = fromIndex; i < toIndex; i++) {
+                            buffer.put(i, value);
+                        }
+                    }
+                }
+                """);
+    }
+
+    @Test
+    public void offHeapNarrowElements() throws Exception {
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+
+                "x.y.ShortCounts",
+
+                """
+                package x.y;
+
+                import com.kt.codegen.Derive;
+
+                @Derive(name = "OffHeapShortCounts", replace = {}, offHeap = true)
+                public class ShortCounts {
+                    private short[] values = new short[8];
+                    private char[] flags = new char[8];
+
+                    void reset(int i) {
+                        values[i] = 0;
+                        flags[i] = 65;
+                    }
+
+                    void count(int i, short delta) {
+                        if (delta == 1) values[i]++;
+                        else values[i] += delta;
+                        flags[i] = 'x';
+                    }
+
+                    int get(int i) {
+                        return values[i] + flags[i];
+                    }
+                }
+                """,
+
+                "x.y.OffHeapShortCounts",
+
+                """
+                // generated from x.y.ShortCounts
+                package x.y;
+
+                public class OffHeapShortCounts implements AutoCloseable {
+                    private java.nio.ShortBuffer values = allocateShortBuffer(8);
+                    private java.nio.CharBuffer flags = allocateCharBuffer(8);
+
+                    void reset(int i) {
+                        values.put(i, (short) (0));
+                        flags.put(i, (char) (65));
+                    }
+
+                    void count(int i, short delta) {
+                        if (delta == 1) values.put(i, (short) (values.get(i) + 1));
+                        else values.put(i, (short) (values.get(i) + (delta)));
+                        flags.put(i, (char) ('x'));
+                    }
+
+                    int get(int i) {
+                        return values.get(i) + flags.get(i);
+                    }
+
+                    /**
+                     * Releases the off-heap storage of this instance. The native memory is freed once the
+                     * buffers are garbage collected. This instance must not be used afterwards.
+                     */
+                    @Override
+                    public void close() {
+                        values = null;
+                        flags = null;
+                    }
+
+                    private static java.nio.ShortBuffer allocateShortBuffer(int capacity) {
+                        return java.nio.ByteBuffer.allocateDirect(Math.multiplyExact(capacity, Short.BYTES))
+                                .order(java.nio.ByteOrder.nativeOrder())
+                                .asShortBuffer();
+                    }
+
+                    private static java.nio.CharBuffer allocateCharBuffer(int capacity) {
+                        return java.nio.ByteBuffer.allocateDirect(Math.multiplyExact(capacity, Character.BYTES))
+                                .order(java.nio.ByteOrder.nativeOrder())
+                                .asCharBuffer();
+                    }
+                }
+                """);
+    }
+
+    @Test
+    public void offHeapRejectsUsedAssignmentValues() {
+        for (String statement : List.of("a[i] = b[i] = 1;", "int x = a[i]++;", "use(b[i] = 2);", "return ++a[i];")) {
+            String source = """
+                    package x.y;
+
+                    import com.kt.codegen.Derive;
+
+                    @Derive(name = "OffHeapPair", replace = {}, offHeap = true)
+                    public class Pair {
+                        private int[] a = new int[8];
+                        private int[] b = new int[8];
+
+                        int set(int i) {
+                            %s
+                            return 0;
+                        }
+
+                        void use(Object o) {
+                        }
+                    }
+                    """.formatted(statement);
+
+            CodeGeneratorException ex = assertThrows(
+                    CodeGeneratorException.class,
+                    () -> CodeGeneratorHarness.generate(Map.of("x.y.Pair", source), List.of()));
+            assertTrue(ex.getMessage().contains("to an off-heap field must be a statement of its own in x.y.OffHeapPair"),
+                       ex.getMessage());
+        }
+    }
 }
@@ -1,9 +1,20 @@
 package com.kt.codegen;
 
 
+import com.google.testing.compile.Compilation;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.testing.compile.CompilationSubject.assertThat;
 import static com.kt.codegen.CodeGeneratorTestHelper.checkGeneration;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class CodeGeneratorProcessorInstantiateTest {
@@ -287,4 +298,1012 @@ public class CodeGeneratorProcessorInstantiateTest {
                 """
         );
     }
+
+    @Test
+    public void templateIsReadOnce() throws Exception {
+        Compilation compilation = checkGeneration(
+                new CodeGeneratorProcessor(),
+
+                "x.y.Box",
+
+                """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate(int.class)
+                @Instantiate(long.class)
+                @Instantiate(double.class)
+                public class Box<T> {
+                    T value;
+                }
+                """,
+
+                "x.y.BoxLong",
+
+                """
+                // generated from x.y.Box
+                package x.y;
+
+                public class BoxLong {
+                    long value;
+                }
+                """
+        );
+        assertThat(compilation).hadNoteContaining("Template cache: 2 hits, 1 misses");
+    }
+
+    @Test
+    public void typeParametersInLiteralsAndCommentsAreKept() throws Exception {
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+
+                "x.y.Named",
+
+                """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+
+                /** A named value of type T, see {@link Named}. */
+                @Instantiate(long.class)
+                public class Named<T> {
+                    static final String DESCRIPTION = "Named<T>";
+                    static final String FORMAT = "Named<T> %s";
+                    static final char TYPE = 'T';
+                    T value;  // the T value
+                    int T2;
+
+                    // returns this Named<T> itself
+                    Named<T> self() { return this; }
+                }
+                """,
+
+                "x.y.NamedLong",
+
+                """
+                // generated from x.y.Named
+                package x.y;
+
+                /** A named value of type T, see {@link Named}. */
+                public class NamedLong {
+                    static final String DESCRIPTION = "Named<T>";
+                    static final String FORMAT = "Named<T> %s";
+                    static final char TYPE = 'T';
+                    long value;  // the T value
+                    int T2;
+
+                    // returns this Named<T> itself
+                    NamedLong self() { return this; }
+                }
+                """
+        );
+    }
+
+    @Test
+    public void genericArraysAndCasts() throws Exception {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate(double.class)
+                @Instantiate(String.class)
+                public class Stack<T> {
+                    private T[] array = (T[]) new Object[16];
+                    private T[][] blocks = (T[][]) new Object[4][16];
+                    private int size;
+
+                    T top() {
+                        return (T) array[size - 1];
+                    }
+
+                    T topOrFirst(Object first) {
+                        return size > 0 ? (T) top() : (T) first;
+                    }
+
+                    T[] copy() {
+                        return (T[]) array.clone();
+                    }
+                }
+                """;
+        String expectedTarget = """
+                // generated from x.y.Stack
+                package x.y;
+
+                public class Stack$$$$ {
+                    private %%%%[] array = new %%%%[16];
+                    private %%%%[][] blocks = new %%%%[4][16];
+                    private int size;
+
+                    %%%% top() {
+                        return array[size - 1];
+                    }
+
+                    %%%% topOrFirst(Object first) {
+                        return size > 0 ? top() : (%%%%) first;
+                    }
+
+                    %%%%[] copy() {
+                        return (%%%%[]) array.clone();
+                    }
+                }
+                """;
+        for (String type : new String[] { "Double", "String" }) {
+            checkGeneration(
+                    new CodeGeneratorProcessor(),
+
+                    "x.y.Stack",
+
+                    source,
+
+                    "x.y.Stack" + type,
+
+                    expectedTarget.replace("$$$$", type).replace("%%%%", type.equals("Double") ? "double" : type));
+        }
+    }
+
+    @Test
+    public void boxingFreePrimitives() throws Exception {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+                import java.util.Objects;
+
+                @Instantiate(int.class)
+                @Instantiate(double.class)
+                @Instantiate(String.class)
+                public class Pair<T extends Comparable> {
+                    private final T first;
+                    private final T second;
+                    private final String name;
+
+                    Pair(T first, T second, String name) {
+                        this.first = first;
+                        this.second = second;
+                        this.name = name;
+                    }
+
+                    boolean same() {
+                        return first.equals(second);
+                    }
+
+                    boolean firstIs(T other) {
+                        return other != null && Objects.equals(first, other);
+                    }
+
+                    int order() {
+                        return first.compareTo(second);
+                    }
+
+                    int firstHash() {
+                        return first.hashCode();
+                    }
+
+                    @Override
+                    public int hashCode() {
+                        return Objects.hash(first, second, name);
+                    }
+                }
+                """;
+        String expectedTarget = """
+                // generated from x.y.Pair
+                package x.y;
+
+                import java.util.Objects;
+
+                public class Pair$$$$ {
+                    private final %%%% first;
+                    private final %%%% second;
+                    private final String name;
+
+                    Pair$$$$(%%%% first, %%%% second, String name) {
+                        this.first = first;
+                        this.second = second;
+                        this.name = name;
+                    }
+
+                    boolean same() {
+                        return EQUALS_SECOND;
+                    }
+
+                    boolean firstIs(%%%% other) {
+                        return NOT_NULL && EQUALS_OTHER;
+                    }
+
+                    int order() {
+                        return COMPARE;
+                    }
+
+                    int firstHash() {
+                        return HASH_CODE;
+                    }
+
+                    @Override
+                    public int hashCode() {
+                        return HASH;
+                    }
+                }
+                """;
+
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+                "x.y.Pair",
+                source,
+                "x.y.PairInt",
+                expectedTarget.replace("$$$$", "Int").replace("%%%%", "int")
+                        .replace("EQUALS_SECOND", "(first == second)")
+                        .replace("NOT_NULL", "true")
+                        .replace("EQUALS_OTHER", "(first == other)")
+                        .replace("COMPARE", "Integer.compare(first, second)")
+                        .replace("HASH_CODE", "Integer.hashCode(first)")
+                        .replace("HASH", "(31 * (31 * (31 + Integer.hashCode(first)) + Integer.hashCode(second)) + Objects.hashCode(name))"));
+
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+                "x.y.Pair",
+                source,
+                "x.y.PairDouble",
+                expectedTarget.replace("$$$$", "Double").replace("%%%%", "double")
+                        .replace("EQUALS_SECOND", "(Double.compare(first, second) == 0)")
+                        .replace("NOT_NULL", "true")
+                        .replace("EQUALS_OTHER", "(Double.compare(first, other) == 0)")
+                        .replace("COMPARE", "Double.compare(first, second)")
+                        .replace("HASH_CODE", "Double.hashCode(first)")
+                        .replace("HASH", "(31 * (31 * (31 + Double.hashCode(first)) + Double.hashCode(second)) + Objects.hashCode(name))"));
+
+        // reference types are left alone
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+                "x.y.Pair",
+                source,
+                "x.y.PairString",
+                expectedTarget.replace("$$$$", "String").replace("%%%%", "String")
+                        .replace("EQUALS_SECOND", "first.equals(second)")
+                        .replace("NOT_NULL", "other != null")
+                        .replace("EQUALS_OTHER", "Objects.equals(first, other)")
+                        .replace("COMPARE", "first.compareTo(second)")
+                        .replace("HASH_CODE", "first.hashCode()")
+                        .replace("HASH", "Objects.hash(first, second, name)"));
+    }
+
+    @Test
+    public void sentinels() throws Exception {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+                import com.kt.codegen.Sentinel;
+                import java.util.Arrays;
+
+                @Instantiate(value = double.class, sentinel = @Sentinel(type = double.class, value = "Double.NaN"))
+                @Instantiate(value = long.class, sentinel = @Sentinel(type = long.class, value = "Long.MIN_VALUE"))
+                @Instantiate(String.class)
+                public class Slots<T> {
+                    private final T[] slots = (T[]) new Object[8];
+                    private T last = null;
+                    private T first;
+
+                    T get(int i) {
+                        if (slots[i] == null) {
+                            return null;
+                        }
+                        return slots[i];
+                    }
+
+                    boolean isSet(int i) {
+                        return null != slots[i];
+                    }
+
+                    void clear(int i) {
+                        last = slots[i];
+                        slots[i] = null;
+                    }
+
+                    T[] grown() {
+                        return Arrays.copyOf(slots, 2 * slots.length);
+                    }
+                }
+                """;
+        String helpers = """
+
+                    private static %%%%[] filledT(%%%%[] array) {
+                        java.util.Arrays.fill(array, NULL);
+                        return array;
+                    }
+
+                    private static %%%%[] copyOfT(%%%%[] original, int newLength) {
+                        %%%%[] copy = java.util.Arrays.copyOf(original, newLength);
+                        java.util.Arrays.fill(copy, Math.min(original.length, newLength), newLength, NULL);
+                        return copy;
+                    }
+                """;
+        String expectedTarget = """
+                // generated from x.y.Slots
+                package x.y;
+
+                import java.util.Arrays;
+
+                public class Slots$$$$ {
+                    private final %%%%[] slots = NEW_SLOTS;
+                    private %%%% last = NULL;
+                    private %%%% first;
+
+                    %%%% get(int i) {
+                        if (IS_NULL) {
+                            return NULL;
+                        }
+                        return slots[i];
+                    }
+
+                    boolean isSet(int i) {
+                        return IS_SET;
+                    }
+
+                    void clear(int i) {
+                        last = slots[i];
+                        slots[i] = NULL;
+                    }
+
+                    %%%%[] grown() {
+                        return COPY_OF(slots, 2 * slots.length);
+                    }
+                HELPERS}
+                """;
+
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+                "x.y.Slots",
+                source,
+                "x.y.SlotsDouble",
+                expectedTarget.replace("HELPERS", helpers).replace("$$$$", "Double").replace("%%%%", "double")
+                        .replace("NEW_SLOTS", "filledT(new double[8])")
+                        .replace("first;", "first = NULL;")
+                        .replace("COPY_OF", "copyOfT")
+                        .replace("IS_NULL", "Double.compare(slots[i], Double.NaN) == 0")
+                        .replace("IS_SET", "Double.compare(slots[i], Double.NaN) != 0")
+                        .replace("NULL", "Double.NaN"));
+
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+                "x.y.Slots",
+                source,
+                "x.y.SlotsLong",
+                expectedTarget.replace("HELPERS", helpers).replace("$$$$", "Long").replace("%%%%", "long")
+                        .replace("NEW_SLOTS", "filledT(new long[8])")
+                        .replace("first;", "first = NULL;")
+                        .replace("COPY_OF", "copyOfT")
+                        .replace("IS_NULL", "slots[i] == Long.MIN_VALUE")
+                        .replace("IS_SET", "slots[i] != Long.MIN_VALUE")
+                        .replace("NULL", "Long.MIN_VALUE"));
+
+        // no sentinel, so null is kept
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+                "x.y.Slots",
+                source,
+                "x.y.SlotsString",
+                expectedTarget.replace("HELPERS", "").replace("$$$$", "String").replace("%%%%", "String")
+                        .replace("NEW_SLOTS", "new String[8]")
+                        .replace("COPY_OF", "Arrays.copyOf")
+                        .replace("IS_NULL", "slots[i] == null")
+                        .replace("IS_SET", "null != slots[i]")
+                        .replace("NULL", "null"));
+    }
+
+    @Test
+    public void sentinelsRejectNestedArrays() {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+                import com.kt.codegen.Sentinel;
+
+                @Instantiate(value = long.class, sentinel = @Sentinel(type = long.class, value = "-1L"))
+                public class Grid<T> {
+                    private final T[][] cells = (T[][]) new Object[4][4];
+                }
+                """;
+
+        CodeGeneratorException ex = assertThrows(
+                CodeGeneratorException.class,
+                () -> CodeGeneratorHarness.generate(Map.of("x.y.Grid", source), List.of()));
+        assertTrue(ex.getMessage().contains("Cannot fill (T[][]) new Object[4][4] with the sentinel in x.y.Grid"), ex.getMessage());
+    }
+
+    @Test
+    public void companion() throws Exception {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Companion;
+                import com.kt.codegen.Instantiate;
+
+                @Companion
+                @Instantiate(double.class)
+                @Instantiate(String.class)
+                public class Cell<T> implements Cloneable {
+                    private T value;
+                    private int version;
+
+                    public T get() {
+                        return value;
+                    }
+
+                    public void set(T value) {
+                        this.value = value;
+                        version++;
+                    }
+
+                    public int version() {
+                        return version;
+                    }
+                }
+                """;
+
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+                "x.y.Cell",
+                source,
+                "x.y.CellDouble",
+                """
+                // generated from x.y.Cell
+                package x.y;
+
+                public class CellDouble implements Cloneable, Cells.OfDouble {
+                    private double value;
+                    private int version;
+
+                    public double get() {
+                        return value;
+                    }
+
+                    public void set(double value) {
+                        this.value = value;
+                        version++;
+                    }
+
+                    public int version() {
+                        return version;
+                    }
+                }
+                """);
+
+        checkGeneration(
+                new CodeGeneratorProcessor(),
+                "x.y.Cell",
+                source,
+                "x.y.Cells",
+                """
+                // generated from x.y.Cell
+                package x.y;
+
+                import java.util.Arrays;
+                import java.util.HashMap;
+                import java.util.List;
+                import java.util.Map;
+                import java.util.function.Supplier;
+
+                /**
+                 * The instantiations of {@link Cell}.
+                 */
+                public final class Cells {
+                    private static final Map<List<Class<?>>, Supplier<? extends Of>> FACTORIES = new HashMap<>();
+
+                    static {
+                        FACTORIES.put(List.of(double.class), CellDouble::new);
+                        FACTORIES.put(List.of(java.lang.String.class), CellString::new);
+                    }
+
+                    private Cells() {
+                    }
+
+                    /**
+                     * Implemented by all instantiations.
+                     */
+                    public interface Of {
+                        int version();
+                    }
+
+                    /**
+                     * Implemented by {@link CellDouble}.
+                     */
+                    public interface OfDouble extends Of {
+                        double get();
+                        void set(double value);
+                    }
+
+                    /**
+                     * Implemented by {@link CellString}.
+                     */
+                    public interface OfString extends Of {
+                        java.lang.String get();
+                        void set(java.lang.String value);
+                    }
+
+                    /**
+                     * @param types The concrete types, one per type parameter.
+                     * @return A factory creating instances of the instantiation for the given concrete types.
+                     * @throws IllegalArgumentException If there is no instantiation for the given concrete types.
+                     */
+                    public static Supplier<? extends Of> forType(Class<?>... types) {
+                        Supplier<? extends Of> factory = FACTORIES.get(List.of(types));
+                        if (factory == null) {
+                            throw new IllegalArgumentException("No instantiation of x.y.Cell for " + Arrays.toString(types));
+                        }
+                        return factory;
+                    }
+                }
+                """);
+    }
+
+    @Test
+    public void instantiateAll() throws Exception {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+                import com.kt.codegen.InstantiateAll;
+                import com.kt.codegen.Replace;
+                import com.kt.codegen.TypeFamily;
+                import com.kt.codegen.TypeSet;
+
+                @Instantiate(value = { int.class, String.class }, replace = @Replace(from = "K key;", to = "K key = 42;"))
+                @InstantiateAll(
+                    value = {
+                        @TypeSet({ int.class, long.class }),
+                        @TypeSet(value = { String.class, double.class }, family = TypeFamily.PRIMITIVE_FLOATING_POINT)
+                    },
+                    exclude = { int.class, String.class, long.class, float.class }
+                )
+                public class Entry<K, V> {
+                    K key;
+                    V value;
+                }
+                """;
+
+        Compilation compilation = checkGeneration(
+                new CodeGeneratorProcessor(),
+                "x.y.Entry",
+                source,
+                "x.y.EntryIntString",
+                """
+                // generated from x.y.Entry
+                package x.y;
+
+                public class EntryIntString {
+                    int key = 42;
+                    String value;
+                }
+                """);
+
+        List<String> generated = compilation.generatedSourceFiles().stream()
+                .map(file -> file.getName().substring(file.getName().lastIndexOf('/') + 1))
+                .sorted()
+                .toList();
+        assertEquals(
+                List.of("EntryIntDouble.java", "EntryIntFloat.java", "EntryIntString.java", "EntryLongDouble.java", "EntryLongString.java"),
+                generated);
+    }
+
+    @Test
+    public void instantiateAllRequiresGenericClass() {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.InstantiateAll;
+
+                @InstantiateAll(value = {}, exclude = int.class)
+                public class Plain {
+                }
+                """;
+
+        CodeGeneratorException ex = assertThrows(
+                CodeGeneratorException.class,
+                () -> CodeGeneratorHarness.generate(Map.of("x.y.Plain", source), List.of()));
+        assertTrue(ex.getMessage().contains("@InstantiateAll requires a generic class: x.y.Plain"), ex.getMessage());
+    }
+
+    @Test
+    public void flattenedRecords() {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+                import java.util.Arrays;
+
+                @Instantiate(value = Point.class, flatten = true)
+                public class Series<T extends Point> {
+                    private T[] points = (T[]) new Object[16];
+                    private int size;
+
+                    public void add(T point) {
+                        if (size == points.length) {
+                            points = Arrays.copyOf(points, 2 * size);
+                        }
+                        points[size++] = point;
+                    }
+
+                    public void set(int i, T point) {
+                        points[i] = point;
+                    }
+
+                    public T get(int i) {
+                        return points[i];
+                    }
+
+                    public double x(int i) {
+                        return points[i].x();
+                    }
+
+                    public void remove(int i) {
+                        for (int j = i; j < size - 1; j++) points[j] = points[j + 1];
+                        size--;
+                    }
+                }
+                """;
+
+        Map<String, String> generated = CodeGeneratorHarness.generate(
+                Map.of("x.y.Series", source, "x.y.Point", "package x.y; public record Point(double x, long y) {}"),
+                List.of());
+
+        assertEquals("""
+                // generated from x.y.Series
+                package x.y;
+
+                import java.util.Arrays;
+
+                public class SeriesPoint {
+                    private double[] pointsX = new double[16];
+                    private long[] pointsY = new long[16];
+                    private int size;
+
+                    public void add(Point point) {
+                        if (size == pointsX.length) {
+                            pointsX = Arrays.copyOf(pointsX, 2 * size);
+                            pointsY = Arrays.copyOf(pointsY, 2 * size);
+                        }
+                        { int index = size++; pointsX[index] = point.x(); pointsY[index] = point.y(); }
+                    }
+
+                    public void set(int i, Point point) {
+                        pointsX[i] = point.x(); pointsY[i] = point.y();
+                    }
+
+                    public Point get(int i) {
+                        return new Point(pointsX[i], pointsY[i]);
+                    }
+
+                    public double x(int i) {
+                        return pointsX[i];
+                    }
+
+                    public void remove(int i) {
+                        for (int j = i; j < size - 1; j++) { pointsX[j] = pointsX[j + 1]; pointsY[j] = pointsY[j + 1]; }
+                        size--;
+                    }
+                }
+                """, generated.get("x.y.SeriesPoint"));
+    }
+
+    @Test
+    public void parallelGeneration() throws Exception {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate(byte.class)
+                @Instantiate(short.class)
+                @Instantiate(int.class)
+                @Instantiate(long.class)
+                @Instantiate(float.class)
+                @Instantiate(double.class)
+                public class Cell<T> {
+                    T value;
+                }
+                """;
+        for (String type : new String[] { "Byte", "Short", "Int", "Long", "Float", "Double" }) {
+            checkGeneration(
+                    new CodeGeneratorProcessor(),
+                    List.of("-Acodegen.threads=4"),
+
+                    "x.y.Cell",
+
+                    source,
+
+                    "x.y.Cell" + type,
+
+                    """
+                    // generated from x.y.Cell
+                    package x.y;
+
+                    public class Cell$$$$ {
+                        %%%% value;
+                    }
+                    """.replace("$$$$", type).replace("%%%%", type.toLowerCase()));
+        }
+    }
+
+    @Test
+    public void generatedSourceCache(@TempDir Path cacheDir) throws Exception {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate(char.class)
+                public class Slot<T> {
+                    T value;
+                }
+                """;
+        String expectedTarget = """
+                // generated from x.y.Slot
+                package x.y;
+
+                public class SlotChar {
+                    char value;
+                }
+                """;
+        List<String> options = List.of("-Acodegen.cacheDir=" + cacheDir);
+
+        Compilation first = checkGeneration(new CodeGeneratorProcessor(), options, "x.y.Slot", source, "x.y.SlotChar", expectedTarget);
+        assertThat(first).hadNoteContaining("Generated source cache: 0 hits, 1 misses");
+
+        Compilation second = checkGeneration(new CodeGeneratorProcessor(), options, "x.y.Slot", source, "x.y.SlotChar", expectedTarget);
+        assertThat(second).hadNoteContaining("Generated source cache: 1 hits, 0 misses");
+
+        // a different template must not hit the cache
+        Compilation third = checkGeneration(
+                new CodeGeneratorProcessor(),
+                options,
+                "x.y.Slot",
+                source.replace("T value;", "T value;  // changed"),
+                "x.y.SlotChar",
+                expectedTarget.replace("char value;", "char value;  // changed"));
+        assertThat(third).hadNoteContaining("Generated source cache: 0 hits, 1 misses");
+    }
+
+    @Test
+    public void metricsAndQuietMode(@TempDir Path reportDir) throws Exception {
+        Path report = reportDir.resolve("metrics.json");
+        Compilation compilation = checkGeneration(
+                new CodeGeneratorProcessor(),
+                List.of("-Acodegen.metrics=" + report, "-Acodegen.quiet=true"),
+
+                "x.y.Pair",
+
+                """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+                import com.kt.codegen.Replace;
+
+                @Instantiate(value = int.class, replace = @Replace(from = "first", to = "left"))
+                @Instantiate(value = long.class, replace = @Replace(from = "first", to = "left"))
+                public class Pair<T> {
+                    T first;
+                }
+                """,
+
+                "x.y.PairInt",
+
+                """
+                // generated from x.y.Pair
+                package x.y;
+
+                public class PairInt {
+                    int left;
+                }
+                """
+        );
+        assertEquals(1, compilation.notes().size());
+        assertThat(compilation).hadNoteContaining("Generated 2 classes (0 cached, ");
+        assertThat(compilation).hadNoteContaining("Template cache: 1 hits, 1 misses");
+
+        String json = Files.readString(report);
+        assertTrue(json.contains("\"template\": \"x.y.Pair\""), json);
+        assertTrue(json.contains("\"target\": \"x.y.PairInt\""), json);
+        assertTrue(json.contains("\"target\": \"x.y.PairLong\""), json);
+        assertTrue(json.contains("\"step\": \"replace 1: first\""), json);
+        assertTrue(json.contains("\"step\": \"write\""), json);
+    }
+
+    @Test
+    public void genericMethods() {
+        String source = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+                import java.util.Comparator;
+
+                public final class Sorting {
+                    private Sorting() {
+                    }
+
+                    @Instantiate(double.class)
+                    @Instantiate(value = String.class, append = false)
+                    public static <T> void sort(T[] a, int from, int to, Comparator<? super T> c) {
+                        if (to - from < 2) {
+                            return;
+                        }
+                        T pivot = a[from];
+                        int mid = from;
+                        for (int i = from + 1; i < to; i++) {
+                            if (c.compare(a[i], pivot) < 0) {
+                                T tmp = a[++mid];
+                                a[mid] = a[i];
+                                a[i] = tmp;
+                            }
+                        }
+                        a[from] = a[mid];
+                        a[mid] = pivot;
+                        sort(a, from, mid, c);
+                        sort(a, mid + 1, to, c);
+                    }
+                }
+                """;
+
+        Map<String, String> generated = CodeGeneratorHarness.generate(Map.of("x.y.Sorting", source), List.of());
+
+        assertEquals("""
+                // generated from x.y.Sorting
+                package x.y;
+
+                import java.util.Comparator;
+                import static x.y.Sorting.*;
+
+                /**
+                 * The specializations of the generic methods of {@link Sorting}.
+                 */
+                public final class SortingSpecializations {
+                    private SortingSpecializations() {
+                    }
+
+                    public static void sortDouble(double[] a, int from, int to) {
+                        if (to - from < 2) {
+                            return;
+                        }
+                        double pivot = a[from];
+                        int mid = from;
+                        for (int i = from + 1; i < to; i++) {
+                            if (Double.compare(a[i], pivot) < 0) {
+                                double tmp = a[++mid];
+                                a[mid] = a[i];
+                                a[i] = tmp;
+                            }
+                        }
+                        a[from] = a[mid];
+                        a[mid] = pivot;
+                        sortDouble(a, from, mid);
+                        sortDouble(a, mid + 1, to);
+                    }
+
+                    public static void stringSort(String[] a, int from, int to, Comparator<? super String> c) {
+                        if (to - from < 2) {
+                            return;
+                        }
+                        String pivot = a[from];
+                        int mid = from;
+                        for (int i = from + 1; i < to; i++) {
+                            if (c.compare(a[i], pivot) < 0) {
+                                String tmp = a[++mid];
+                                a[mid] = a[i];
+                                a[i] = tmp;
+                            }
+                        }
+                        a[from] = a[mid];
+                        a[mid] = pivot;
+                        stringSort(a, from, mid, c);
+                        stringSort(a, mid + 1, to, c);
+                    }
+                }
+                """, generated.get("x.y.SortingSpecializations"));
+    }
+
+    @Test
+    public void transitiveInstantiation() {
+        String list = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate(double.class)
+                public class Bag<T> {
+                    private T[] values = (T[]) new Object[16];
+                    private int size;
+
+                    public void add(T value) {
+                        values[size++] = value;
+                    }
+
+                    public T get(int i) {
+                        return values[i];
+                    }
+                }
+                """;
+        String map = """
+                package x.y;
+
+                import com.kt.codegen.Instantiate;
+
+                @Instantiate({ double.class, long.class })
+                @Instantiate({ String.class, long.class })
+                public class Table<K, V> {
+                    private final Bag<K> keys = new Bag<>();
+                    private final Bag<V> values = new Bag<>();
+
+                    public void put(K key, V value) {
+                        keys.add(key);
+                        values.add(value);
+                    }
+
+                    public Bag<V> values() {
+                        return values;
+                    }
+                }
+                """;
+
+        Map<String, String> generated = CodeGeneratorHarness.generate(Map.of("x.y.Bag", list, "x.y.Table", map), List.of());
+
+        assertEquals(List.of("x.y.BagDouble", "x.y.BagLong", "x.y.TableDoubleLong", "x.y.TableStringLong"), List.copyOf(generated.keySet()));
+        assertEquals("""
+                // generated from x.y.Table
+                package x.y;
+
+                public class TableDoubleLong {
+                    private final BagDouble keys = new BagDouble();
+                    private final BagLong values = new BagLong();
+
+                    public void put(double key, long value) {
+                        keys.add(key);
+                        values.add(value);
+                    }
+
+                    public BagLong values() {
+                        return values;
+                    }
+                }
+                """, generated.get("x.y.TableDoubleLong"));
+
+        // generic references with reference types still compile
+        assertEquals("""
+                // generated from x.y.Table
+                package x.y;
+
+                public class TableStringLong {
+                    private final Bag<String> keys = new Bag<>();
+                    private final BagLong values = new BagLong();
+
+                    public void put(String key, long value) {
+                        keys.add(key);
+                        values.add(value);
+                    }
+
+                    public BagLong values() {
+                        return values;
+                    }
+                }
+                """, generated.get("x.y.TableStringLong"));
+
+        // instantiated on demand, with the default settings
+        assertEquals("""
+                // generated from x.y.Bag
+                package x.y;
+
+                public class BagLong {
+                    private long[] values = new long[16];
+                    private int size;
+
+                    public void add(long value) {
+                        values[size++] = value;
+                    }
+
+                    public long get(int i) {
+                        return values[i];
+                    }
+                }
+                """, generated.get("x.y.BagLong"));
+    }
 }
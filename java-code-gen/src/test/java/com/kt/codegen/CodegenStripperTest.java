@@ -0,0 +1,132 @@
+package com.kt.codegen;
+
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class CodegenStripperTest {
+    private static final Set<String> IMPORTS = Set.of("com.kt.codegen.Instantiate", "com.kt.codegen.Replace");
+    private static final Set<String> ANNOTATIONS = Set.of("Instantiate", "Replace");
+
+    @Test
+    public void leavesCommentsAndLiteralsAlone() {
+        String code = """
+                // @Instantiate(int.class)
+                /* @Instantiate(int.class) import com.kt.codegen.Replace;
+                   */
+                class A {
+                    String s = "@Instantiate(int.class)";
+                    String t = \"""
+                            @Replace(from = "a", to = "b")
+                            \""";
+                    char c = '@';
+                    String u = "\\"@Instantiate";
+                }
+                """;
+        assertEquals(code, strip(code));
+    }
+
+    @Test
+    public void removesAnnotationsWithAndWithoutArguments() {
+        assertEquals("class A { void f(int x) { } }", strip("class A { void f(@Instantiate int x) { } }"));
+        assertEquals("class A { void f(int x) { } }", strip("class A { void f(@ Instantiate() int x) { } }"));
+        assertEquals("class A {}", strip("@Instantiate(value = f(g(1), (2)), s = \")(\", c = ')') class A {}"));
+        assertEquals("class A {}", strip("@Instantiate(/* ) */ int.class) class A {}"));
+
+        // other annotations and names that merely start like an annotation are kept
+        assertEquals("@Override @InstantiateAll class A {}", strip("@Override @InstantiateAll class A {}"));
+    }
+
+    @Test
+    public void rejectsUnbalancedBrackets() {
+        assertThrows(CodeGeneratorException.class, () -> strip("@Instantiate(int.class class A {}"));
+    }
+
+    @Test
+    public void removesConsecutiveAnnotations() {
+        assertEquals("""
+                package x;
+
+                public class A<T> {
+                }
+                """, strip("""
+                package x;
+
+                @Instantiate(int.class)
+                @Instantiate(long.class)
+                @Replace(from = "a", to = "b") public class A<T> {
+                }
+                """));
+
+        // a single preceding whitespace character is kept as it is
+        assertEquals("""
+                package x;
+
+                /** A template. */
+                public class A<T> {
+                }
+                """, strip("""
+                package x;
+
+                /** A template. */
+                @Instantiate(int.class) @Instantiate(long.class)
+                public class A<T> {
+                }
+                """));
+    }
+
+    @Test
+    public void removesImportsOnLinesOfTheirOwn() {
+        assertEquals("""
+                package x;
+
+                import java.util.List;
+
+                public class A {
+                }
+                """, strip("""
+                package x;
+
+                import com.kt.codegen.Instantiate;
+                import java.util.List;
+
+                import com.kt.codegen.Replace;
+
+
+                public class A {
+                }
+                """));
+        assertEquals("""
+
+                class A {}
+                """, strip("""
+                import com.kt.codegen.Replace;
+                class A {}
+                """));
+
+        // imports sharing a line with other code and other imports are kept
+        String code = """
+                package x; import com.kt.codegen.Replace;
+                import com.kt.codegen.Instantiate; class A {}
+                import static com.kt.codegen.Replace.x;
+                import com.kt.codegen.InstantiateAll;
+                """;
+        assertEquals(code, CodegenStripper.strip(EditBuffer.of(code), IMPORTS, Set.of()).toString());
+    }
+
+    @Test
+    public void returnsSameCodeIfNothingToStrip() {
+        EditBuffer code = EditBuffer.of("@Instantiate class A {}");
+        assertSame(code, CodegenStripper.strip(code, Set.of(), Set.of()));
+    }
+
+    private static String strip(String code) {
+        return CodegenStripper.strip(EditBuffer.of(code), IMPORTS, ANNOTATIONS).toString();
+    }
+}
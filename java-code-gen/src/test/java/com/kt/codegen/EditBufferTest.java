@@ -0,0 +1,62 @@
+package com.kt.codegen;
+
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class EditBufferTest {
+    @Test
+    public void appliesEditsOnTopOfEachOther() throws IOException {
+        EditBuffer original = EditBuffer.of("class Foo<T> { T value; }");
+        EditBuffer renamed = original.edit().replace(6, 9, "FooOfInt").apply();
+        EditBuffer specialized = renamed.edit()
+                .replace(14, 17, "")
+                .replace(20, 21, "int")
+                .insert(renamed.length(), "\n")
+                .apply();
+        EditBuffer commented = specialized.edit().insert(0, "// generated\n").apply();
+
+        assertEquals("class Foo<T> { T value; }", original.toString());
+        assertEquals("class FooOfInt<T> { T value; }", renamed.toString());
+        assertEquals("class FooOfInt { int value; }\n", specialized.toString());
+        assertEquals("// generated\nclass FooOfInt { int value; }\n", commented.toString());
+        assertEquals(commented.toString().length(), commented.length());
+        assertEquals("FooOfInt { int", commented.subSequence(19, 33));
+        assertEquals(30, commented.indexOf("int value", 0));
+        assertEquals(-1, commented.indexOf("T", 0));
+
+        StringWriter writer = new StringWriter();
+        commented.writeTo(writer);
+        assertEquals(commented.toString(), writer.toString());
+
+        // regexes can run on the buffer directly
+        Matcher matcher = Pattern.compile("\\bint\\b").matcher(commented);
+        assertTrue(matcher.find());
+        assertEquals(30, matcher.start());
+    }
+
+    @Test
+    public void returnsSameBufferWithoutEdits() {
+        EditBuffer buffer = EditBuffer.of("abc");
+        assertSame(buffer, buffer.edit().apply());
+        assertEquals("", EditBuffer.of("").toString());
+        assertEquals("x", EditBuffer.of("").edit().insert(0, "x").apply().toString());
+    }
+
+    @Test
+    public void rejectsOverlappingEdits() {
+        EditBuffer.Editor editor = EditBuffer.of("abcdef").edit().replace(2, 4, "x");
+        assertThrows(IllegalArgumentException.class, () -> editor.replace(3, 5, "y"));
+        assertThrows(IllegalArgumentException.class, () -> editor.replace(5, 7, "y"));
+    }
+}
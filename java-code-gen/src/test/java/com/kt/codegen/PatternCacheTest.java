@@ -0,0 +1,39 @@
+package com.kt.codegen;
+
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+
+public class PatternCacheTest {
+    @Test
+    public void cachesByRegexAndFlags() {
+        PatternCache cache = new PatternCache(10);
+        Pattern pattern = cache.get("\\bT\\b", 0);
+        assertSame(pattern, cache.get("\\bT\\b", 0));
+        assertNotSame(pattern, cache.get("\\bT\\b", Pattern.MULTILINE));
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(1.0 / 3, cache.hitRate(), 1e-9);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        PatternCache cache = new PatternCache(2);
+        Pattern a = cache.get("a", 0);
+        cache.get("b", 0);
+        cache.get("a", 0);
+        cache.get("c", 0);  // evicts "b"
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+        assertSame(a, cache.get("a", 0));
+        assertEquals(2, cache.hits());
+        cache.get("b", 0);
+        assertEquals(4, cache.misses());
+    }
+}
@@ -0,0 +1,256 @@
+package com.kt.codegen;
+
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class SpecializerTest {
+    private static final TemplateSource TEMPLATES = TemplateSource.of(Map.of(
+            "x.y.Stack", """
+                    package x.y;
+
+                    public class Stack<T> {
+                        private T[] values = (T[]) new Object[4];
+                        private int size;
+
+                        public void push(T value) {
+                            if (size == values.length) {
+                                values = java.util.Arrays.copyOf(values, 2 * size);
+                            }
+                            values[size++] = value;
+                        }
+
+                        public T pop() {
+                            return values[--size];
+                        }
+                    }
+                    """,
+            "x.y.Broken", """
+                    package x.y;
+
+                    public class Broken<T> {
+                        T value = 42;
+                    }
+                    """));
+
+    @Test
+    public void instantiatesAtRuntime() throws Exception {
+        Specializer specializer = new Specializer(TEMPLATES);
+
+        Class<?> stackDouble = specializer.instantiate("x.y.Stack", "double");
+        assertEquals("x.y.StackDouble", stackDouble.getName());
+        assertEquals(double[].class, stackDouble.getDeclaredField("values").getType());
+
+        Object stack = stackDouble.getConstructor().newInstance();
+        for (int i = 0; i < 10; i++) {
+            stackDouble.getMethod("push", double.class).invoke(stack, (double) i);
+        }
+        assertEquals(9.0, stackDouble.getMethod("pop").invoke(stack));
+
+        assertSame(stackDouble, specializer.instantiate("x.y.Stack", "double"));
+        assertEquals(long[].class, specializer.instantiate("x.y.Stack", "long").getDeclaredField("values").getType());
+    }
+
+    @Test
+    public void instantiatesOnceForConcurrentRequests() throws Exception {
+        Specializer specializer = new Specializer(TEMPLATES);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Class<?>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> specializer.instantiate("x.y.Stack", "int")));
+            }
+            Class<?> stackInt = results.get(0).get();
+            for (Future<Class<?>> result : results) {
+                assertSame(stackInt, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cachesClassFiles(@TempDir Path cacheDir) throws Exception {
+        Class<?> cold = new Specializer(TEMPLATES, List.of(), cacheDir, getClass().getClassLoader()).instantiate("x.y.Stack", "float");
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            entries = files.toList();
+        }
+        assertEquals(1, entries.size());
+        assertTrue(Files.exists(entries.get(0).resolve("x.y.StackFloat.class")));
+
+        // a new specializer (as after a restart) defines the cached class files
+        Class<?> warm = new Specializer(TEMPLATES, List.of(), cacheDir, getClass().getClassLoader()).instantiate("x.y.Stack", "float");
+        assertEquals("x.y.StackFloat", warm.getName());
+        assertNotSame(cold, warm);
+        assertEquals(float[].class, warm.getDeclaredField("values").getType());
+    }
+
+    @Test
+    public void instantiatesReferencedTemplatesFromTheClassPath(@TempDir Path classesDir) throws Exception {
+        // the referenced template is compiled already, as it would be in an application
+        Map<String, String> sources = Map.of(
+                "x.L", """
+                        package x;
+
+                        public class L<T> {
+                            T[] values = (T[]) new Object[4];
+                        }
+                        """,
+                "x.M", """
+                        package x;
+
+                        public class M<K> {
+                            L<K> keys = new L<>();
+                        }
+                        """);
+        compile(classesDir, Map.of("x.L", sources.get("x.L")));
+
+        try (URLClassLoader parent = new URLClassLoader(new URL[] { classesDir.toUri().toURL() }, getClass().getClassLoader())) {
+            Specializer specializer = new Specializer(TemplateSource.of(sources), List.of("-classpath", classesDir.toString()), null, parent);
+            Class<?> mDouble = specializer.instantiate("x.M", "double");
+            Class<?> lDouble = mDouble.getDeclaredField("keys").getType();
+            assertEquals("x.LDouble", lDouble.getName());
+            assertEquals(double[].class, lDouble.getDeclaredField("values").getType());
+        }
+    }
+
+    @Test
+    public void accessesPackagePrivateMembersOfTheTemplatePackage(@TempDir Path classesDir) throws Exception {
+        Map<String, String> sources = Map.of(
+                "x.Util", """
+                        package x;
+
+                        class Util {
+                            static int length(Object array) {
+                                return java.lang.reflect.Array.getLength(array);
+                            }
+                        }
+                        """,
+                "x.M", """
+                        package x;
+
+                        public class M<K> {
+                            K[] values = (K[]) new Object[3];
+
+                            public int capacity() {
+                                return Util.length(values);
+                            }
+                        }
+                        """);
+        compile(classesDir, sources);
+
+        try (URLClassLoader parent = new URLClassLoader(new URL[] { classesDir.toUri().toURL() }, getClass().getClassLoader())) {
+            Specializer specializer = new Specializer(TemplateSource.of(sources), List.of("-classpath", classesDir.toString()), null, parent);
+            Class<?> mDouble = specializer.instantiate("x.M", "double");
+            assertSame(parent, mDouble.getClassLoader());
+            assertEquals(3, mDouble.getMethod("capacity").invoke(mDouble.getConstructor().newInstance()));
+        }
+    }
+
+    @Test
+    public void invalidatesCachedClassFilesOfChangedReferencedTemplates(@TempDir Path tempDir) throws Exception {
+        Path classesDir = tempDir.resolve("classes");
+        Path cacheDir = tempDir.resolve("cache");
+        String m = """
+                package x;
+
+                public class M<K> {
+                    L<K> keys = new L<>();
+                }
+                """;
+        String l = """
+                package x;
+
+                public class L<T> {
+                    T[] values = (T[]) new Object[4];
+                }
+                """;
+        compile(classesDir, Map.of("x.M", m, "x.L", l));
+        Map<String, String> before = Map.of("x.M", m, "x.L", l);
+        Map<String, String> after = Map.of("x.M", m, "x.L", l.replace("T[] values", "int size;\n    T[] values"));
+
+        assertFalse(hasSizeField(before, classesDir, cacheDir));
+        assertTrue(hasSizeField(after, classesDir, cacheDir));
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            assertEquals(1, files.count());
+        }
+        assertTrue(hasSizeField(after, classesDir, cacheDir));
+    }
+
+    /**
+     * @return Whether the type of the field {@code keys} of {@code MDouble}, as instantiated
+     * after a restart, has a field {@code size}.
+     */
+    private boolean hasSizeField(Map<String, String> sources, Path classesDir, Path cacheDir) throws Exception {
+        try (URLClassLoader parent = new URLClassLoader(new URL[] { classesDir.toUri().toURL() }, getClass().getClassLoader())) {
+            Specializer specializer = new Specializer(TemplateSource.of(sources), List.of("-classpath", classesDir.toString()), cacheDir, parent);
+            Class<?> lDouble = specializer.instantiate("x.M", "double").getDeclaredField("keys").getType();
+            return Arrays.stream(lDouble.getDeclaredFields()).anyMatch(field -> field.getName().equals("size"));
+        }
+    }
+
+    @Test
+    public void reportsFailures() {
+        Specializer specializer = new Specializer(TEMPLATES);
+        CodeGeneratorException unknown = assertThrows(CodeGeneratorException.class, () -> specializer.instantiate("x.y.Unknown", "int"));
+        assertEquals("Template source not found: x.y.Unknown", unknown.getMessage());
+        CodeGeneratorException broken = assertThrows(CodeGeneratorException.class, () -> specializer.instantiate("x.y.Broken", "String"));
+        assertTrue(broken.getMessage().startsWith("Code generation failed:"), broken.getMessage());
+
+        record Local(int value) {
+        }
+        CodeGeneratorException local = assertThrows(CodeGeneratorException.class, () -> specializer.instantiate(Object.class, Local.class));
+        assertTrue(local.getMessage().startsWith("Type without canonical name"), local.getMessage());
+    }
+
+    @Test
+    public void reportsUnreadableTemplateSources() {
+        ClassLoader classLoader = new ClassLoader(null) {
+            @Override
+            public InputStream getResourceAsStream(String name) {
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("disk on fire");
+                    }
+                };
+            }
+        };
+        CodeGeneratorException unreadable = assertThrows(CodeGeneratorException.class,
+                () -> TemplateSource.resources(classLoader).read("x.y.Stack"));
+        assertEquals("Could not read template source x.y.Stack: disk on fire", unreadable.getMessage());
+    }
+
+    private static void compile(Path classesDir, Map<String, String> sources) throws Exception {
+        Map<String, byte[]> classFiles = InMemoryCompilation.compile(sources, List.of(), TemplateSource.none()).classFiles();
+        for (Map.Entry<String, byte[]> classFile : classFiles.entrySet()) {
+            Path file = classesDir.resolve(classFile.getKey().replace('.', '/') + ".class");
+            Files.createDirectories(file.getParent());
+            Files.write(file, classFile.getValue());
+        }
+    }
+}